@@ -0,0 +1,586 @@
+/**
+*
+*  KymoButlerAnalysisRequest.java, 18 oct. 2026
+*
+*  Immutable description of one KymoButler analysis.
+*
+*/
+
+/*
+ * This file is part of KymoButler for ImageJ and is distributed
+ * under the terms of the GNU General Public License v3.0 or later.
+ */
+
+package KymoButler;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.io.FileInfo;
+import ij.measure.Calibration;
+
+/**
+ * This class holds everything a KymoButler analysis depends on: the image, the detection parameters, the calibration
+ * and the backend settings (WolframScript, KymoButler installation, output folder, cache...). Requests are immutable,
+ * and built with a Builder: the image is copied when the request is built and the preferences are only read by
+ * Builder.fromPreferences(), so that a request may be analysed by KymoButlerIO.analyze() on any thread, while the
+ * image or the preferences change.
+ *
+ */
+public final class KymoButlerAnalysisRequest {
+	/** Image to analyse, as sent to KymoButler (a copy, never modified) **/
+	final BufferedImage image;
+
+	/** Image title, used to name the outputs **/
+	final String title;
+
+	/** Folder of the image's file, null if unknown **/
+	final String sourceDir;
+
+	/** Detection threshold **/
+	final float threshold;
+
+	/** Minimum size of the tracks, in pixels **/
+	final float minimumSize;
+
+	/** Minimum number of frames of the tracks **/
+	final float minimumFrames;
+
+	/** True to use the bidirectional model **/
+	final boolean useBidirectional;
+
+	/** Decision threshold of the bidirectional model **/
+	final double decisionThreshold;
+
+	/** Time interval between two lines of the kymograph, and size of a pixel **/
+	final double timeSize, spaceSize;
+
+	/** True to use physical units in the postprocessing table **/
+	final boolean usePhysical;
+
+	/** True to split the tracks into run, pause and reversal segments **/
+	final boolean segmentTracks;
+
+	/** Segments: velocity below which the particle is considered as paused, minimum duration in frames **/
+	final double segPauseVelocity, segMinFrames;
+
+	/** Path to WolframScript **/
+	final String wolframScriptPath;
+
+	/** Folder of the local KymoButler installation **/
+	final String kymoButlerPath;
+
+	/** Target device of the networks (GPU or CPU) **/
+	final String targetDevice;
+
+	/** Folder where the session folder is created, null to use the image's folder **/
+	final String outputDir;
+
+	/** Folder used when neither an output folder nor the image's folder is known **/
+	final String defaultOutputDir;
+
+	/** Maximum time allowed to the analysis, in ms **/
+	final long timeOutMs;
+
+	/** Size of the results cache, in MB (0 to disable) **/
+	final double resultCacheMB;
+
+	/** Folder of the results cache **/
+	final String cacheDir;
+
+	/** Tiling: height of the time windows, in rows (0 to analyse the kymograph at once) **/
+	final int tileRows;
+
+	/** Tiling: number of rows shared by consecutive windows **/
+	final int tileOverlap;
+
+	/** Tiling: number of windows analysed at once (also used for the regions of the pre-scan) **/
+	final int tileWorkers;
+
+	/** True to pre-scan the kymograph and analyse only the regions holding signal **/
+	final boolean prescan;
+
+	/** Pre-scan: number of times the noise by which a region should stand out from the background **/
+	final double prescanSnr;
+
+	/** True to export the network's probability maps, and extract tracks from the cached maps when only the thresholds change **/
+	final boolean probabilityMaps;
+
+	/**
+	 * Builds a request from a builder
+	 * @param builder the builder
+	 */
+	private KymoButlerAnalysisRequest(Builder builder) {
+		image=builder.image;
+		title=builder.title;
+		sourceDir=builder.sourceDir;
+		threshold=builder.threshold;
+		minimumSize=builder.minimumSize;
+		minimumFrames=builder.minimumFrames;
+		useBidirectional=builder.useBidirectional;
+		decisionThreshold=builder.decisionThreshold;
+		timeSize=builder.timeSize;
+		spaceSize=builder.spaceSize;
+		usePhysical=builder.usePhysical;
+		segmentTracks=builder.segmentTracks;
+		segPauseVelocity=builder.segPauseVelocity;
+		segMinFrames=builder.segMinFrames;
+		wolframScriptPath=builder.wolframScriptPath;
+		kymoButlerPath=builder.kymoButlerPath;
+		targetDevice=builder.targetDevice;
+		outputDir=builder.outputDir;
+		defaultOutputDir=builder.defaultOutputDir;
+		timeOutMs=builder.timeOutMs;
+		resultCacheMB=builder.resultCacheMB;
+		cacheDir=builder.cacheDir;
+		tileRows=builder.tileRows;
+		tileOverlap=builder.tileOverlap;
+		tileWorkers=builder.tileWorkers;
+		prescan=builder.prescan;
+		prescanSnr=builder.prescanSnr;
+		probabilityMaps=builder.probabilityMaps;
+	}
+
+	/**
+	 * Returns a new builder, with default values
+	 * @return the builder
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Returns a new builder, whose backend settings and defaults are read from the KymoButler preferences
+	 * @return the builder
+	 */
+	public static Builder fromPreferences() {
+		return new Builder().readPreferences();
+	}
+
+	/**
+	 * Returns a new builder, initialised with the values of this request
+	 * @return the builder
+	 */
+	public Builder toBuilder() {
+		return new Builder(this);
+	}
+
+	/**
+	 * Returns the folder where the session folder of this request is created: the output folder if set,
+	 * otherwise the image's folder, otherwise the default folder
+	 * @return the folder
+	 */
+	public String getSessionParentDir() {
+		if(outputDir!=null) return outputDir;
+		if(sourceDir!=null) return sourceDir;
+		return defaultOutputDir;
+	}
+
+	/**
+	 * Returns the parameters the outputs depend on, part of the results cache key
+	 * @return the parameters, as a String
+	 */
+	String getCacheParameters() {
+		return "p="+threshold+";minSz="+minimumSize+";minFr="+minimumFrames+";tsz="+timeSize+";xsz="+spaceSize
+				+";useBi="+useBidirectional+";vthr="+decisionThreshold+";usePhys="+usePhysical;
+	}
+
+	/**
+	 * Returns all the settings the outputs depend on, apart from the image: the parameters of the results cache key,
+	 * plus the segments, tiling, pre-scan and probability maps settings. Used to tell whether a batch item analysed
+	 * earlier may be reused
+	 * @return the settings, as a String
+	 */
+	public String getOutputParameters() {
+		return getCacheParameters()+";seg="+segmentTracks+(segmentTracks?";segV="+segPauseVelocity+";segFr="+segMinFrames:"")
+				+";tile="+tileRows+(tileRows>0?";overlap="+tileOverlap:"")+";prescan="+prescan+(prescan?";snr="+prescanSnr:"")
+				+";maps="+probabilityMaps;
+	}
+
+	/** @return the image to analyse (must not be modified) **/
+	public BufferedImage getImage() {
+		return image;
+	}
+
+	/** @return the image title **/
+	public String getTitle() {
+		return title;
+	}
+
+	/** @return the folder of the image's file, null if unknown **/
+	public String getSourceDir() {
+		return sourceDir;
+	}
+
+	/** @return the detection threshold **/
+	public float getThreshold() {
+		return threshold;
+	}
+
+	/** @return the minimum size of the tracks, in pixels **/
+	public float getMinimumSize() {
+		return minimumSize;
+	}
+
+	/** @return the minimum number of frames of the tracks **/
+	public float getMinimumFrames() {
+		return minimumFrames;
+	}
+
+	/** @return true if the bidirectional model is used **/
+	public boolean isBidirectional() {
+		return useBidirectional;
+	}
+
+	/** @return the decision threshold of the bidirectional model **/
+	public double getDecisionThreshold() {
+		return decisionThreshold;
+	}
+
+	/** @return the time interval between two lines of the kymograph **/
+	public double getTimeSize() {
+		return timeSize;
+	}
+
+	/** @return the size of a pixel **/
+	public double getSpaceSize() {
+		return spaceSize;
+	}
+
+	/** @return true if the postprocessing table uses physical units **/
+	public boolean isUsePhysical() {
+		return usePhysical;
+	}
+
+	/** @return true if the tracks are split into segments **/
+	public boolean isSegmentTracks() {
+		return segmentTracks;
+	}
+
+	/** @return the path to WolframScript **/
+	public String getWolframScriptPath() {
+		return wolframScriptPath;
+	}
+
+	/** @return the folder of the local KymoButler installation **/
+	public String getKymoButlerPath() {
+		return kymoButlerPath;
+	}
+
+	/** @return the folder where the session folder is created, null to use the image's folder **/
+	public String getOutputDir() {
+		return outputDir;
+	}
+
+	/** @return the maximum time allowed to the analysis, in ms **/
+	public long getTimeOutMs() {
+		return timeOutMs;
+	}
+
+	/** @return the height of the time windows, in rows (0 if the kymograph is analysed at once) **/
+	public int getTileRows() {
+		return tileRows;
+	}
+
+	/** @return true if the probability maps are exported and used **/
+	public boolean isProbabilityMaps() {
+		return probabilityMaps;
+	}
+
+	/**
+	 * Builds KymoButlerAnalysisRequest objects. Builders are not thread-safe, the requests they build are
+	 */
+	public static final class Builder {
+		BufferedImage image=null;
+		String title="kymograph";
+		String sourceDir=null;
+		float threshold=0.2f;
+		float minimumSize=3;
+		float minimumFrames=3;
+		boolean useBidirectional=false;
+		double decisionThreshold=0.5;
+		double timeSize=1.0, spaceSize=1.0;
+		boolean usePhysical=true;
+		boolean segmentTracks=false;
+		double segPauseVelocity=0.1, segMinFrames=3;
+		String wolframScriptPath="wolframscript";
+		String kymoButlerPath="";
+		String targetDevice="GPU";
+		String outputDir=null;
+		String defaultOutputDir=System.getProperty("java.io.tmpdir");
+		long timeOutMs=120000;
+		double resultCacheMB=0;
+		String cacheDir=null;
+		int tileRows=0, tileOverlap=64, tileWorkers=2;
+		boolean prescan=false;
+		double prescanSnr=3;
+		boolean probabilityMaps=false;
+
+		/**
+		 * Builds a new builder, with default values
+		 */
+		Builder() {}
+
+		/**
+		 * Builds a new builder, with the values of a request
+		 * @param request the request
+		 */
+		Builder(KymoButlerAnalysisRequest request) {
+			image=request.image;
+			title=request.title;
+			sourceDir=request.sourceDir;
+			threshold=request.threshold;
+			minimumSize=request.minimumSize;
+			minimumFrames=request.minimumFrames;
+			useBidirectional=request.useBidirectional;
+			decisionThreshold=request.decisionThreshold;
+			timeSize=request.timeSize;
+			spaceSize=request.spaceSize;
+			usePhysical=request.usePhysical;
+			segmentTracks=request.segmentTracks;
+			segPauseVelocity=request.segPauseVelocity;
+			segMinFrames=request.segMinFrames;
+			wolframScriptPath=request.wolframScriptPath;
+			kymoButlerPath=request.kymoButlerPath;
+			targetDevice=request.targetDevice;
+			outputDir=request.outputDir;
+			defaultOutputDir=request.defaultOutputDir;
+			timeOutMs=request.timeOutMs;
+			resultCacheMB=request.resultCacheMB;
+			cacheDir=request.cacheDir;
+			tileRows=request.tileRows;
+			tileOverlap=request.tileOverlap;
+			tileWorkers=request.tileWorkers;
+			prescan=request.prescan;
+			prescanSnr=request.prescanSnr;
+			probabilityMaps=request.probabilityMaps;
+		}
+
+		/**
+		 * Reads the backend settings and default parameters from the KymoButler preferences
+		 * @return this builder
+		 */
+		Builder readPreferences() {
+			wolframScriptPath=Prefs.get("KymoButler_wolframscript.string", "wolframscript");
+			kymoButlerPath=Prefs.get("KymoButler_localPath.string", "");
+			targetDevice=Prefs.get("KymoButler_targetDevice.string", "GPU");
+			defaultOutputDir=Prefs.get("KymoButler_outputDir.string", System.getProperty("java.io.tmpdir"));
+			useBidirectional=Prefs.get("KymoButler_useBidirectional.boolean", false);
+			decisionThreshold=Prefs.get("KymoButler_decisionThreshold.double", 0.5);
+			usePhysical=Prefs.get("KymoButler_pprocUsePhysical.boolean", true);
+			segmentTracks=Prefs.get("KymoButler_segmentTracks.boolean", true);
+			segPauseVelocity=Prefs.get("KymoButler_segPauseVelocity.double", 0.1);
+			segMinFrames=Prefs.get("KymoButler_segMinFrames.double", 3);
+			resultCacheMB=Prefs.get("KymoButler_resultCacheMB.double", 1024);
+			cacheDir=new File(defaultOutputDir, KymoButlerResultCache.CACHE_FOLDER).getAbsolutePath();
+			timeOutMs=(long) Prefs.get("KymoButler_timeOut.double", 120000);
+			tileRows=(int) Prefs.get("KymoButler_tileRows.double", 0);
+			tileOverlap=(int) Prefs.get("KymoButler_tileOverlap.double", 64);
+			tileWorkers=(int) Prefs.get("KymoButler_tileWorkers.double", 2);
+			prescan=Prefs.get("KymoButler_prescan.boolean", false);
+			prescanSnr=Prefs.get("KymoButler_prescanSnr.double", 3);
+			probabilityMaps=Prefs.get("KymoButler_probabilityMaps.boolean", false);
+			return this;
+		}
+
+		/**
+		 * Sets the image to analyse: its display, title, folder and calibration are copied
+		 * @param imp the image
+		 * @return this builder
+		 */
+		public Builder image(ImagePlus imp) {
+			//ImageJ may wrap the live pixels (e.g. 8-bit images with a custom LUT): the raster is copied
+			BufferedImage display=imp.getBufferedImage();
+			image=KymoButlerTiledAnalysis.crop(display, 0, 0, display.getWidth(), display.getHeight());
+			title=imp.getTitle();
+			FileInfo info=imp.getOriginalFileInfo();
+			sourceDir=info!=null && info.directory!=null && !info.directory.trim().isEmpty()?info.directory:null;
+			Calibration cal=imp.getCalibration();
+			if(cal!=null) {
+				if(cal.frameInterval>0) timeSize=cal.frameInterval;
+				if(cal.pixelWidth>0) spaceSize=cal.pixelWidth;
+			}
+			return this;
+		}
+
+		/**
+		 * Sets the image to analyse, which should not be modified afterwards
+		 * @param image the image
+		 * @param title the image title, used to name the outputs
+		 * @return this builder
+		 */
+		public Builder image(BufferedImage image, String title) {
+			this.image=image;
+			this.title=title;
+			return this;
+		}
+
+		/**
+		 * Sets the detection parameters
+		 * @param threshold the detection threshold
+		 * @param minimumSize the minimum size of the tracks, in pixels
+		 * @param minimumFrames the minimum number of frames of the tracks
+		 * @return this builder
+		 */
+		public Builder parameters(float threshold, float minimumSize, float minimumFrames) {
+			this.threshold=threshold;
+			this.minimumSize=minimumSize;
+			this.minimumFrames=minimumFrames;
+			return this;
+		}
+
+		/**
+		 * Sets the model
+		 * @param useBidirectional true to use the bidirectional model
+		 * @param decisionThreshold the decision threshold of the bidirectional model
+		 * @return this builder
+		 */
+		public Builder bidirectional(boolean useBidirectional, double decisionThreshold) {
+			this.useBidirectional=useBidirectional;
+			this.decisionThreshold=decisionThreshold;
+			return this;
+		}
+
+		/**
+		 * Sets the calibration
+		 * @param timeSize time interval between two lines of the kymograph
+		 * @param spaceSize size of a pixel
+		 * @param usePhysical true to use physical units in the postprocessing table
+		 * @return this builder
+		 */
+		public Builder calibration(double timeSize, double spaceSize, boolean usePhysical) {
+			this.timeSize=timeSize;
+			this.spaceSize=spaceSize;
+			this.usePhysical=usePhysical;
+			return this;
+		}
+
+		/**
+		 * Sets the segmentation of the tracks into run, pause and reversal segments
+		 * @param segmentTracks true to write the segments table
+		 * @param pauseVelocity velocity below which the particle is considered as paused
+		 * @param minFrames minimum duration of a segment, in frames
+		 * @return this builder
+		 */
+		public Builder segments(boolean segmentTracks, double pauseVelocity, double minFrames) {
+			this.segmentTracks=segmentTracks;
+			this.segPauseVelocity=pauseVelocity;
+			this.segMinFrames=minFrames;
+			return this;
+		}
+
+		/**
+		 * Sets the backend
+		 * @param wolframScriptPath path to WolframScript
+		 * @param kymoButlerPath folder of the local KymoButler installation
+		 * @param targetDevice target device of the networks (GPU or CPU)
+		 * @return this builder
+		 */
+		public Builder backend(String wolframScriptPath, String kymoButlerPath, String targetDevice) {
+			this.wolframScriptPath=wolframScriptPath;
+			this.kymoButlerPath=kymoButlerPath;
+			this.targetDevice=targetDevice;
+			return this;
+		}
+
+		/**
+		 * Sets the folder where the session folder is created
+		 * @param outputDir the folder, null to use the image's folder
+		 * @return this builder
+		 */
+		public Builder outputDir(String outputDir) {
+			this.outputDir=outputDir;
+			return this;
+		}
+
+		/**
+		 * Sets the folder where the session folder is created when neither the output folder nor the image's folder is set
+		 * @param defaultOutputDir the folder
+		 * @return this builder
+		 */
+		public Builder defaultOutputDir(String defaultOutputDir) {
+			this.defaultOutputDir=defaultOutputDir;
+			return this;
+		}
+
+		/**
+		 * Sets the maximum time allowed to the analysis
+		 * @param timeOutMs the time, in ms
+		 * @return this builder
+		 */
+		public Builder timeOut(long timeOutMs) {
+			this.timeOutMs=timeOutMs;
+			return this;
+		}
+
+		/**
+		 * Sets the results cache
+		 * @param cacheDir folder of the cache
+		 * @param sizeMB size of the cache, in MB (0 to disable)
+		 * @return this builder
+		 */
+		public Builder resultCache(String cacheDir, double sizeMB) {
+			this.cacheDir=cacheDir;
+			this.resultCacheMB=sizeMB;
+			return this;
+		}
+
+		/**
+		 * Sets the tiling of long kymographs along the time axis
+		 * @param rows height of the time windows, in rows (0 to analyse the kymograph at once)
+		 * @param overlap number of rows shared by consecutive windows
+		 * @param workers number of windows analysed at once
+		 * @return this builder
+		 */
+		public Builder tiling(int rows, int overlap, int workers) {
+			tileRows=Math.max(0, rows);
+			tileOverlap=Math.max(0, overlap);
+			tileWorkers=Math.max(1, workers);
+			return this;
+		}
+
+		/**
+		 * Sets the pre-scan, which skips the regions of the kymograph without signal
+		 * @param prescan true to analyse only the regions holding signal
+		 * @param snr number of times the noise by which a region should stand out from the background
+		 * @return this builder
+		 */
+		public Builder prescan(boolean prescan, double snr) {
+			this.prescan=prescan;
+			this.prescanSnr=snr;
+			return this;
+		}
+
+		/**
+		 * Sets the export of the probability maps: once cached, tracks are extracted from them in Java when only the threshold,
+		 * minimum size or minimum frames change, without running the network (requires the results cache)
+		 * @param probabilityMaps true to export and use the probability maps
+		 * @return this builder
+		 */
+		public Builder probabilityMaps(boolean probabilityMaps) {
+			this.probabilityMaps=probabilityMaps;
+			return this;
+		}
+
+		/**
+		 * Returns all the settings the outputs depend on, apart from the image, as getOutputParameters() of the request
+		 * this builder would build
+		 * @return the settings, as a String
+		 */
+		public String getOutputParameters() {
+			return new KymoButlerAnalysisRequest(this).getOutputParameters();
+		}
+
+		/**
+		 * Builds the request
+		 * @return the request
+		 * @throws IllegalStateException if no image was set
+		 */
+		public KymoButlerAnalysisRequest build() {
+			if(image==null) throw new IllegalStateException("No image set for analysis");
+			return new KymoButlerAnalysisRequest(this);
+		}
+	}
+}
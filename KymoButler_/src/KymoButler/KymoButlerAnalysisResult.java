@@ -0,0 +1,204 @@
+/**
+*
+*  KymoButlerAnalysisResult.java, 18 oct. 2026
+*
+*  Immutable outcome of one KymoButler analysis.
+*
+*/
+
+/*
+ * This file is part of KymoButler for ImageJ and is distributed
+ * under the terms of the GNU General Public License v3.0 or later.
+ */
+
+package KymoButler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class holds the outcome of a KymoButler analysis run by KymoButlerIO.analyze(): the response, the paths
+ * to the output files, the timings and the messages logged during the analysis. Results are immutable, and may
+ * be shared between threads.
+ *
+ */
+public final class KymoButlerAnalysisResult {
+	/** True if KymoButler ran to the end and returned a response **/
+	final boolean success;
+
+	/** KymoButler response (JSON), null if none was read **/
+	final String response;
+
+	/** Session folder where the outputs are written, null if it could not be created **/
+	final String sessionDir;
+
+	/** Base name of the output files **/
+	final String baseName;
+
+	/** True if the outputs were found in the results cache **/
+	final boolean fromCache;
+
+	/** Path to the segments table, null if it was not written **/
+	final String segmentsTablePath;
+
+	/** Total duration of the analysis, and time spent in WolframScript, in ms **/
+	final long totalMs, kernelMs;
+
+	/** Messages logged during the analysis **/
+	final List<String> messages;
+
+	/** True if the tracks were extracted in Java from cached probability maps, rather than by KymoButler's tracking **/
+	final boolean fromProbabilityMaps;
+
+	/**
+	 * Builds a result
+	 * @param success true if KymoButler ran to the end and returned a response
+	 * @param response KymoButler response, null if none was read
+	 * @param sessionDir session folder, null if it could not be created
+	 * @param baseName base name of the output files
+	 * @param fromCache true if the outputs were found in the results cache
+	 * @param segmentsTablePath path to the segments table, null if it was not written
+	 * @param totalMs total duration of the analysis, in ms
+	 * @param kernelMs time spent in WolframScript, in ms
+	 * @param messages messages logged during the analysis (copied)
+	 */
+	KymoButlerAnalysisResult(boolean success, String response, String sessionDir, String baseName, boolean fromCache, String segmentsTablePath,
+			long totalMs, long kernelMs, List<String> messages) {
+		this(success, response, sessionDir, baseName, fromCache, segmentsTablePath, totalMs, kernelMs, messages, false);
+	}
+
+	/**
+	 * Builds a result
+	 * @param success true if KymoButler ran to the end and returned a response
+	 * @param response KymoButler response, null if none was read
+	 * @param sessionDir session folder, null if it could not be created
+	 * @param baseName base name of the output files
+	 * @param fromCache true if the outputs were found in the results cache
+	 * @param segmentsTablePath path to the segments table, null if it was not written
+	 * @param totalMs total duration of the analysis, in ms
+	 * @param kernelMs time spent in WolframScript, in ms
+	 * @param messages messages logged during the analysis (copied)
+	 * @param fromProbabilityMaps true if the tracks were extracted in Java from cached probability maps
+	 */
+	KymoButlerAnalysisResult(boolean success, String response, String sessionDir, String baseName, boolean fromCache, String segmentsTablePath,
+			long totalMs, long kernelMs, List<String> messages, boolean fromProbabilityMaps) {
+		this.success=success;
+		this.response=response;
+		this.sessionDir=sessionDir;
+		this.baseName=baseName;
+		this.fromCache=fromCache;
+		this.segmentsTablePath=segmentsTablePath;
+		this.totalMs=totalMs;
+		this.kernelMs=kernelMs;
+		this.messages=Collections.unmodifiableList(new ArrayList<String>(messages));
+		this.fromProbabilityMaps=fromProbabilityMaps;
+	}
+
+	/**
+	 * Tells whether KymoButler ran to the end and returned a response (which may still report an error)
+	 * @return true if a response is available
+	 */
+	public boolean isSuccess() {
+		return success;
+	}
+
+	/**
+	 * Returns KymoButler's response, to be read with KymoButlerResponseParser
+	 * @return the response (JSON), or null if none was read
+	 */
+	public String getResponse() {
+		return response;
+	}
+
+	/**
+	 * Parses the tracks of the response; each call returns new objects
+	 * @return the tracks, or null if the response holds none
+	 */
+	public KymoButlerTracks getTracks() {
+		if(response==null || !KymoButlerResponseParser.isJSON(response)) return null;
+		KymoButlerResponseParser parser=new KymoButlerResponseParser(response);
+		return parser.hasError()?null:parser.getTrackData();
+	}
+
+	/**
+	 * Tells whether the outputs were found in the results cache, rather than computed
+	 * @return true if the outputs came from the cache
+	 */
+	public boolean isFromCache() {
+		return fromCache;
+	}
+
+	/**
+	 * Tells whether the tracks were extracted in Java from cached probability maps, which approximates KymoButler's
+	 * tracking (crossing tracks are split, the decision network is not used), rather than computed by KymoButler
+	 * @return true if the tracks came from the probability maps
+	 */
+	public boolean isFromProbabilityMaps() {
+		return fromProbabilityMaps;
+	}
+
+	/**
+	 * Returns the session folder, where the outputs are written
+	 * @return the folder, or null if it could not be created
+	 */
+	public String getSessionDir() {
+		return sessionDir;
+	}
+
+	/** @return the path to the image sent to KymoButler, null if there is no session folder **/
+	public String getInputPath() {
+		return getPath("_input.png");
+	}
+
+	/** @return the path to the response file, null if there is no session folder **/
+	public String getResponsePath() {
+		return getPath("_response.json");
+	}
+
+	/** @return the path to the overlay image, null if there is no session folder **/
+	public String getOverlayPath() {
+		return getPath("_overlay.tif");
+	}
+
+	/** @return the path to the tracks table, null if there is no session folder **/
+	public String getTracksCsvPath() {
+		return getPath("_tracks_long.csv");
+	}
+
+	/** @return the path to the postprocessing table, null if there is no session folder **/
+	public String getPprocTablePath() {
+		return getPath("_pproc_table.csv");
+	}
+
+	/** @return the path to the segments table, null if it was not written **/
+	public String getSegmentsTablePath() {
+		return segmentsTablePath;
+	}
+
+	/** @return the total duration of the analysis, in ms **/
+	public long getTotalMs() {
+		return totalMs;
+	}
+
+	/** @return the time spent in WolframScript, in ms (0 for cached results) **/
+	public long getKernelMs() {
+		return kernelMs;
+	}
+
+	/** @return the messages logged during the analysis (unmodifiable) **/
+	public List<String> getMessages() {
+		return messages;
+	}
+
+	/**
+	 * Returns the path to one of the output files
+	 * @param suffix the file's suffix, after the base name
+	 * @return the path, or null if there is no session folder
+	 */
+	String getPath(String suffix) {
+		if(sessionDir==null) return null;
+		return new File(sessionDir, baseName+suffix).getAbsolutePath();
+	}
+}
@@ -0,0 +1,271 @@
+/**
+*
+*  KymoButlerBatchJournal.java, 18 oct. 2026
+*
+*  Append-only journal of a batch run, allowing interrupted batches to be resumed.
+*
+*/
+
+/*
+ * This file is part of KymoButler for ImageJ and is distributed
+ * under the terms of the GNU General Public License v3.0 or later.
+ */
+
+package KymoButler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import ij.IJ;
+
+/**
+ * This class records the progress of a batch in a JSON lines file at the root of the batch folder:
+ * one line when a batch starts (with its parameters), then one line each time an item starts, succeeds,
+ * fails or is skipped (with its output folder). Lines are only ever appended, and each one is written to disk
+ * before the batch goes on, so the journal survives a crash of ImageJ or of the kernel.
+ * When resuming, items whose last record is a success obtained with the same parameters on the same file
+ * (same size and modification date) are considered done; all others are run again.
+ *
+ */
+public class KymoButlerBatchJournal {
+	/** Name of the journal file, at the root of the batch folder **/
+	public static final String JOURNAL_NAME="kymobutler_batch_journal.jsonl";
+
+	/** Item status: analysis started **/
+	public static final String STARTED="started";
+
+	/** Item status: analysis completed **/
+	public static final String DONE="done";
+
+	/** Item status: analysis failed **/
+	public static final String FAILED="failed";
+
+	/** Item status: item skipped (e.g. not an image) **/
+	public static final String SKIPPED="skipped";
+
+	/** Root folder of the batch **/
+	final File root;
+
+	/** The journal file **/
+	final File file;
+
+	/** Fingerprint of the analysis parameters **/
+	final String paramsFingerprint;
+
+	/** Last record of each item found in the journal when it was opened, keyed by relative path **/
+	final Map<String, JSONObject> previous=new HashMap<String, JSONObject>();
+
+	/** Output stream, opened in append mode **/
+	FileOutputStream out=null;
+
+	/**
+	 * Opens the journal of a batch folder, reading the records left by previous runs if any
+	 * @param root the root folder of the batch
+	 * @param paramsFingerprint a fingerprint of the analysis parameters, items done with other parameters being run again
+	 */
+	public KymoButlerBatchJournal(File root, String paramsFingerprint) {
+		this(root, JOURNAL_NAME, paramsFingerprint);
+	}
+
+	/**
+	 * Opens a journal with a specific name in a batch folder, e.g. one journal per node of a distributed batch
+	 * @param root the root folder of the batch
+	 * @param name the journal's file name
+	 * @param paramsFingerprint a fingerprint of the analysis parameters, items done with other parameters being run again
+	 */
+	public KymoButlerBatchJournal(File root, String name, String paramsFingerprint) {
+		this.root=root;
+		this.file=new File(root, name);
+		this.paramsFingerprint=paramsFingerprint;
+		readPrevious();
+	}
+
+	/**
+	 * Returns the journal file
+	 * @return the file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Records the start of a batch
+	 * @param parameters the analysis parameters
+	 * @param nItems the number of items to process
+	 * @param resume true if items done during previous runs are skipped
+	 */
+	public void startBatch(JSONObject parameters, int nItems, boolean resume) {
+		JSONObject record=new JSONObject();
+		record.put("event", "batch");
+		record.put("params", paramsFingerprint);
+		record.put("parameters", parameters);
+		record.put("items", nItems);
+		record.put("resume", resume);
+		append(record);
+	}
+
+	/**
+	 * Checks whether an item was completed by a previous run, with the same parameters, on the same file
+	 * @param item the item's file
+	 * @return true if the item may be skipped
+	 */
+	public boolean isDone(File item) {
+		JSONObject last=previous.get(relativePath(item));
+		return last!=null && DONE.equals(last.optString("status")) && paramsFingerprint.equals(last.optString("params"))
+				&& last.optLong("size", -1)==item.length() && last.optLong("modified", -1)==item.lastModified();
+	}
+
+	/**
+	 * Returns the output folders of the items completed by previous runs, as checked by isDone(File)
+	 * @return the output folders (empty if none was recorded), keyed by the items' paths relative to the batch root
+	 */
+	public Map<String, String> getDoneOutputs() {
+		Map<String, String> outputs=new HashMap<String, String>();
+		for(Map.Entry<String, JSONObject> entry : previous.entrySet()) {
+			if(isDone(new File(root, entry.getKey()))) outputs.put(entry.getKey(), entry.getValue().optString("output", ""));
+		}
+		return outputs;
+	}
+
+	/**
+	 * Returns the status of an item at the end of the previous runs
+	 * @param item the item's file
+	 * @return the status, or null if the item was never processed
+	 */
+	public String getPreviousStatus(File item) {
+		JSONObject last=previous.get(relativePath(item));
+		return last==null?null:last.optString("status", null);
+	}
+
+	/**
+	 * Appends the status of an item to the journal
+	 * @param item the item's file
+	 * @param status the item's status (STARTED, DONE, FAILED or SKIPPED)
+	 * @param outputDir the item's output folder, or null
+	 * @param message an optional message (e.g. the cause of a failure), or null
+	 */
+	public void record(File item, String status, String outputDir, String message) {
+		JSONObject record=new JSONObject();
+		record.put("event", "item");
+		record.put("item", relativePath(item));
+		record.put("status", status);
+		record.put("params", paramsFingerprint);
+		record.put("size", item.length());
+		record.put("modified", item.lastModified());
+		if(outputDir!=null) record.put("output", outputDir);
+		if(message!=null) record.put("message", message);
+		append(record);
+	}
+
+	/**
+	 * Closes the journal
+	 */
+	public synchronized void close() {
+		if(out==null) return;
+		try {
+			out.close();
+		} catch (IOException e) {
+			IJ.log("[KymoButler] Unable to close batch journal "+file.getAbsolutePath());
+		}
+		out=null;
+	}
+
+	/**
+	 * Computes a fingerprint of analysis parameters, independent of the order of their keys
+	 * @param parameters the parameters
+	 * @return the fingerprint, as a hexadecimal SHA-1 digest
+	 */
+	public static String fingerprint(JSONObject parameters) {
+		StringBuilder text=new StringBuilder();
+		for(String key : new TreeSet<String>(parameters.keySet())) text.append(key).append('=').append(parameters.get(key)).append(';');
+		try {
+			StringBuilder sb=new StringBuilder();
+			for(byte b : MessageDigest.getInstance("SHA-1").digest(text.toString().getBytes(StandardCharsets.UTF_8))) sb.append(String.format("%02x", b));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Appends a record, time-stamped, and forces it to disk
+	 * @param record the record
+	 */
+	synchronized void append(JSONObject record) {
+		record.put("time", new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date()));
+		try {
+			if(out==null) {
+				boolean truncated=endsWithPartialLine();
+				out=new FileOutputStream(file, true);
+				if(truncated) out.write('\n');
+			}
+			out.write((record.toString()+"\n").getBytes(StandardCharsets.UTF_8));
+			out.getFD().sync();
+		} catch (IOException e) {
+			IJ.log("[KymoButler] Unable to write batch journal "+file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Checks whether the journal ends with an incomplete line, left by a crash, which should be terminated before appending
+	 * @return true if the last character of the journal is not a line feed
+	 * @throws IOException if the journal could not be read
+	 */
+	boolean endsWithPartialLine() throws IOException {
+		if(!file.isFile() || file.length()==0) return false;
+		try (RandomAccessFile raf=new RandomAccessFile(file, "r")) {
+			raf.seek(raf.length()-1);
+			return raf.read()!='\n';
+		}
+	}
+
+	/**
+	 * Reads the records of previous runs, keeping the last one of each item. Incomplete lines, e.g. written during a crash, are ignored
+	 */
+	void readPrevious() {
+		if(!file.isFile()) return;
+		try (BufferedReader reader=new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while((line=reader.readLine())!=null) {
+				if(line.trim().isEmpty()) continue;
+				try {
+					JSONObject record=new JSONObject(line);
+					if("item".equals(record.optString("event"))) previous.put(record.getString("item"), record);
+				} catch (JSONException e) {
+					//Truncated line: ignored
+				}
+			}
+		} catch (IOException e) {
+			IJ.log("[KymoButler] Unable to read batch journal "+file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Returns the path of an item relative to the batch root, with forward slashes
+	 * @param item the item's file
+	 * @return the relative path
+	 */
+	String relativePath(File item) {
+		try {
+			return root.getCanonicalFile().toPath().relativize(item.getCanonicalFile().toPath()).toString().replace(File.separatorChar, '/');
+		} catch (IOException | IllegalArgumentException e) {
+			return item.getAbsolutePath();
+		}
+	}
+}
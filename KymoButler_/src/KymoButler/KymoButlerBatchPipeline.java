@@ -0,0 +1,231 @@
+/**
+*
+*  KymoButlerBatchPipeline.java, 18 oct. 2026
+*
+*  Staged batch executor, with bounded queues between stages.
+*
+*/
+
+/*
+ * This file is part of KymoButler for ImageJ and is distributed
+ * under the terms of the GNU General Public License v3.0 or later.
+ */
+
+package KymoButler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ij.IJ;
+
+/**
+ * This class runs batch items through a sequence of stages, each stage having its own thread(s) and
+ * a bounded input queue: while one item is in a slow stage (e.g. inference), the next items are being
+ * prepared and the previous ones are being written, within a fixed number of items in flight.
+ * Items are submitted with submit(), then close() waits for all of them to go through the pipeline.
+ * The time each stage spends working, waiting for input and waiting for room downstream is recorded,
+ * to show where the bottleneck is.
+ *
+ * @param <T> the type of the items, each stage completing the item it receives
+ */
+public class KymoButlerBatchPipeline<T> {
+	/**
+	 * A processing stage
+	 * @param <T> the type of the items
+	 */
+	public interface Stage<T> {
+		/**
+		 * Processes an item
+		 * @param item the item
+		 * @return true to pass the item to the next stage, false to drop it
+		 * @throws Exception if the item could not be processed: it is then logged and dropped
+		 */
+		boolean process(T item) throws Exception;
+	}
+
+	/** Marks the end of the items, in the queues **/
+	private static final Object END=new Object();
+
+	/** Capacity of the queue in front of each stage **/
+	final int capacity;
+
+	/** Stages names **/
+	final List<String> names=new ArrayList<String>();
+
+	/** Stages **/
+	final List<Stage<T>> stages=new ArrayList<Stage<T>>();
+
+	/** Number of threads per stage **/
+	final List<Integer> threadCounts=new ArrayList<Integer>();
+
+	/** Queue in front of each stage **/
+	final List<BlockingQueue<Object>> queues=new ArrayList<BlockingQueue<Object>>();
+
+	/** Time spent, per stage, processing items, waiting for an item and waiting to pass an item on, in ns **/
+	AtomicLong[] busy, starved, blocked;
+
+	/** Number of items processed, per stage **/
+	AtomicInteger[] processed;
+
+	/** All the stages threads **/
+	final List<Thread> threads=new ArrayList<Thread>();
+
+	/** Start of the pipeline, in ns **/
+	long startTime=0;
+
+	/** End of the pipeline, in ns **/
+	long endTime=0;
+
+	/**
+	 * Builds a new, empty pipeline
+	 * @param capacity capacity of the queue in front of each stage (at least 1)
+	 */
+	public KymoButlerBatchPipeline(int capacity) {
+		this.capacity=Math.max(1, capacity);
+	}
+
+	/**
+	 * Appends a stage: should be called before start()
+	 * @param name the stage's name, used in the report
+	 * @param stage the stage
+	 * @param nThreads the number of threads working on this stage
+	 * @return this pipeline
+	 */
+	public KymoButlerBatchPipeline<T> addStage(String name, Stage<T> stage, int nThreads) {
+		names.add(name);
+		stages.add(stage);
+		threadCounts.add(Math.max(1, nThreads));
+		return this;
+	}
+
+	/**
+	 * Starts the stages threads
+	 */
+	public void start() {
+		int n=stages.size();
+		busy=new AtomicLong[n];
+		starved=new AtomicLong[n];
+		blocked=new AtomicLong[n];
+		processed=new AtomicInteger[n];
+		for(int s=0; s<n; s++) {
+			queues.add(new ArrayBlockingQueue<Object>(capacity));
+			busy[s]=new AtomicLong();
+			starved[s]=new AtomicLong();
+			blocked[s]=new AtomicLong();
+			processed[s]=new AtomicInteger();
+		}
+
+		startTime=System.nanoTime();
+		for(int s=0; s<n; s++) {
+			AtomicInteger running=new AtomicInteger(threadCounts.get(s));
+			for(int t=0; t<threadCounts.get(s); t++) {
+				Thread thread=new Thread(new Worker(s, running), "KymoButler batch "+names.get(s)+" "+t);
+				threads.add(thread);
+				thread.start();
+			}
+		}
+	}
+
+	/**
+	 * Submits an item to the first stage, waiting for room in its queue if needed
+	 * @param item the item
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void submit(T item) throws InterruptedException {
+		queues.get(0).put(item);
+	}
+
+	/**
+	 * Signals that no more items will be submitted, then waits for all the items to go through the pipeline
+	 * @throws InterruptedException if interrupted while waiting: the stages are then interrupted
+	 */
+	public void close() throws InterruptedException {
+		queues.get(0).put(END);
+		try {
+			for(Thread thread : threads) thread.join();
+		} catch (InterruptedException e) {
+			for(Thread thread : threads) thread.interrupt();
+			throw e;
+		}
+		endTime=System.nanoTime();
+	}
+
+	/**
+	 * Returns the utilisation of each stage: share of the wall time spent working, waiting for input
+	 * (starved) and waiting for the next stage (blocked), averaged over the stage's threads
+	 * @return the report, one line per stage
+	 */
+	public String getReport() {
+		long wall=Math.max(1, (endTime>0?endTime:System.nanoTime())-startTime);
+		StringBuilder sb=new StringBuilder();
+		sb.append("Pipeline wall time: ").append(wall/1000000).append(" ms\n");
+		for(int s=0; s<stages.size(); s++) {
+			double norm=100.0/((double) wall*threadCounts.get(s));
+			sb.append(names.get(s)).append(": ").append(processed[s].get()).append(" item(s), busy ")
+				.append(IJ.d2s(busy[s].get()*norm, 1)).append("%, starved ")
+				.append(IJ.d2s(starved[s].get()*norm, 1)).append("%, blocked ")
+				.append(IJ.d2s(blocked[s].get()*norm, 1)).append("% (")
+				.append(busy[s].get()/1000000).append(" ms busy)\n");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * A stage thread: takes items from the stage's queue until the end mark is found
+	 */
+	private class Worker implements Runnable {
+		/** Index of the stage **/
+		final int stage;
+
+		/** Number of threads of the stage still running: the last one passes the end mark on **/
+		final AtomicInteger running;
+
+		Worker(int stage, AtomicInteger running) {
+			this.stage=stage;
+			this.running=running;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public void run() {
+			BlockingQueue<Object> in=queues.get(stage);
+			BlockingQueue<Object> out=stage+1<stages.size()?queues.get(stage+1):null;
+			try {
+				while(true) {
+					long t0=System.nanoTime();
+					Object next=in.take();
+					long t1=System.nanoTime();
+					starved[stage].addAndGet(t1-t0);
+					if(next==END) {
+						in.put(END);
+						break;
+					}
+
+					boolean pass=false;
+					try {
+						pass=stages.get(stage).process((T) next);
+					} catch (InterruptedException e) {
+						throw e;
+					} catch (Exception e) {
+						IJ.log("[KymoButler] Batch stage "+names.get(stage)+" failed for "+next+": "+e);
+					}
+					long t2=System.nanoTime();
+					busy[stage].addAndGet(t2-t1);
+					processed[stage].incrementAndGet();
+
+					if(pass && out!=null) {
+						out.put(next);
+						blocked[stage].addAndGet(System.nanoTime()-t2);
+					}
+				}
+				if(running.decrementAndGet()==0 && out!=null) out.put(END);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,495 @@
+/**
+*
+*  KymoButlerBatchTables.java, 18 oct. 2026
+*
+*  Batch-wide tables, aggregated as images are analysed.
+*
+*/
+
+/*
+ * This file is part of KymoButler for ImageJ and is distributed
+ * under the terms of the GNU General Public License v3.0 or later.
+ */
+
+package KymoButler;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+
+import ij.IJ;
+
+/**
+ * This class gathers the tracks and postprocessing tables of all the images of a batch into two tables at the
+ * root of the batch folder, each row being prefixed with its source image and session folder. Rows are appended,
+ * through one buffered writer per table, as each image is done; existing batch tables are only read back when resuming.
+ * When resuming, only the rows of the images the journal marks as done, from their recorded session, are kept, so that
+ * images left unfinished (or done with other parameters) are neither counted twice nor mixed in; done images whose
+ * rows are missing (e.g. ImageJ stopped right after the journal record) are read again from their session folder.
+ * Summary statistics of the tracks velocity, duration and distance are updated on the fly (Welford's algorithm)
+ * and written to a summary table after each image.
+ * Durations, distances and velocities use the calibrated t_phys and x_phys columns of the tracks tables
+ * (pixels and frames for uncalibrated images); the distance is the path length, the velocity the distance over the duration.
+ *
+ */
+public class KymoButlerBatchTables {
+	/** Name of the batch tracks table **/
+	public static final String TRACKS_NAME="batch_tracks_long.csv";
+
+	/** Name of the batch postprocessing table **/
+	public static final String PPROC_NAME="batch_pproc_table.csv";
+
+	/** Name of the batch summary table **/
+	public static final String SUMMARY_NAME="batch_summary.csv";
+
+	/** Columns added in front of the images' columns **/
+	static final String PREFIX_HEADER="source_image,session";
+
+	/** Root folder of the batch **/
+	final File root;
+
+	/** Suffix added to the tables' names (e.g. a node identifier), empty for none **/
+	final String suffix;
+
+	/** Writers of the tracks and postprocessing tables **/
+	BufferedWriter tracksWriter=null, pprocWriter=null;
+
+	/** Header of the images' tracks and postprocessing tables, once written **/
+	String tracksHeader=null, pprocHeader=null;
+
+	/** Statistics of the tracks velocity, duration and distance **/
+	final RunningStats velocity=new RunningStats(), duration=new RunningStats(), distance=new RunningStats();
+
+	/** Number of images and tracks aggregated so far **/
+	int nImages=0, nTracks=0;
+
+	/**
+	 * Running mean, variance, minimum and maximum of a series of values (Welford's algorithm)
+	 */
+	public static class RunningStats {
+		/** Number of values **/
+		long n=0;
+
+		/** Mean of the values **/
+		double mean=0;
+
+		/** Sum of the squared differences to the mean **/
+		double m2=0;
+
+		/** Extreme values **/
+		double min=Double.NaN, max=Double.NaN;
+
+		/**
+		 * Adds a value
+		 * @param value the value (NaN and infinite values are ignored)
+		 */
+		public void add(double value) {
+			if(Double.isNaN(value) || Double.isInfinite(value)) return;
+			n++;
+			double delta=value-mean;
+			mean+=delta/n;
+			m2+=delta*(value-mean);
+			min=n==1?value:Math.min(min, value);
+			max=n==1?value:Math.max(max, value);
+		}
+
+		/**
+		 * Returns the number of values
+		 * @return the number of values
+		 */
+		public long getN() {
+			return n;
+		}
+
+		/**
+		 * Returns the mean of the values
+		 * @return the mean, NaN if there is no value
+		 */
+		public double getMean() {
+			return n==0?Double.NaN:mean;
+		}
+
+		/**
+		 * Returns the sample standard deviation of the values
+		 * @return the standard deviation, NaN if there are less than two values
+		 */
+		public double getSD() {
+			return n<2?Double.NaN:Math.sqrt(m2/(n-1));
+		}
+	}
+
+	/**
+	 * Opens the batch tables of a folder
+	 * @param root the root folder of the batch
+	 * @param resumed when resuming a batch, the output folders of the images done by previous runs, keyed by their paths
+	 * relative to the root (see KymoButlerBatchJournal.getDoneOutputs()), whose rows are kept and included in the summary;
+	 * null to start new tables
+	 */
+	public KymoButlerBatchTables(File root, Map<String, String> resumed) {
+		this(root, "", resumed);
+	}
+
+	/**
+	 * Opens batch tables of a folder whose names carry a suffix, so that several writers (e.g. the nodes of a
+	 * distributed batch) never share a file
+	 * @param root the root folder of the batch
+	 * @param suffix suffix added to the tables' names, before their extension (e.g. "_node1"), empty for none
+	 * @param resumed the output folders of the images done by previous runs, whose rows are kept, or null to start new tables
+	 */
+	public KymoButlerBatchTables(File root, String suffix, Map<String, String> resumed) {
+		this.root=root;
+		this.suffix=suffix==null?"":suffix;
+		File tracks=getFile(TRACKS_NAME);
+		File pproc=getFile(PPROC_NAME);
+		Set<String> found=new HashSet<String>();
+		if(resumed!=null) {
+			tracksHeader=readExisting(tracks, true, resumed, found);
+			pprocHeader=readExisting(pproc, false, resumed, found);
+		}
+		try {
+			tracksWriter=new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tracks, tracksHeader!=null), StandardCharsets.UTF_8));
+			pprocWriter=new BufferedWriter(new OutputStreamWriter(new FileOutputStream(pproc, pprocHeader!=null), StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			IJ.log("[KymoButler] Unable to create batch tables in "+root.getAbsolutePath());
+			close();
+			return;
+		}
+		if(resumed!=null) recoverMissing(resumed, found);
+	}
+
+	/**
+	 * Appends the tables of an analysed image to the batch tables, then updates the summary
+	 * @param image the image's file
+	 * @param sessionDir the session folder where the image's outputs are
+	 * @param tracksPath path to the image's tracks table (track_id,t,x,dir,t_phys,x_phys)
+	 * @param pprocPath path to the image's postprocessing table
+	 */
+	public synchronized void add(File image, String sessionDir, String tracksPath, String pprocPath) {
+		if(tracksWriter==null) return;
+		String prefix=quote(relativePath(image))+","+quote(new File(sessionDir).getName())+",";
+		try {
+			tracksHeader=append(tracksPath, tracksWriter, tracksHeader, prefix, true);
+			pprocHeader=append(pprocPath, pprocWriter, pprocHeader, prefix, false);
+			tracksWriter.flush();
+			pprocWriter.flush();
+		} catch (IOException e) {
+			IJ.log("[KymoButler] Unable to add "+image.getName()+" to the batch tables: "+e.getMessage());
+		}
+		nImages++;
+		writeSummary();
+	}
+
+	/**
+	 * Returns one of the tables' files, with the suffix of these tables
+	 * @param name the table's name, one of TRACKS_NAME, PPROC_NAME and SUMMARY_NAME
+	 * @return the file
+	 */
+	public File getFile(String name) {
+		int dot=name.lastIndexOf('.');
+		return new File(root, name.substring(0, dot)+suffix+name.substring(dot));
+	}
+
+	/**
+	 * Returns the velocity statistics of the tracks added so far
+	 * @return the statistics
+	 */
+	public RunningStats getVelocity() {
+		return velocity;
+	}
+
+	/**
+	 * Returns the duration statistics of the tracks added so far
+	 * @return the statistics
+	 */
+	public RunningStats getDuration() {
+		return duration;
+	}
+
+	/**
+	 * Returns the distance statistics of the tracks added so far
+	 * @return the statistics
+	 */
+	public RunningStats getDistance() {
+		return distance;
+	}
+
+	/**
+	 * Closes the tables
+	 */
+	public synchronized void close() {
+		for(BufferedWriter writer : new BufferedWriter[] {tracksWriter, pprocWriter}) {
+			if(writer==null) continue;
+			try {
+				writer.close();
+			} catch (IOException e) {
+				IJ.log("[KymoButler] Unable to close batch table in "+root.getAbsolutePath());
+			}
+		}
+		tracksWriter=null;
+		pprocWriter=null;
+	}
+
+	/**
+	 * Copies the rows of an image's table to a batch table, prefixed with the image and session columns
+	 * @param path path to the image's table
+	 * @param writer the batch table writer
+	 * @param header the header of the batch table's image columns, null if not written yet
+	 * @param prefix the values of the image and session columns, followed by a comma
+	 * @param tracks true for a tracks table, whose tracks are added to the statistics
+	 * @return the header of the batch table's image columns
+	 * @throws IOException if the table could not be read or the rows could not be written
+	 */
+	String append(String path, BufferedWriter writer, String header, String prefix, boolean tracks) throws IOException {
+		if(path==null || !new File(path).isFile()) return header;
+		TrackAccumulator accumulator=tracks?new TrackAccumulator():null;
+		try (BufferedReader reader=new BufferedReader(new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8))) {
+			String line=reader.readLine();
+			if(line==null) return header;
+			if(header==null) {
+				header=line;
+				writer.write(PREFIX_HEADER+","+header);
+				writer.newLine();
+			}else if(!header.equals(line)) {
+				IJ.log("[KymoButler] Batch tables: columns of "+path+" differ from the previous images");
+			}
+			while((line=reader.readLine())!=null) {
+				if(line.trim().isEmpty()) continue;
+				writer.write(prefix);
+				writer.write(line);
+				writer.newLine();
+				if(accumulator!=null) accumulator.add(prefix, split(line), 0);
+			}
+		}
+		if(accumulator!=null) accumulator.flush();
+		return header;
+	}
+
+	/**
+	 * Reads an existing batch table back and rewrites it with the rows of the done images only, from their recorded
+	 * session, adding these images and their tracks to the statistics if requested
+	 * @param file the batch table
+	 * @param tracks true for the tracks table
+	 * @param resumed the output folders of the done images, keyed by their paths relative to the root
+	 * @param found if not null, receives the paths of the done images that have rows in the table
+	 * @return the header of the table's image columns, or null if the table does not exist, is empty or could not be rewritten
+	 */
+	String readExisting(File file, boolean tracks, Map<String, String> resumed, Set<String> found) {
+		if(!file.isFile()) return null;
+		TrackAccumulator accumulator=tracks?new TrackAccumulator():null;
+		Set<String> images=new HashSet<String>();
+		File kept=new File(file.getParentFile(), file.getName()+".tmp");
+		String header=null;
+		int nDropped=0;
+		try (BufferedReader reader=new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+				BufferedWriter writer=new BufferedWriter(new OutputStreamWriter(new FileOutputStream(kept), StandardCharsets.UTF_8))) {
+			String line=reader.readLine();
+			if(line!=null && line.startsWith(PREFIX_HEADER+",")) {
+				header=line.substring(PREFIX_HEADER.length()+1);
+				writer.write(line);
+				writer.newLine();
+				while((line=reader.readLine())!=null) {
+					if(line.trim().isEmpty()) continue;
+					List<String> values=split(line);
+					String output=values.size()>2?resumed.get(values.get(0)):null;
+					if(output==null || output.isEmpty() || !new File(output).getName().equals(values.get(1))) {
+						nDropped++;
+						continue;
+					}
+					writer.write(line);
+					writer.newLine();
+					if(found!=null) found.add(values.get(0));
+					if(accumulator!=null) {
+						accumulator.add(values.get(0)+","+values.get(1), values, 2);
+						images.add(values.get(1));
+					}
+				}
+			}
+		} catch (IOException e) {
+			IJ.log("[KymoButler] Unable to read batch table "+file.getAbsolutePath());
+			kept.delete();
+			return null;
+		}
+		if(header==null) {
+			kept.delete();
+			return null;
+		}
+		try {
+			Files.move(kept.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			IJ.log("[KymoButler] Unable to rewrite batch table "+file.getAbsolutePath());
+			kept.delete();
+			return null;
+		}
+		if(nDropped>0) IJ.log("[KymoButler] Batch tables: "+nDropped+" row(s) of older sessions or of images not done with these parameters dropped from "+file.getName());
+		if(accumulator!=null) accumulator.flush();
+		nImages+=images.size();
+		return header;
+	}
+
+	/**
+	 * Adds the tables of the done images that have no rows in the batch tables, read from their session folder
+	 * @param resumed the output folders of the done images, keyed by their paths relative to the root
+	 * @param found the paths of the done images that have rows in either batch table
+	 */
+	void recoverMissing(Map<String, String> resumed, Set<String> found) {
+		for(Map.Entry<String, String> entry : resumed.entrySet()) {
+			if(found.contains(entry.getKey()) || entry.getValue().isEmpty()) continue;
+			File[] tables=new File(entry.getValue()).listFiles();
+			if(tables==null) continue;
+			String tracksPath=null, pprocPath=null;
+			for(File table : tables) {
+				if(table.getName().endsWith("_tracks_long.csv")) tracksPath=table.getAbsolutePath();
+				if(table.getName().endsWith("_pproc_table.csv")) pprocPath=table.getAbsolutePath();
+			}
+			if(tracksPath!=null || pprocPath!=null) add(new File(root, entry.getKey()), entry.getValue(), tracksPath, pprocPath);
+		}
+	}
+
+	/**
+	 * Writes the summary table: number of images and tracks, then the statistics of the tracks velocity, duration and distance
+	 */
+	void writeSummary() {
+		StringBuilder sb=new StringBuilder();
+		sb.append("measure,n,mean,sd,min,max\n");
+		String[] names={"velocity", "duration", "distance"};
+		RunningStats[] stats={velocity, duration, distance};
+		for(int i=0; i<names.length; i++) {
+			sb.append(names[i]).append(',').append(stats[i].getN()).append(',').append(stats[i].getMean()).append(',')
+				.append(stats[i].getSD()).append(',').append(stats[i].min).append(',').append(stats[i].max).append('\n');
+		}
+		sb.append("images,").append(nImages).append(",,,,\n");
+		sb.append("tracks,").append(nTracks).append(",,,,\n");
+		try {
+			FileUtils.writeStringToFile(getFile(SUMMARY_NAME), sb.toString(), "UTF-8");
+		} catch (IOException e) {
+			IJ.log("[KymoButler] Unable to write batch summary in "+root.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Measures the tracks of a tracks table, read row by row: consecutive rows with the same image and track_id form a track
+	 */
+	class TrackAccumulator {
+		/** Identifier of the current track, null if none **/
+		String current=null;
+
+		/** Extreme times of the current track **/
+		double tMin, tMax;
+
+		/** Path length of the current track **/
+		double length;
+
+		/** Previous position along the current track **/
+		double lastX;
+
+		/**
+		 * Adds a row
+		 * @param image identifier of the row's image
+		 * @param values the row's values
+		 * @param first index of the track_id column (followed by t,x,dir,t_phys,x_phys)
+		 */
+		void add(String image, List<String> values, int first) {
+			if(values.size()<first+6) return;
+			double t, x;
+			try {
+				t=Double.parseDouble(values.get(first+4));
+				x=Double.parseDouble(values.get(first+5));
+			} catch (NumberFormatException e) {
+				return;
+			}
+			String id=image+"#"+values.get(first);
+			if(!id.equals(current)) {
+				flush();
+				current=id;
+				tMin=t;
+				tMax=t;
+				length=0;
+			}else {
+				tMin=Math.min(tMin, t);
+				tMax=Math.max(tMax, t);
+				length+=Math.abs(x-lastX);
+			}
+			lastX=x;
+		}
+
+		/**
+		 * Adds the current track to the statistics
+		 */
+		void flush() {
+			if(current==null) return;
+			double span=tMax-tMin;
+			duration.add(span);
+			distance.add(length);
+			if(span>0) velocity.add(length/span);
+			nTracks++;
+			current=null;
+		}
+	}
+
+	/**
+	 * Splits a CSV row, handling quoted values
+	 * @param line the row
+	 * @return the values, unquoted
+	 */
+	static List<String> split(String line) {
+		List<String> values=new ArrayList<String>();
+		StringBuilder value=new StringBuilder();
+		boolean quoted=false;
+		for(int i=0; i<line.length(); i++) {
+			char c=line.charAt(i);
+			if(c=='"') {
+				if(quoted && i+1<line.length() && line.charAt(i+1)=='"') {
+					value.append('"');
+					i++;
+				}else {
+					quoted=!quoted;
+				}
+			}else if(c==',' && !quoted) {
+				values.add(value.toString());
+				value.setLength(0);
+			}else {
+				value.append(c);
+			}
+		}
+		values.add(value.toString());
+		return values;
+	}
+
+	/**
+	 * Quotes a CSV value if needed
+	 * @param value the value
+	 * @return the value, quoted if it contains a comma, a quote or a line break
+	 */
+	static String quote(String value) {
+		if(value.indexOf(',')<0 && value.indexOf('"')<0 && value.indexOf('\n')<0) return value;
+		return "\""+value.replace("\"", "\"\"")+"\"";
+	}
+
+	/**
+	 * Returns the path of an image relative to the batch root, with forward slashes
+	 * @param image the image's file
+	 * @return the relative path
+	 */
+	String relativePath(File image) {
+		try {
+			return root.getCanonicalFile().toPath().relativize(image.getCanonicalFile().toPath()).toString().replace(File.separatorChar, '/');
+		} catch (IOException | IllegalArgumentException e) {
+			return image.getAbsolutePath();
+		}
+	}
+}
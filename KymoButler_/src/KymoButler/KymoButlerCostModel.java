@@ -0,0 +1,143 @@
+/**
+*
+*  KymoButlerCostModel.java, 18 oct. 2026
+*
+*  Estimation of the analysis time of batch images, from their size and the measured throughput.
+*
+*/
+
+/*
+ * This file is part of KymoButler for ImageJ and is distributed
+ * under the terms of the GNU General Public License v3.0 or later.
+ */
+
+package KymoButler;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * This class estimates how long KymoButler takes to analyse an image, to show the remaining time of a batch (ETA).
+ * Batch images are ordered by their work alone (getWork): the fitted time never decreases with the work, so it would
+ * give the same order. The work of an image is its number of megapixels, weighted by its bit depth
+ * (decoding and encoding cost more for 16-bit, 32-bit and RGB images). The time is modelled as a fixed overhead
+ * per image (e.g. kernel start) plus a time per unit of work, both fitted on the images already analysed by a
+ * least-squares fit in which older measurements weigh less and less, so that the estimates follow the actual throughput.
+ *
+ */
+public class KymoButlerCostModel {
+	/** Weight kept by previous measurements each time a new one is added **/
+	static final double DECAY=0.8;
+
+	/** Weighted sums of the measurements: weights, work, time, squared work, work times time **/
+	double sw=0, sx=0, sy=0, sxx=0, sxy=0;
+
+	/** Number of measurements **/
+	int n=0;
+
+	/** Work of the items submitted and not analysed yet, keyed by item (NaN if unknown) **/
+	final Map<Object, Double> remaining=new IdentityHashMap<Object, Double>();
+
+	/**
+	 * Returns the work of an image, used to compare images and estimate their analysis time
+	 * @param info the image's dimensions
+	 * @return the work, in weighted megapixels, or NaN if the dimensions are unknown
+	 */
+	public static double getWork(KymoButlerImageProbe.Info info) {
+		if(info==null) return Double.NaN;
+		double depthFactor=info.bitDepth<=8?1:info.bitDepth==16?1.1:1.25;
+		return info.getPixelCount()/1e6*depthFactor;
+	}
+
+	/**
+	 * Adds the measured analysis time of an image
+	 * @param info the image's dimensions, null if unknown (the measurement is then ignored)
+	 * @param ms the analysis time, in ms
+	 */
+	public synchronized void addMeasurement(KymoButlerImageProbe.Info info, long ms) {
+		double x=getWork(info);
+		if(Double.isNaN(x) || ms<0) return;
+		sw=sw*DECAY+1;
+		sx=sx*DECAY+x;
+		sy=sy*DECAY+ms;
+		sxx=sxx*DECAY+x*x;
+		sxy=sxy*DECAY+x*ms;
+		n++;
+	}
+
+	/**
+	 * Estimates the analysis time of an image
+	 * @param info the image's dimensions, null if unknown (the average time is then returned)
+	 * @return the estimated time, in ms, or NaN if nothing was measured yet
+	 */
+	public synchronized double estimateMs(KymoButlerImageProbe.Info info) {
+		return estimate(getWork(info));
+	}
+
+	/**
+	 * Records an item waiting for analysis, counted in the remaining time
+	 * @param item the item
+	 * @param info the item's dimensions, null if unknown
+	 */
+	public synchronized void submitted(Object item, KymoButlerImageProbe.Info info) {
+		remaining.put(item, getWork(info));
+	}
+
+	/**
+	 * Records the end of the analysis of an item, which is no longer counted in the remaining time
+	 * @param item the item
+	 * @param info the item's dimensions, null if unknown
+	 * @param ms the analysis time to add as a measurement, in ms, negative if the item was not analysed (skipped, failed, cached)
+	 */
+	public synchronized void finished(Object item, KymoButlerImageProbe.Info info, long ms) {
+		remaining.remove(item);
+		if(ms>=0) addMeasurement(info, ms);
+	}
+
+	/**
+	 * Estimates the time needed to analyse the items submitted and not finished yet
+	 * @return the estimated time, in ms, or NaN if nothing was measured yet
+	 */
+	public synchronized double getRemainingMs() {
+		if(n==0) return Double.NaN;
+		double total=0;
+		for(double work : remaining.values()) total+=estimate(work);
+		return total;
+	}
+
+	/**
+	 * Formats a remaining time for the status bar
+	 * @param ms the time, in ms (NaN if unknown)
+	 * @return the formatted time, e.g. "ETA 1 h 05 min", "ETA 3 min 20 s", or an empty string if unknown
+	 */
+	public static String formatEta(double ms) {
+		if(Double.isNaN(ms)) return "";
+		long s=Math.round(ms/1000);
+		if(s>=3600) return String.format("ETA %d h %02d min", s/3600, (s%3600)/60);
+		if(s>=60) return String.format("ETA %d min %02d s", s/60, s%60);
+		return "ETA "+s+" s";
+	}
+
+	/**
+	 * Estimates the analysis time of a given work from the fitted overhead and time per unit of work
+	 * @param work the work (NaN if unknown: the average time is then returned)
+	 * @return the estimated time, in ms, or NaN if nothing was measured yet
+	 */
+	double estimate(double work) {
+		if(n==0) return Double.NaN;
+		double meanX=sx/sw;
+		double meanY=sy/sw;
+		if(Double.isNaN(work)) return meanY;
+		double varX=sxx/sw-meanX*meanX;
+		double slope, intercept;
+		if(n<2 || varX<=1e-9*Math.max(1, meanX*meanX)) {
+			//All images of similar size: time proportional to work
+			slope=meanX>0?meanY/meanX:0;
+			intercept=meanX>0?0:meanY;
+		}else {
+			slope=Math.max(0, (sxy/sw-meanX*meanY)/varX);
+			intercept=Math.max(0, meanY-slope*meanX);
+		}
+		return intercept+slope*work;
+	}
+}
@@ -0,0 +1,467 @@
+/**
+*
+*  KymoButlerEvaluator.java, 18 oct. 2026
+*
+*  Compares detected tracks with reference (ground-truth) tracks.
+*
+*/
+
+/*
+ * This file is part of KymoButler for ImageJ and is distributed
+ * under the terms of the GNU General Public License v3.0 or later.
+ */
+
+package KymoButler;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import ij.gui.Roi;
+import ij.io.RoiDecoder;
+import ij.process.FloatPolygon;
+
+/**
+ * This class matches detected tracks against reference tracks and reports detection and localisation scores.
+ * Each reference point votes for the detected track closest to it (within the matching distance), using a
+ * KymoButlerTrackIndex over the detected tracks. Pairs are then assigned one-to-one, best covered first:
+ * a reference track is found if at least the minimum coverage of its points voted for the same detected track.
+ *
+ */
+public class KymoButlerEvaluator {
+	/** Maximum distance between a reference point and a detected point for them to match, in pixels **/
+	double maxDistance=3.0;
+
+	/** Minimum fraction of reference points matching the same detected track for both tracks to match **/
+	double minCoverage=0.5;
+
+	/**
+	 * Builds a new evaluator
+	 * @param maxDistance maximum distance between a reference point and a detected point for them to match, in pixels
+	 * @param minCoverage minimum fraction of reference points matching the same detected track for both tracks to match
+	 */
+	public KymoButlerEvaluator(double maxDistance, double minCoverage) {
+		this.maxDistance=maxDistance;
+		this.minCoverage=minCoverage;
+	}
+
+	/**
+	 * Evaluates detected tracks against reference tracks
+	 * @param reference the reference tracks
+	 * @param detected the detected tracks
+	 * @return the evaluation scores
+	 */
+	public Evaluation evaluate(KymoButlerTracks reference, KymoButlerTracks detected) {
+		KymoButlerTrackIndex index=new KymoButlerTrackIndex(detected);
+		int nRef=reference.getNTracks();
+		int nDet=detected.getNTracks();
+
+		//Votes: for each reference track, the detected tracks its points are closest to
+		int[] votes=new int[nDet];
+		int[] touched=new int[nDet];
+		//Candidate pairs, as parallel arrays: votes, reference track and detected track
+		int[] candVotes=new int[16];
+		int[] candRef=new int[16];
+		int[] candDet=new int[16];
+		int nCandidates=0;
+
+		for(int r=0; r<nRef; r++) {
+			int nTouched=0;
+			for(int p=reference.getStart(r); p<reference.getEnd(r); p++) {
+				int d=index.getNearestTrack(reference.getT(p), reference.getX(p), maxDistance);
+				if(d<0) continue;
+				if(votes[d]==0) touched[nTouched++]=d;
+				votes[d]++;
+			}
+			int nPoints=reference.getEnd(r)-reference.getStart(r);
+			for(int i=0; i<nTouched; i++) {
+				int d=touched[i];
+				if(nPoints>0 && votes[d]>=minCoverage*nPoints) {
+					if(nCandidates==candVotes.length) {
+						candVotes=Arrays.copyOf(candVotes, nCandidates*2);
+						candRef=Arrays.copyOf(candRef, nCandidates*2);
+						candDet=Arrays.copyOf(candDet, nCandidates*2);
+					}
+					candVotes[nCandidates]=votes[d];
+					candRef[nCandidates]=r;
+					candDet[nCandidates]=d;
+					nCandidates++;
+				}
+				votes[d]=0;
+			}
+		}
+
+		//Best covered pairs first, ties broken by decreasing reference then detected track
+		final int[] fVotes=candVotes, fRef=candRef, fDet=candDet;
+		Integer[] order=new Integer[nCandidates];
+		for(int i=0; i<nCandidates; i++) order[i]=i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				if(fVotes[a]!=fVotes[b]) return Integer.compare(fVotes[b], fVotes[a]);
+				if(fRef[a]!=fRef[b]) return Integer.compare(fRef[b], fRef[a]);
+				return Integer.compare(fDet[b], fDet[a]);
+			}
+		});
+
+		int[] refMatch=new int[nRef];
+		int[] detMatch=new int[nDet];
+		Arrays.fill(refMatch, -1);
+		Arrays.fill(detMatch, -1);
+		int nMatched=0;
+		for(int i : order) {
+			int r=candRef[i];
+			int d=candDet[i];
+			if(refMatch[r]>=0 || detMatch[d]>=0) continue;
+			refMatch[r]=d;
+			detMatch[d]=r;
+			nMatched++;
+		}
+
+		Evaluation out=new Evaluation(nRef, nDet, nMatched, refMatch);
+		for(int r=0; r<nRef; r++) if(refMatch[r]>=0) computeError(reference, r, detected, refMatch[r], out);
+
+		return out;
+	}
+
+	/**
+	 * Computes the localisation error between a reference track and its matching detected track, over their common frames:
+	 * the detected track is linearly interpolated at each reference time point
+	 * @param reference the reference tracks
+	 * @param r the reference track index
+	 * @param detected the detected tracks
+	 * @param d the detected track index
+	 * @param out the evaluation to fill
+	 */
+	private void computeError(KymoButlerTracks reference, int r, KymoButlerTracks detected, int d, Evaluation out) {
+		int dStart=detected.getStart(d);
+		int dEnd=detected.getEnd(d);
+		double sum=0;
+		double sum2=0;
+		int n=0;
+		int j=dStart;
+
+		for(int p=reference.getStart(r); p<reference.getEnd(r); p++) {
+			double t=reference.getT(p);
+			//Detected tracks are ordered in time: the cursor only moves forward for ordered reference tracks
+			if(j>dStart && detected.getT(j-1)>t) j=dStart;
+			while(j<dEnd && detected.getT(j)<t) j++;
+			double x;
+			if(j<dEnd && detected.getT(j)==t) {
+				x=detected.getX(j);
+			}else if(j>dStart && j<dEnd) {
+				double t0=detected.getT(j-1);
+				double t1=detected.getT(j);
+				x=detected.getX(j-1)+(detected.getX(j)-detected.getX(j-1))*(t-t0)/(t1-t0);
+			}else {
+				continue;
+			}
+			double err=Math.abs(x-reference.getX(p));
+			sum+=err;
+			sum2+=err*err;
+			n++;
+		}
+
+		out.commonPoints[r]=n;
+		out.meanError[r]=n>0?sum/n:Double.NaN;
+		out.rmsError[r]=n>0?Math.sqrt(sum2/n):Double.NaN;
+	}
+
+	/**
+	 * Reads tracks from a CSV file holding one point per row, as the KymoButler tracks table (track_id,t,x,...).
+	 * If the header does not name the columns, the first three columns are used as track_id, t and x.
+	 * @param path path to the CSV file
+	 * @return the tracks, in order of first appearance of their identifiers
+	 * @throws IOException if the file could not be read
+	 */
+	public static KymoButlerTracks readTracksCSV(String path) throws IOException {
+		Map<String, List<double[]>> byId=new LinkedHashMap<String, List<double[]>>();
+
+		try (BufferedReader reader=Files.newBufferedReader(new File(path).toPath(), StandardCharsets.UTF_8)) {
+			String line=reader.readLine();
+			if(line==null) return new KymoButlerTracks(new int[] {0}, new double[0], new double[0]);
+
+			String[] header=line.split("[,;\t]");
+			int idCol=0;
+			int tCol=1;
+			int xCol=2;
+			boolean hasHeader=false;
+			for(int i=0; i<header.length; i++) {
+				String h=header[i].trim().replace("\"", "");
+				if(h.equalsIgnoreCase("track_id") || h.equalsIgnoreCase("track")) {
+					idCol=i;
+					hasHeader=true;
+				}
+				if(h.equalsIgnoreCase("t")) {
+					tCol=i;
+					hasHeader=true;
+				}
+				if(h.equalsIgnoreCase("x")) {
+					xCol=i;
+					hasHeader=true;
+				}
+			}
+			if(!hasHeader) addCSVPoint(line, idCol, tCol, xCol, byId);
+
+			while((line=reader.readLine())!=null) addCSVPoint(line, idCol, tCol, xCol, byId);
+		}
+
+		int[] offsets=new int[byId.size()+1];
+		int i=0;
+		for(List<double[]> track : byId.values()) {
+			offsets[i+1]=offsets[i]+track.size();
+			i++;
+		}
+		double[] t=new double[offsets[i]];
+		double[] x=new double[offsets[i]];
+		int p=0;
+		for(List<double[]> track : byId.values()) {
+			for(double[] point : track) {
+				t[p]=point[0];
+				x[p]=point[1];
+				p++;
+			}
+		}
+
+		return new KymoButlerTracks(offsets, t, x);
+	}
+
+	/**
+	 * Reads tracks from an ImageJ RoiSet (zip file, as saved from the RoiManager) or a single .roi file
+	 * @param path path to the RoiSet
+	 * @return the tracks, one per line ROI
+	 * @throws IOException if the file could not be read
+	 */
+	public static KymoButlerTracks readRoiSet(String path) throws IOException {
+		List<Roi> rois=new ArrayList<Roi>();
+
+		if(path.toLowerCase().endsWith(".roi")) {
+			Roi roi=RoiDecoder.open(path);
+			if(roi!=null) rois.add(roi);
+		}else {
+			try (ZipInputStream zis=new ZipInputStream(new FileInputStream(path))) {
+				ZipEntry entry;
+				while((entry=zis.getNextEntry())!=null) {
+					if(!entry.getName().toLowerCase().endsWith(".roi")) continue;
+					Roi roi=new RoiDecoder(readFully(zis), entry.getName()).getRoi();
+					if(roi!=null) rois.add(roi);
+				}
+			}
+		}
+
+		return fromRois(rois.toArray(new Roi[0]));
+	}
+
+	/**
+	 * Converts line ROIs (x: space, y: time) to tracks. Segments spanning several frames, as in simplified tracks,
+	 * are interpolated to get one point per frame.
+	 * @param rois the ROIs to convert
+	 * @return the tracks, one per ROI
+	 */
+	public static KymoButlerTracks fromRois(Roi[] rois) {
+		int[] offsets=new int[rois.length+1];
+		double[] t=new double[64];
+		double[] x=new double[64];
+		int n=0;
+
+		for(int i=0; i<rois.length; i++) {
+			FloatPolygon pol=rois[i].getFloatPolygon();
+			for(int j=0; j<pol.npoints; j++) {
+				double t1=pol.ypoints[j];
+				double x1=pol.xpoints[j];
+				if(j>0) {
+					double t0=pol.ypoints[j-1];
+					double x0=pol.xpoints[j-1];
+					int steps=(int) Math.floor(Math.abs(t1-t0));
+					for(int k=1; k<steps; k++) {
+						if(n==t.length) {
+							t=Arrays.copyOf(t, n*2);
+							x=Arrays.copyOf(x, n*2);
+						}
+						double f=(double) k/steps;
+						t[n]=t0+(t1-t0)*f;
+						x[n]=x0+(x1-x0)*f;
+						n++;
+					}
+				}
+				if(n==t.length) {
+					t=Arrays.copyOf(t, n*2);
+					x=Arrays.copyOf(x, n*2);
+				}
+				t[n]=t1;
+				x[n]=x1;
+				n++;
+			}
+			offsets[i+1]=n;
+		}
+
+		return new KymoButlerTracks(offsets, Arrays.copyOf(t, n), Arrays.copyOf(x, n));
+	}
+
+	/**
+	 * Looks for the tracks table of the most recent KymoButler local run on an image, in the image's folder
+	 * @param dir the folder containing the image
+	 * @param imageName the image file name
+	 * @return the most recent tracks table, or null if none was found
+	 */
+	public static File findLatestTracksCSV(File dir, String imageName) {
+		String baseName=KymoButlerIO.sanitizeBaseName(imageName);
+		File[] sessions=dir.listFiles();
+		if(sessions==null) return null;
+
+		//Session names: KymoButlerLocal_<sortable time stamp>[_<counter>]_<base name>
+		Pattern pattern=Pattern.compile("KymoButlerLocal_(\\d{4}-\\d{2}-\\d{2}_\\d{2}-\\d{2}-\\d{2})(?:_(\\d+))?_"+Pattern.quote(baseName));
+		File latest=null;
+		String latestStamp=null;
+		int latestCounter=0;
+		for(File session : sessions) {
+			Matcher matcher=pattern.matcher(session.getName());
+			if(!session.isDirectory() || !matcher.matches()) continue;
+			File csv=new File(session, baseName+"_tracks_long.csv");
+			if(!csv.exists()) continue;
+			String stamp=matcher.group(1);
+			int counter=matcher.group(2)==null?1:Integer.parseInt(matcher.group(2));
+			int order=latestStamp==null?1:stamp.compareTo(latestStamp);
+			if(order>0 || (order==0 && counter>latestCounter)) {
+				latest=csv;
+				latestStamp=stamp;
+				latestCounter=counter;
+			}
+		}
+
+		return latest;
+	}
+
+	/**
+	 * Parses one CSV row and stores its point under its track identifier
+	 * @param line the CSV row
+	 * @param idCol index of the track identifier column
+	 * @param tCol index of the time column
+	 * @param xCol index of the space column
+	 * @param byId the points, grouped by track identifier
+	 */
+	private static void addCSVPoint(String line, int idCol, int tCol, int xCol, Map<String, List<double[]>> byId) {
+		String[] cols=line.split("[,;\t]");
+		if(cols.length<=Math.max(idCol, Math.max(tCol, xCol))) return;
+		try {
+			double t=Double.parseDouble(cols[tCol].trim());
+			double x=Double.parseDouble(cols[xCol].trim());
+			String id=cols[idCol].trim();
+			List<double[]> track=byId.get(id);
+			if(track==null) {
+				track=new ArrayList<double[]>();
+				byId.put(id, track);
+			}
+			track.add(new double[] {t, x});
+		}catch (NumberFormatException e) {
+			//Not a data row
+		}
+	}
+
+	/**
+	 * Reads the current zip entry fully
+	 * @param is the input stream
+	 * @return the entry's content
+	 * @throws IOException if the stream could not be read
+	 */
+	private static byte[] readFully(InputStream is) throws IOException {
+		ByteArrayOutputStream out=new ByteArrayOutputStream();
+		byte[] buffer=new byte[8192];
+		int n;
+		while((n=is.read(buffer))>0) out.write(buffer, 0, n);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Scores of one evaluation
+	 *
+	 */
+	public static class Evaluation {
+		/** Number of reference tracks **/
+		public final int nReference;
+
+		/** Number of detected tracks **/
+		public final int nDetected;
+
+		/** Number of matched pairs **/
+		public final int nMatched;
+
+		/** Matching detected track for each reference track (-1 if none) **/
+		public final int[] match;
+
+		/** Number of common time points for each reference track **/
+		public final int[] commonPoints;
+
+		/** Mean absolute x error for each reference track, in pixels (NaN if not matched) **/
+		public final double[] meanError;
+
+		/** Root mean square x error for each reference track, in pixels (NaN if not matched) **/
+		public final double[] rmsError;
+
+		Evaluation(int nReference, int nDetected, int nMatched, int[] match) {
+			this.nReference=nReference;
+			this.nDetected=nDetected;
+			this.nMatched=nMatched;
+			this.match=match;
+			commonPoints=new int[nReference];
+			meanError=new double[nReference];
+			rmsError=new double[nReference];
+			Arrays.fill(meanError, Double.NaN);
+			Arrays.fill(rmsError, Double.NaN);
+		}
+
+		/**
+		 * Returns the fraction of detected tracks matching a reference track
+		 * @return the precision, NaN if there is no detected track
+		 */
+		public double getPrecision() {
+			return nDetected>0?(double) nMatched/nDetected:Double.NaN;
+		}
+
+		/**
+		 * Returns the fraction of reference tracks matching a detected track
+		 * @return the recall, NaN if there is no reference track
+		 */
+		public double getRecall() {
+			return nReference>0?(double) nMatched/nReference:Double.NaN;
+		}
+
+		/**
+		 * Returns the harmonic mean of precision and recall
+		 * @return the F1 score, NaN if undefined
+		 */
+		public double getF1() {
+			return nReference+nDetected>0?2.0*nMatched/(nReference+nDetected):Double.NaN;
+		}
+
+		/**
+		 * Returns the mean absolute x error over all matched points
+		 * @return the mean error in pixels, NaN if there is no matched point
+		 */
+		public double getMeanError() {
+			double sum=0;
+			int n=0;
+			for(int r=0; r<nReference; r++) {
+				if(commonPoints[r]==0) continue;
+				sum+=meanError[r]*commonPoints[r];
+				n+=commonPoints[r];
+			}
+			return n>0?sum/n:Double.NaN;
+		}
+	}
+}
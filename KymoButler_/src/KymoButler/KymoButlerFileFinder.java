@@ -0,0 +1,165 @@
+/**
+*
+*  KymoButlerFileFinder.java, 18 oct. 2026
+*
+*  Discovery of the batch input files, skipping KymoButler outputs.
+*
+*/
+
+/*
+ * This file is part of KymoButler for ImageJ and is distributed
+ * under the terms of the GNU General Public License v3.0 or later.
+ */
+
+package KymoButler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import ij.IJ;
+import ij.Prefs;
+
+/**
+ * This class lists the files of a batch folder: regular files whose extension and name match the filters,
+ * optionally in sub-folders. Folders whose name starts with KymoButlerLocal_ (analysis sessions and caches)
+ * and hidden folders are never explored, so that previous outputs are not analysed again.
+ * Sub-folders are explored in parallel, each folder being read by its own fork/join task.
+ *
+ */
+public class KymoButlerFileFinder {
+	/** Prefix of the folders created by KymoButler, which are never explored **/
+	public static final String OUTPUT_PREFIX="KymoButlerLocal_";
+
+	/** Default extensions of the batch input files **/
+	public static final String DEFAULT_EXTENSIONS="tif,tiff,png,jpg,jpeg,gif,bmp";
+
+	/** True to explore sub-folders **/
+	final boolean recursive;
+
+	/** Accepted extensions, lower case and without dot (empty to accept all files) **/
+	final Set<String> extensions=new HashSet<String>();
+
+	/** Matcher applied to the file names, null to accept all names **/
+	final PathMatcher nameMatcher;
+
+	/**
+	 * Builds a new finder
+	 * @param recursive true to explore sub-folders
+	 * @param extensions comma-separated list of accepted extensions (e.g. "tif,png"), empty or null to accept all files
+	 * @param glob glob pattern the file names should match (e.g. "*_kymo*"), empty or null to accept all names
+	 */
+	public KymoButlerFileFinder(boolean recursive, String extensions, String glob) {
+		this.recursive=recursive;
+		if(extensions!=null) {
+			for(String extension : extensions.split("[,;\\s]+")) {
+				extension=extension.trim().toLowerCase(Locale.ROOT);
+				if(extension.startsWith("*")) extension=extension.substring(1);
+				if(extension.startsWith(".")) extension=extension.substring(1);
+				if(!extension.isEmpty()) this.extensions.add(extension);
+			}
+		}
+		this.nameMatcher=glob==null || glob.trim().isEmpty() || glob.trim().equals("*")?null:FileSystems.getDefault().getPathMatcher("glob:"+glob.trim());
+	}
+
+	/**
+	 * Lists the matching files of a folder
+	 * @param root the folder to explore
+	 * @return the matching files, sorted by path
+	 */
+	public List<File> find(File root) {
+		List<File> files=new ArrayList<File>();
+		if(root==null || !root.isDirectory()) return files;
+		ForkJoinPool pool=new ForkJoinPool(Math.max(1, Prefs.getThreads()));
+		try {
+			for(Path path : pool.invoke(new FolderTask(root.toPath()))) files.add(path.toFile());
+		} finally {
+			pool.shutdown();
+		}
+		Collections.sort(files);
+		return files;
+	}
+
+	/**
+	 * Checks whether a file should be listed, based on its name
+	 * @param name the file's name
+	 * @return true if the file matches the extension and name filters
+	 */
+	public boolean accept(String name) {
+		if(!extensions.isEmpty()) {
+			int dot=name.lastIndexOf('.');
+			if(dot<0 || !extensions.contains(name.substring(dot+1).toLowerCase(Locale.ROOT))) return false;
+		}
+		return nameMatcher==null || nameMatcher.matches(FileSystems.getDefault().getPath(name));
+	}
+
+	/**
+	 * Checks whether a folder should be explored, based on its name
+	 * @param name the folder's name
+	 * @return false for KymoButler outputs and hidden folders
+	 */
+	public static boolean isExplored(String name) {
+		return !name.startsWith(OUTPUT_PREFIX) && !name.startsWith(".");
+	}
+
+	/**
+	 * Lists the matching files of one folder, and forks one task per sub-folder to explore
+	 */
+	@SuppressWarnings("serial")
+	private class FolderTask extends RecursiveTask<List<Path>> {
+		/** The folder to read **/
+		final Path folder;
+
+		FolderTask(Path folder) {
+			this.folder=folder;
+		}
+
+		@Override
+		protected List<Path> compute() {
+			final List<Path> found=new ArrayList<Path>();
+			final List<FolderTask> subTasks=new ArrayList<FolderTask>();
+			try {
+				Files.walkFileTree(folder, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+						String name=file.getFileName().toString();
+						if(attrs.isDirectory()) {
+							if(recursive && isExplored(name)) subTasks.add(new FolderTask(file));
+						}else if(attrs.isRegularFile() && accept(name)) {
+							found.add(file);
+						}
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFileFailed(Path file, IOException e) {
+						IJ.log("[KymoButler] Unable to read "+file+": "+e.getMessage());
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			} catch (IOException e) {
+				IJ.log("[KymoButler] Unable to explore "+folder+": "+e.getMessage());
+			}
+
+			for(FolderTask task : subTasks) task.fork();
+			for(FolderTask task : subTasks) found.addAll(task.join());
+			return found;
+		}
+	}
+}
@@ -0,0 +1,272 @@
+/**
+*
+*  KymoButlerFolderWatcher.java, 18 oct. 2026
+*
+*  Watches a folder for images, once they are completely written.
+*
+*/
+
+/*
+ * This file is part of KymoButler for ImageJ and is distributed
+ * under the terms of the GNU General Public License v3.0 or later.
+ */
+
+package KymoButler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import ij.IJ;
+
+/**
+ * This class watches a folder (and optionally its sub-folders) for new or modified files matching the batch
+ * filters of a KymoButlerFileFinder. As files are often written in several steps (acquisition software, copies
+ * over the network), a file is only reported once its size and modification date have not changed for a given delay:
+ * bursts of events on the same file are merged into a single report. A file is reported again only if it changes.
+ * Files present when watching starts are reported too, the listener telling those that still need an analysis.
+ * KymoButler output folders are not watched.
+ *
+ */
+public class KymoButlerFolderWatcher implements Runnable {
+	/**
+	 * Receives the files ready for analysis
+	 */
+	public interface Listener {
+		/**
+		 * Called, on the watcher's thread, for each file present at start or new, once it is stable
+		 * @param file the file
+		 * @throws InterruptedException if interrupted while handling the file
+		 */
+		void fileReady(File file) throws InterruptedException;
+	}
+
+	/** Delay between two checks of the pending files, in ms **/
+	static final long POLL_MS=250;
+
+	/** The watched folder **/
+	final Path root;
+
+	/** Filters applied to the files, and whether sub-folders are watched **/
+	final KymoButlerFileFinder finder;
+
+	/** Time during which a file's size and modification date should not change before it is reported, in ms **/
+	final long stableMs;
+
+	/** Receives the files ready for analysis **/
+	final Listener listener;
+
+	/** The watch service **/
+	WatchService service=null;
+
+	/** Watched folders, by watch key **/
+	final Map<WatchKey, Path> folders=new HashMap<WatchKey, Path>();
+
+	/** Files waiting to be stable: size, modification date and time of the last change (ms) **/
+	final Map<Path, long[]> pending=new HashMap<Path, long[]>();
+
+	/** Files already reported: size and modification date when reported **/
+	final Map<Path, long[]> reported=new HashMap<Path, long[]>();
+
+	/** Number of files reported so far **/
+	volatile int nReported=0;
+
+	/** False once the watcher is asked to stop **/
+	volatile boolean running=false;
+
+	/** The watcher's thread **/
+	Thread thread=null;
+
+	/**
+	 * Builds a new watcher
+	 * @param root the folder to watch
+	 * @param finder the filters applied to the files (its recursive flag tells whether sub-folders are watched)
+	 * @param stableMs time during which a file should not change before it is reported, in ms
+	 * @param listener receives the files ready for analysis
+	 */
+	public KymoButlerFolderWatcher(File root, KymoButlerFileFinder finder, long stableMs, Listener listener) {
+		this.root=root.toPath();
+		this.finder=finder;
+		this.stableMs=Math.max(0, stableMs);
+		this.listener=listener;
+	}
+
+	/**
+	 * Starts watching, on a new thread: the files already in the folder are pending, as new ones
+	 * @throws IOException if the folder could not be watched
+	 */
+	public void start() throws IOException {
+		service=root.getFileSystem().newWatchService();
+		register(root, true);
+		running=true;
+		thread=new Thread(this, "KymoButler folder watcher");
+		thread.start();
+	}
+
+	/**
+	 * Stops watching: no more files are reported, but the file being handled, if any, is handled to the end
+	 * (the watcher's thread is not interrupted) before this method returns
+	 */
+	public void stop() {
+		running=false;
+		if(thread!=null) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		try {
+			if(service!=null) service.close();
+		} catch (IOException e) {
+			IJ.log("[KymoButler] Unable to close the folder watcher");
+		}
+	}
+
+	/**
+	 * Returns the number of files reported so far
+	 * @return the number of files
+	 */
+	public int getReportedCount() {
+		return nReported;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while(running) {
+				WatchKey key=service.poll(POLL_MS, TimeUnit.MILLISECONDS);
+				while(key!=null) {
+					handle(key);
+					key=service.poll();
+				}
+				checkPending();
+			}
+		} catch (InterruptedException e) {
+			//Stopped
+		} catch (Exception e) {
+			IJ.log("[KymoButler] Folder watcher stopped: "+e);
+		}
+	}
+
+	/**
+	 * Handles the events of a watched folder: new and modified files become pending, new sub-folders are watched
+	 * @param key the folder's watch key
+	 */
+	void handle(WatchKey key) {
+		Path folder=folders.get(key);
+		for(WatchEvent<?> event : key.pollEvents()) {
+			if(folder==null) continue;
+			if(event.kind()==StandardWatchEventKinds.OVERFLOW) {
+				//Events were lost: all the watched folders are checked again
+				for(Path watched : folders.values()) scan(watched);
+				continue;
+			}
+			Path path=folder.resolve((Path) event.context());
+			String name=path.getFileName().toString();
+			if(Files.isDirectory(path)) {
+				if(event.kind()==StandardWatchEventKinds.ENTRY_CREATE && finder.recursive && KymoButlerFileFinder.isExplored(name)) register(path, true);
+			}else if(event.kind()!=StandardWatchEventKinds.ENTRY_DELETE && finder.accept(name)) {
+				touch(path);
+			}else if(event.kind()==StandardWatchEventKinds.ENTRY_DELETE) {
+				pending.remove(path);
+				reported.remove(path);
+			}
+		}
+		if(!key.reset()) folders.remove(key);
+	}
+
+	/**
+	 * Watches a folder and, if recursive, its sub-folders
+	 * @param folder the folder
+	 * @param isNew true for a folder whose files are pending: the watched folder when watching starts, or a folder created while watching
+	 */
+	void register(Path folder, final boolean isNew) {
+		try {
+			Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+					if(!dir.equals(root) && !(finder.recursive && KymoButlerFileFinder.isExplored(dir.getFileName().toString()))) return FileVisitResult.SKIP_SUBTREE;
+					folders.put(dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), dir);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					if(isNew && attrs.isRegularFile() && finder.accept(file.getFileName().toString())) touch(file);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			IJ.log("[KymoButler] Unable to watch "+folder+": "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Makes the matching files of a watched folder pending, after lost events
+	 * @param folder the folder
+	 */
+	void scan(Path folder) {
+		File[] files=folder.toFile().listFiles();
+		if(files==null) return;
+		for(File file : files) if(file.isFile() && finder.accept(file.getName())) touch(file.toPath());
+	}
+
+	/**
+	 * Makes a file pending, unless it was already reported and has not changed since
+	 * @param path the file
+	 */
+	void touch(Path path) {
+		File file=path.toFile();
+		long[] state=reported.get(path);
+		if(state!=null && state[0]==file.length() && state[1]==file.lastModified()) return;
+		if(!pending.containsKey(path)) pending.put(path, new long[] {-1, -1, System.currentTimeMillis()});
+	}
+
+	/**
+	 * Checks the pending files, and reports those whose size and modification date have not changed for the stability delay
+	 * @throws InterruptedException if interrupted while a file is being reported
+	 */
+	void checkPending() throws InterruptedException {
+		long now=System.currentTimeMillis();
+		Iterator<Map.Entry<Path, long[]>> it=pending.entrySet().iterator();
+		while(running && it.hasNext()) {
+			Map.Entry<Path, long[]> entry=it.next();
+			File file=entry.getKey().toFile();
+			long[] state=entry.getValue();
+			if(!file.isFile()) {
+				it.remove();
+				continue;
+			}
+			long size=file.length();
+			long modified=file.lastModified();
+			if(size!=state[0] || modified!=state[1]) {
+				state[0]=size;
+				state[1]=modified;
+				state[2]=now;
+			}else if(size>0 && now-state[2]>=stableMs) {
+				it.remove();
+				reported.put(entry.getKey(), new long[] {size, modified});
+				nReported++;
+				listener.fileReady(file);
+			}
+		}
+	}
+}
@@ -24,8 +24,8 @@
 package KymoButler;
 
 import java.awt.Polygon;
+import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -79,6 +79,30 @@ public class KymoButlerIO{
 	/** Use physical units in postprocessing **/
 	boolean pprocUsePhysical=Prefs.get("KymoButler_pprocUsePhysical.boolean", true);
 	
+	/** Split tracks into run/pause/reversal segments in postprocessing **/
+	boolean segmentTracks=Prefs.get("KymoButler_segmentTracks.boolean", true);
+	
+	/** Segments: velocity below which the particle is considered as paused **/
+	double segPauseVelocity=Prefs.get("KymoButler_segPauseVelocity.double", 0.1);
+	
+	/** Segments: minimum duration of a segment, in frames **/
+	double segMinFrames=Prefs.get("KymoButler_segMinFrames.double", 3);
+	
+	/** Size of the analysis results cache, in MB (0 to disable) **/
+	double resultCacheMB=Prefs.get("KymoButler_resultCacheMB.double", 1024);
+	
+	/** Tiling: height of the time windows, in rows (0 to disable), overlap between windows, windows analysed at once **/
+	int tileRows=(int) Prefs.get("KymoButler_tileRows.double", 0);
+	int tileOverlap=(int) Prefs.get("KymoButler_tileOverlap.double", 64);
+	int tileWorkers=(int) Prefs.get("KymoButler_tileWorkers.double", 2);
+	
+	/** Pre-scan: analyse only the regions holding signal, and their minimum signal to noise ratio **/
+	boolean prescan=Prefs.get("KymoButler_prescan.boolean", false);
+	double prescanSnr=Prefs.get("KymoButler_prescanSnr.double", 3);
+	
+	/** True to export the probability maps, and extract tracks from the cached maps when only the thresholds change **/
+	boolean probabilityMaps=Prefs.get("KymoButler_probabilityMaps.boolean", false);
+	
 	//Image to be processed, as a byte array
 	byte[] img=null;
 	
@@ -88,6 +112,12 @@ public class KymoButlerIO{
 	/** Local output directory used by last run **/
 	String lastOutputDir=null;
 	
+	/** Output directory set by the caller, used instead of the image's folder (null if not set) **/
+	String fixedOutputDir=null;
+	
+	/** True if the results of the last run were found in the results cache **/
+	boolean lastFromCache=false;
+	
 	/** Local processing calibration **/
 	double timeSize=1.0;
 	double spaceSize=1.0;
@@ -150,7 +180,8 @@ public class KymoButlerIO{
 	}
 	
 	/**
-	 * Sets the kymograph: should be called before analysis takes place
+	 * Sets the kymograph: should be called before analysis takes place. The image is read when the analysis
+	 * request is built, and is never displayed, so that this method may be called from any thread
 	 * @param ip an ImagePlus containing the kymograph to analyse
 	 */
 	public void setKymograph(ImagePlus ip) {
@@ -160,19 +191,6 @@ public class KymoButlerIO{
 			if(ip.getCalibration().pixelWidth>0) spaceSize=ip.getCalibration().pixelWidth;
 		}
 		updateOutputDirFromImage(ip);
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		try {
-			boolean isVisible=ip.isVisible();
-			if(!isVisible) ip.show();
-			ImageIO.write(ip.getBufferedImage(), "bmp", baos ); //Is not working if using tif...
-			if(!isVisible) ip.hide();
-			baos.flush();
-			img= baos.toByteArray();
-			baos.close();
-		} catch (IOException e) {
-			IJ.log("Something went wrong when turning the input ImagePlus to a byte array");
-			e.printStackTrace();
-		}
 	}
 	
 	/**
@@ -327,6 +345,23 @@ public class KymoButlerIO{
 		return lastOutputDir;
 	}
 	
+	/**
+	 * Sets the directory where the session folders of the local runs are created, instead of the image's folder.
+	 * @param dir the output directory, or null to use the image's folder again.
+	 */
+	public void setOutputDir(String dir) {
+		fixedOutputDir=dir;
+		if(dir!=null) localOutputDir=dir;
+	}
+	
+	/**
+	 * Tells whether the results of the last local run were found in the results cache, rather than computed.
+	 * @return true if the last results came from the cache.
+	 */
+	public boolean isLastFromCache() {
+		return lastFromCache;
+	}
+	
 	public String getLastTracksCsvPath() {
 		if(lastOutputDir==null) return null;
 		return new File(lastOutputDir, sanitizeBaseName(currentImage!=null?currentImage.getTitle():"kymograph")+"_tracks_long.csv").getAbsolutePath();
@@ -336,6 +371,36 @@ public class KymoButlerIO{
 		if(lastOutputDir==null) return null;
 		return new File(lastOutputDir, sanitizeBaseName(currentImage!=null?currentImage.getTitle():"kymograph")+"_pproc_table.csv").getAbsolutePath();
 	}
+	
+	public String getLastSegmentsTablePath() {
+		if(lastOutputDir==null) return null;
+		return new File(lastOutputDir, sanitizeBaseName(currentImage!=null?currentImage.getTitle():"kymograph")+"_segments_table.csv").getAbsolutePath();
+	}
+	
+	/**
+	 * Splits the tracks into run, pause and reversal segments and saves them next to the postprocessing table
+	 * of the last local run. Nothing is done if segmentation is disabled in the options.
+	 * @param tracks the tracks to segment
+	 * @return the path to the segments table, or null if it was not written
+	 */
+	public String saveSegmentsTable(KymoButlerTracks tracks) {
+		refreshLocalPrefs();
+		String path=getLastSegmentsTablePath();
+		if(!segmentTracks || tracks==null || path==null) return null;
+		
+		KymoButlerSegmentClassifier classifier=new KymoButlerSegmentClassifier(segPauseVelocity, segMinFrames);
+		if(pprocUsePhysical) classifier.setCalibration(timeSize, spaceSize);
+		classifier.classify(tracks);
+		
+		try {
+			classifier.writeTable(path);
+		} catch (IOException e) {
+			IJ.log("Local mode: unable to write segments table to "+path);
+			return null;
+		}
+		
+		return path;
+	}
 
 	/**
 	 * Runs the analysis locally using Wolfram Engine.
@@ -351,84 +416,223 @@ public class KymoButlerIO{
 			localKymoButlerPath=guessLocalKymoPath();
 		}
 		
-		if(localKymoButlerPath==null || localKymoButlerPath.trim().isEmpty()) {
-			IJ.log("Local mode: KymoButler local path is not set.");
-			return null;
+		KymoButlerAnalysisRequest request=KymoButlerAnalysisRequest.builder()
+				.image(currentImage)
+				.parameters(getThreshold(), getMinimumSize(), getMinimumFrames())
+				.bidirectional(useBidirectional, decisionThreshold)
+				.calibration(timeSize, spaceSize, pprocUsePhysical)
+				.backend(wolframScriptPath, localKymoButlerPath, targetDevice)
+				.outputDir(fixedOutputDir)
+				.defaultOutputDir(localOutputDir)
+				.timeOut(timeOut)
+				.tiling(tileRows, tileOverlap, tileWorkers)
+				.prescan(prescan, prescanSnr)
+				.probabilityMaps(probabilityMaps)
+				.resultCache(new File(Prefs.get("KymoButler_outputDir.string", System.getProperty("java.io.tmpdir")), KymoButlerResultCache.CACHE_FOLDER).getAbsolutePath(), resultCacheMB)
+				.build();
+		
+		startTime=System.currentTimeMillis();
+		KymoButlerAnalysisResult result=analyze(request);
+		lastOutputDir=result.getSessionDir();
+		lastFromCache=result.isFromCache();
+		return result.getResponse();
+	}
+	
+	/**
+	 * Runs the analysis of a request locally, using Wolfram Engine. This method only depends on the request
+	 * (no preferences are read, no field is used), so that several analyses may run at once from different threads.
+	 * @param request the analysis request.
+	 * @return the analysis result, whose response is null on failure.
+	 */
+	public static KymoButlerAnalysisResult analyze(KymoButlerAnalysisRequest request) {
+		long start=System.currentTimeMillis();
+		java.util.List<String> messages=new java.util.ArrayList<String>();
+		String baseName=sanitizeBaseName(request.title);
+		
+		String kbPath=request.kymoButlerPath;
+		if(kbPath==null || kbPath.trim().isEmpty()) kbPath=guessLocalKymoPath();
+		if(kbPath==null || kbPath.trim().isEmpty()) {
+			log(messages, "Local mode: KymoButler local path is not set.");
+			return new KymoButlerAnalysisResult(false, null, null, baseName, false, null, System.currentTimeMillis()-start, 0, messages);
 		}
 		
-		File packageFile=new File(localKymoButlerPath, "packages"+File.separator+"KymoButler.wl");
+		File packageFile=new File(kbPath, "packages"+File.separator+"KymoButler.wl");
 		if(!packageFile.exists()) {
-			IJ.log("Local mode: KymoButler.wl not found at "+packageFile.getAbsolutePath());
-			return null;
+			log(messages, "Local mode: KymoButler.wl not found at "+packageFile.getAbsolutePath());
+			return new KymoButlerAnalysisResult(false, null, null, baseName, false, null, System.currentTimeMillis()-start, 0, messages);
 		}
 		
-		updateOutputDirFromImage(currentImage);
-		String timeStamp=new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date());
-		String baseName=sanitizeBaseName(currentImage.getTitle());
-		File sessionDir=new File(localOutputDir, "KymoButlerLocal_"+timeStamp+"_"+baseName);
-		if(!sessionDir.exists() && !sessionDir.mkdirs()) {
-			IJ.log("Local mode: unable to create output directory "+sessionDir.getAbsolutePath());
-			return null;
+		if(request.prescan) {
+			java.util.List<java.awt.Rectangle> regions=KymoButlerSparseAnalysis.findRegions(request.image, request.prescanSnr);
+			int width=request.image.getWidth(), height=request.image.getHeight();
+			if(KymoButlerSparseAnalysis.isWorthIt(regions, width, height)) return KymoButlerSparseAnalysis.analyze(request, kbPath, regions);
+			log(messages, "Local mode: signal found over "+Math.round(100*KymoButlerSparseAnalysis.getCoverage(regions, width, height))+"% of the kymograph, analysed at once");
+		}
+		if(KymoButlerTiledAnalysis.isTiled(request)) return KymoButlerTiledAnalysis.analyze(request, kbPath);
+		
+		File sessionDir=createSessionDir(new File(request.getSessionParentDir()), baseName);
+		if(sessionDir==null) {
+			log(messages, "Local mode: unable to create output directory in "+request.getSessionParentDir());
+			return new KymoButlerAnalysisResult(false, null, null, baseName, false, null, System.currentTimeMillis()-start, 0, messages);
 		}
 		
 		String inputPath=new File(sessionDir, baseName+"_input.png").getAbsolutePath();
 		String responsePath=new File(sessionDir, baseName+"_response.json").getAbsolutePath();
-		String overlayPath=new File(sessionDir, baseName+"_overlay.tif").getAbsolutePath();
-		String tracksCsvPath=new File(sessionDir, baseName+"_tracks_long.csv").getAbsolutePath();
-		String pprocTablePath=new File(sessionDir, baseName+"_pproc_table.csv").getAbsolutePath();
-		String pprocHistVPath=new File(sessionDir, baseName+"_pproc_hist_v.png").getAbsolutePath();
-		String pprocHistTPath=new File(sessionDir, baseName+"_pproc_hist_t.png").getAbsolutePath();
-		String pprocHistDistPath=new File(sessionDir, baseName+"_pproc_hist_dist.png").getAbsolutePath();
 		String scriptPath=new File(sessionDir, baseName+"_local.wls").getAbsolutePath();
 		
+		KymoButlerResultCache cache=null;
+		String cacheKey=null;
+		KymoButlerProbabilityMap map=null;
+		if(request.resultCacheMB>0 && request.cacheDir!=null) {
+			try {
+				cache=new KymoButlerResultCache(new File(request.cacheDir), (long) (request.resultCacheMB*1024*1024));
+				cacheKey=KymoButlerResultCache.key(request.image, request.getCacheParameters(), KymoButlerResultCache.modelFingerprint(new File(kbPath)));
+				
+				//Without cached maps, the network is run again to export them
+				if(request.probabilityMaps) map=KymoButlerProbabilityMap.find(request, kbPath);
+				String cached=request.probabilityMaps && map==null?null:cache.get(cacheKey, sessionDir, baseName);
+				if(cached!=null) {
+					log(messages, "Local mode: results found in cache ("+cacheKey+")");
+					String segmentsPath=request.segmentTracks?saveSegmentsTable(request, cached, sessionDir, baseName, messages):null;
+					return new KymoButlerAnalysisResult(true, cached, sessionDir.getAbsolutePath(), baseName, true, segmentsPath, System.currentTimeMillis()-start, 0, messages);
+				}
+			} catch (IOException e) {
+				log(messages, "Local mode: results cache unavailable, "+e.getMessage());
+				cache=null;
+			}
+		}
+		
+		if(map!=null) {
+			//Tracks extracted in Java approximate KymoButler's tracking: they are not stored as KymoButler results
+			log(messages, "Local mode: probability maps found in cache, KymoButler was not run.");
+			return map.analyze(request, kbPath, sessionDir, baseName, start, messages);
+		}
+		
 		try {
-			ImageIO.write(currentImage.getBufferedImage(), "png", new File(inputPath));
+			ImageIO.write(request.image, "png", new File(inputPath));
 		} catch (IOException e) {
-			IJ.log("Local mode: unable to write input image to "+inputPath);
-			return null;
+			log(messages, "Local mode: unable to write input image to "+inputPath);
+			return new KymoButlerAnalysisResult(false, null, sessionDir.getAbsolutePath(), baseName, false, null, System.currentTimeMillis()-start, 0, messages);
 		}
 		
-		String script=buildLocalScript(inputPath, responsePath, overlayPath, tracksCsvPath,
-				pprocTablePath, pprocHistVPath, pprocHistTPath, pprocHistDistPath);
+		String script=buildLocalScript(request, kbPath, sessionDir, baseName);
 		
 		try {
 			FileUtils.writeStringToFile(new File(scriptPath), script, "UTF-8");
 		} catch (IOException e) {
-			IJ.log("Local mode: unable to write WolframScript file to "+scriptPath);
-			return null;
+			log(messages, "Local mode: unable to write WolframScript file to "+scriptPath);
+			return new KymoButlerAnalysisResult(false, null, sessionDir.getAbsolutePath(), baseName, false, null, System.currentTimeMillis()-start, 0, messages);
+		}
+		
+		long kernelStart=System.currentTimeMillis();
+		int status=runScript(request.wolframScriptPath, scriptPath, request.timeOutMs, messages);
+		long kernelMs=System.currentTimeMillis()-kernelStart;
+		if(status<0) {
+			return new KymoButlerAnalysisResult(false, null, sessionDir.getAbsolutePath(), baseName, false, null, System.currentTimeMillis()-start, kernelMs, messages);
 		}
 		
-		lastOutputDir=sessionDir.getAbsolutePath();
+		boolean succeeded=status==0;
+		if(!succeeded) {
+			log(messages, "Local mode: WolframScript returned a non-zero status.");
+		}
 		
+		String response;
+		try {
+			response=FileUtils.readFileToString(new File(responsePath), "UTF-8");
+		} catch (IOException e) {
+			log(messages, "Local mode: unable to read response file "+responsePath);
+			return new KymoButlerAnalysisResult(false, null, sessionDir.getAbsolutePath(), baseName, false, null, System.currentTimeMillis()-start, kernelMs, messages);
+		}
+		
+		if(cache!=null && succeeded) cache.put(cacheKey, sessionDir, baseName);
+		if(request.probabilityMaps && succeeded) KymoButlerProbabilityMap.store(request, kbPath, sessionDir, baseName);
+		String segmentsPath=request.segmentTracks && succeeded?saveSegmentsTable(request, response, sessionDir, baseName, messages):null;
+		return new KymoButlerAnalysisResult(true, response, sessionDir.getAbsolutePath(), baseName, false, segmentsPath, System.currentTimeMillis()-start, kernelMs, messages);
+	}
+	
+	/**
+	 * Runs a WolframScript file, logging its output
+	 * @param wolframScriptPath path to WolframScript
+	 * @param scriptPath path to the script
+	 * @param timeOutMs maximum time allowed to the script, in ms
+	 * @param messages the messages of the analysis
+	 * @return the exit status of WolframScript, or -1 if it could not be run or timed out
+	 */
+	static int runScript(String wolframScriptPath, String scriptPath, long timeOutMs, java.util.List<String> messages) {
 		ProcessBuilder pb=new ProcessBuilder(wolframScriptPath, "-file", scriptPath);
 		pb.redirectErrorStream(true);
 		
-		startTime=System.currentTimeMillis();
-		Process proc=null;
 		try {
-			proc=pb.start();
-			logProcessOutput(proc);
-			boolean finished=proc.waitFor(timeOut, TimeUnit.MILLISECONDS);
+			Process proc=pb.start();
+			logProcessOutput(proc, messages);
+			boolean finished=proc.waitFor(timeOutMs, TimeUnit.MILLISECONDS);
 			if(!finished) {
 				proc.destroyForcibly();
-				IJ.log("Local mode: process timed out.");
-				return null;
+				log(messages, "Local mode: process timed out.");
+				return -1;
 			}
+			return proc.exitValue();
 		} catch (IOException | InterruptedException e) {
-			IJ.log("Local mode: failed to run WolframScript.");
-			return null;
+			log(messages, "Local mode: failed to run WolframScript.");
+			return -1;
 		}
-		
-		if(proc.exitValue()!=0) {
-			IJ.log("Local mode: WolframScript returned a non-zero status.");
+	}
+	
+	/**
+	 * Creates a new session folder, named after the date and the image: if a folder of the same name exists
+	 * (e.g. analyses of images with the same name started within the same second), a number is appended
+	 * @param parent the folder where the session folder is created
+	 * @param baseName the image's base name
+	 * @return the session folder, or null if it could not be created
+	 */
+	static File createSessionDir(File parent, String baseName) {
+		if(!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) return null;
+		String stamp="KymoButlerLocal_"+new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date());
+		for(int i=1; i<1000; i++) {
+			//The counter goes before the base name, which has to end the folder's name
+			File dir=new File(parent, stamp+(i==1?"":"_"+i)+"_"+baseName);
+			if(dir.mkdir()) return dir;
 		}
+		return null;
+	}
+	
+	/**
+	 * Splits the tracks of a response into run, pause and reversal segments and saves them in the session folder
+	 * @param request the analysis request, holding the segmentation settings
+	 * @param response the KymoButler response
+	 * @param sessionDir the session folder
+	 * @param baseName the base name of the output files
+	 * @param messages the messages of the analysis
+	 * @return the path to the segments table, or null if it was not written
+	 */
+	static String saveSegmentsTable(KymoButlerAnalysisRequest request, String response, File sessionDir, String baseName, java.util.List<String> messages) {
+		if(!KymoButlerResponseParser.isJSON(response)) return null;
+		KymoButlerResponseParser parser=new KymoButlerResponseParser(response);
+		KymoButlerTracks tracks=parser.hasError()?null:parser.getTrackData();
+		if(tracks==null) return null;
 		
+		KymoButlerSegmentClassifier classifier=new KymoButlerSegmentClassifier(request.segPauseVelocity, request.segMinFrames);
+		if(request.usePhysical) classifier.setCalibration(request.timeSize, request.spaceSize);
+		classifier.classify(tracks);
+		
+		String path=new File(sessionDir, baseName+"_segments_table.csv").getAbsolutePath();
 		try {
-			return FileUtils.readFileToString(new File(responsePath), "UTF-8");
+			classifier.writeTable(path);
 		} catch (IOException e) {
-			IJ.log("Local mode: unable to read response file "+responsePath);
+			log(messages, "Local mode: unable to write segments table to "+path);
 			return null;
 		}
+		return path;
+	}
+	
+	/**
+	 * Logs a message, and keeps it with the messages of an analysis
+	 * @param messages the messages of the analysis
+	 * @param msg the message
+	 */
+	static void log(java.util.List<String> messages, String msg) {
+		IJ.log(msg);
+		messages.add(msg);
 	}
 	
 	/**
@@ -472,15 +676,42 @@ public class KymoButlerIO{
 		useBidirectional=Prefs.get("KymoButler_useBidirectional.boolean", false);
 		decisionThreshold=Prefs.get("KymoButler_decisionThreshold.double", 0.5);
 		pprocUsePhysical=Prefs.get("KymoButler_pprocUsePhysical.boolean", true);
+		segmentTracks=Prefs.get("KymoButler_segmentTracks.boolean", true);
+		segPauseVelocity=Prefs.get("KymoButler_segPauseVelocity.double", 0.1);
+		segMinFrames=Prefs.get("KymoButler_segMinFrames.double", 3);
+		resultCacheMB=Prefs.get("KymoButler_resultCacheMB.double", 1024);
+		tileRows=(int) Prefs.get("KymoButler_tileRows.double", 0);
+		tileOverlap=(int) Prefs.get("KymoButler_tileOverlap.double", 64);
+		tileWorkers=(int) Prefs.get("KymoButler_tileWorkers.double", 2);
+		prescan=Prefs.get("KymoButler_prescan.boolean", false);
+		prescanSnr=Prefs.get("KymoButler_prescanSnr.double", 3);
+		probabilityMaps=Prefs.get("KymoButler_probabilityMaps.boolean", false);
 		updateOutputDirFromImage(currentImage);
 	}
 	
-	private String buildLocalScript(String inputPath, String responsePath, String overlayPath, String tracksCsvPath,
-			String pprocTablePath, String pprocHistVPath, String pprocHistTPath, String pprocHistDistPath) {
+	/**
+	 * Builds the WolframScript running the analysis of a request
+	 * @param request the analysis request
+	 * @param kbPath the folder of the local KymoButler installation
+	 * @param sessionDir the session folder, where the outputs are written
+	 * @param baseName the base name of the output files
+	 * @return the script
+	 */
+	static String buildLocalScript(KymoButlerAnalysisRequest request, String kbPath, File sessionDir, String baseName) {
+		String inputPath=new File(sessionDir, baseName+"_input.png").getAbsolutePath();
+		String responsePath=new File(sessionDir, baseName+"_response.json").getAbsolutePath();
+		String overlayPath=new File(sessionDir, baseName+"_overlay.tif").getAbsolutePath();
+		String tracksCsvPath=new File(sessionDir, baseName+"_tracks_long.csv").getAbsolutePath();
+		String pprocTablePath=new File(sessionDir, baseName+"_pproc_table.csv").getAbsolutePath();
+		String pprocHistVPath=new File(sessionDir, baseName+"_pproc_hist_v.png").getAbsolutePath();
+		String pprocHistTPath=new File(sessionDir, baseName+"_pproc_hist_t.png").getAbsolutePath();
+		String pprocHistDistPath=new File(sessionDir, baseName+"_pproc_hist_dist.png").getAbsolutePath();
+		String mapInfoPath=new File(sessionDir, baseName+KymoButlerProbabilityMap.INFO_SUFFIX).getAbsolutePath();
+		String mapDataPath=new File(sessionDir, baseName+KymoButlerProbabilityMap.DATA_SUFFIX).getAbsolutePath();
 		StringBuilder sb=new StringBuilder();
 		
 		sb.append("$HistoryLength=0;\n");
-		sb.append("kbPath=\"").append(escapeForWolfram(localKymoButlerPath)).append("\";\n");
+		sb.append("kbPath=\"").append(escapeForWolfram(kbPath)).append("\";\n");
 		sb.append("inputPath=\"").append(escapeForWolfram(inputPath)).append("\";\n");
 		sb.append("responsePath=\"").append(escapeForWolfram(responsePath)).append("\";\n");
 		sb.append("overlayPath=\"").append(escapeForWolfram(overlayPath)).append("\";\n");
@@ -489,15 +720,15 @@ public class KymoButlerIO{
 		sb.append("pprocHistVPath=\"").append(escapeForWolfram(pprocHistVPath)).append("\";\n");
 		sb.append("pprocHistTPath=\"").append(escapeForWolfram(pprocHistTPath)).append("\";\n");
 		sb.append("pprocHistDistPath=\"").append(escapeForWolfram(pprocHistDistPath)).append("\";\n");
-		sb.append("p=").append(p).append(";\n");
-		sb.append("minSz=").append(minimumSize).append(";\n");
-		sb.append("minFr=").append(minimumFrames).append(";\n");
-		sb.append("tsz=").append(timeSize).append(";\n");
-		sb.append("xsz=").append(spaceSize).append(";\n");
-		sb.append("useBi=").append(useBidirectional ? "True" : "False").append(";\n");
-		sb.append("vthr=").append(decisionThreshold).append(";\n");
-		sb.append("usePhys=").append(pprocUsePhysical ? "True" : "False").append(";\n");
-		sb.append("device=\"").append(escapeForWolfram(targetDevice)).append("\";\n");
+		sb.append("p=").append(request.threshold).append(";\n");
+		sb.append("minSz=").append(request.minimumSize).append(";\n");
+		sb.append("minFr=").append(request.minimumFrames).append(";\n");
+		sb.append("tsz=").append(request.timeSize).append(";\n");
+		sb.append("xsz=").append(request.spaceSize).append(";\n");
+		sb.append("useBi=").append(request.useBidirectional ? "True" : "False").append(";\n");
+		sb.append("vthr=").append(request.decisionThreshold).append(";\n");
+		sb.append("usePhys=").append(request.usePhysical ? "True" : "False").append(";\n");
+		sb.append("device=\"").append(escapeForWolfram(request.targetDevice)).append("\";\n");
 		sb.append("Get[FileNameJoin[{kbPath,\"packages\",\"KymoButler.wl\"}]];\n");
 		sb.append("Get[FileNameJoin[{kbPath,\"packages\",\"KymoButlerPProc.wl\"}]];\n");
 		sb.append("models=Quiet[loadDefaultNets[kbPath]];\n");
@@ -543,22 +774,72 @@ public class KymoButlerIO{
 		sb.append("overlayData=ImageData[ColorConvert[overlay, \"RGB\"]];\n");
 		sb.append("json=ExportString[<|\"Kymograph\"->kymoData,\"overlay\"->overlayData,\"tracks\"->tracks|>,\"JSON\"];\n");
 		sb.append("Export[responsePath, json, \"String\"];\n");
+		if(request.probabilityMaps) {
+			//Maps are written channels first, as little-endian floats, only if they match the kymograph
+			sb.append("mapInfoPath=\"").append(escapeForWolfram(mapInfoPath)).append("\";\n");
+			sb.append("mapDataPath=\"").append(escapeForWolfram(mapDataPath)).append("\";\n");
+			sb.append("net=If[useBi, models[\"binet\"], models[\"uninet\"]];\n");
+			sb.append("maps=Quiet@Check[net[ImageData[ColorConvert[kym, \"Grayscale\"]], TargetDevice->device], $Failed];\n");
+			sb.append("If[AssociationQ[maps], maps=Values[maps]];\n");
+			sb.append("maps=Quiet@Check[N[maps], $Failed];\n");
+			sb.append("If[ArrayQ[maps, _, NumericQ] && ArrayDepth[maps]==2, maps={maps}];\n");
+			sb.append("If[ArrayQ[maps, _, NumericQ] && ArrayDepth[maps]==3 && Dimensions[maps][[1]]>2, maps=Transpose[maps, {2, 3, 1}]];\n");
+			sb.append("If[ArrayQ[maps, 3, NumericQ] && Rest[Dimensions[maps]]==Reverse[ImageDimensions[kym]],\n");
+			sb.append("  BinaryWrite[mapDataPath, Flatten[maps], \"Real32\", ByteOrdering->-1]; Close[mapDataPath];\n");
+			sb.append("  Export[mapInfoPath, ExportString[<|\"channels\"->Length[maps],\"height\"->Dimensions[maps][[2]],\"width\"->Dimensions[maps][[3]],\"model\"->If[useBi,\"bi\",\"uni\"]|>,\"JSON\"],\"String\"];\n");
+			sb.append("];\n");
+		}
+		
+		return sb.toString();
+	}
+	
+	/**
+	 * Builds the WolframScript running the postprocessing only, on tracks saved as JSON (e.g. tracks stitched
+	 * from several analyses), and writing the postprocessing table and histograms of a session
+	 * @param request the analysis request, holding the calibration
+	 * @param kbPath the folder of the local KymoButler installation
+	 * @param tracksPath the path to the tracks, as a JSON list of {t, x} pairs per track
+	 * @param sessionDir the session folder, where the outputs are written
+	 * @param baseName the base name of the output files
+	 * @return the script
+	 */
+	static String buildPprocScript(KymoButlerAnalysisRequest request, String kbPath, String tracksPath, File sessionDir, String baseName) {
+		StringBuilder sb=new StringBuilder();
+		
+		sb.append("$HistoryLength=0;\n");
+		sb.append("kbPath=\"").append(escapeForWolfram(kbPath)).append("\";\n");
+		sb.append("tracksPath=\"").append(escapeForWolfram(tracksPath)).append("\";\n");
+		sb.append("pprocTablePath=\"").append(escapeForWolfram(new File(sessionDir, baseName+"_pproc_table.csv").getAbsolutePath())).append("\";\n");
+		sb.append("pprocHistVPath=\"").append(escapeForWolfram(new File(sessionDir, baseName+"_pproc_hist_v.png").getAbsolutePath())).append("\";\n");
+		sb.append("pprocHistTPath=\"").append(escapeForWolfram(new File(sessionDir, baseName+"_pproc_hist_t.png").getAbsolutePath())).append("\";\n");
+		sb.append("pprocHistDistPath=\"").append(escapeForWolfram(new File(sessionDir, baseName+"_pproc_hist_dist.png").getAbsolutePath())).append("\";\n");
+		sb.append("tsz=").append(request.timeSize).append(";\n");
+		sb.append("xsz=").append(request.spaceSize).append(";\n");
+		sb.append("usePhys=").append(request.usePhysical ? "True" : "False").append(";\n");
+		sb.append("Get[FileNameJoin[{kbPath,\"packages\",\"KymoButlerPProc.wl\"}]];\n");
+		sb.append("tracks=Import[tracksPath, \"RawJSON\"];\n");
+		sb.append("If[!usePhys, tsz=1; xsz=1;];\n");
+		sb.append("pp=pprocLocal[tracks, tsz, xsz];\n");
+		sb.append("Export[pprocTablePath, pp[[2]]];\n");
+		sb.append("Export[pprocHistVPath, pp[[1,1]]];\n");
+		sb.append("Export[pprocHistTPath, pp[[1,2]]];\n");
+		sb.append("Export[pprocHistDistPath, pp[[1,3]]];\n");
 		
 		return sb.toString();
 	}
 	
-	private void logProcessOutput(Process proc) {
+	private static void logProcessOutput(Process proc, java.util.List<String> messages) {
 		try (BufferedReader reader=new BufferedReader(new InputStreamReader(proc.getInputStream()))) {
 			String line;
 			while((line=reader.readLine())!=null) {
-				if(!line.trim().isEmpty()) IJ.log(line);
+				if(!line.trim().isEmpty()) log(messages, line);
 			}
 		} catch (IOException e) {
 			// ignore logging errors
 		}
 	}
 	
-	private String sanitizeBaseName(String title) {
+	static String sanitizeBaseName(String title) {
 		if(title==null || title.trim().isEmpty()) return "kymograph";
 		String base=title;
 		int dot=base.lastIndexOf(".");
@@ -566,12 +847,16 @@ public class KymoButlerIO{
 		return base.replaceAll("[^A-Za-z0-9._-]", "_");
 	}
 	
-	private String escapeForWolfram(String path) {
+	private static String escapeForWolfram(String path) {
 		if(path==null) return "";
 		return path.replace("\\", "\\\\").replace("\"", "\\\"");
 	}
 	
 	private void updateOutputDirFromImage(ImagePlus ip) {
+		if(fixedOutputDir!=null) {
+			localOutputDir=fixedOutputDir;
+			return;
+		}
 		if(ip==null) return;
 		FileInfo info=ip.getOriginalFileInfo();
 		if(info!=null && info.directory!=null && !info.directory.trim().isEmpty()) {
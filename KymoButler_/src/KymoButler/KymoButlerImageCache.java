@@ -0,0 +1,296 @@
+/**
+*
+*  KymoButlerImageCache.java, 18 oct. 2026
+*
+*  Size-bounded cache of preprocessed images, keyed by content.
+*
+*/
+
+/*
+ * This file is part of KymoButler for ImageJ and is distributed
+ * under the terms of the GNU General Public License v3.0 or later.
+ */
+
+package KymoButler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+
+/**
+ * This class keeps preprocessed images (e.g. Improve Kymo outputs) in memory, least recently used first out,
+ * within a maximum number of bytes. Entries may also be persisted as TIFF files in a cache folder, so that
+ * they survive from one ImageJ session to the next; the folder is kept within the same maximum number of bytes.
+ * Files are read and written outside the cache's lock, so that a slow disk does not hold other threads.
+ * Keys are built by the caller, usually from contentKey() and a description of the preprocessing parameters.
+ *
+ */
+public class KymoButlerImageCache {
+	/** Name of the cache folder, created next to the local session folders **/
+	public static final String CACHE_FOLDER="KymoButlerLocal_cache";
+
+	/** Maximum number of bytes kept in memory **/
+	long maxBytes;
+
+	/** Number of bytes currently kept in memory **/
+	long bytes=0;
+
+	/** Cached stacks, from least to most recently used **/
+	final LinkedHashMap<String, ImageStack> entries=new LinkedHashMap<String, ImageStack>(16, 0.75f, true);
+
+	/**
+	 * Builds a new cache
+	 * @param maxBytes maximum number of bytes kept in memory and in each cache folder (0 disables caching)
+	 */
+	public KymoButlerImageCache(long maxBytes) {
+		this.maxBytes=maxBytes;
+	}
+
+	/**
+	 * Sets the maximum number of bytes kept in memory, evicting the least recently used entries if needed
+	 * @param maxBytes maximum number of bytes kept in memory and in each cache folder (0 disables caching)
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes=maxBytes;
+		evict();
+	}
+
+	/**
+	 * Looks for an entry, first in memory, then in the cache folder (the entry is then brought back to memory)
+	 * @param key the entry's key
+	 * @param cacheDir the cache folder, or null to look in memory only
+	 * @return a copy of the cached stack, or null if not found
+	 */
+	public ImageStack get(String key, File cacheDir) {
+		synchronized(this) {
+			if(maxBytes<=0) return null;
+			ImageStack stack=entries.get(key);
+			if(stack!=null) return stack.duplicate();
+		}
+		if(cacheDir==null) return null;
+
+		File file=new File(cacheDir, key+".tif");
+		if(!file.isFile()) return null;
+		ImagePlus imp=IJ.openImage(file.getAbsolutePath());
+		if(imp==null) return null;
+		file.setLastModified(System.currentTimeMillis());
+		ImageStack stack=imp.getStack();
+		synchronized(this) {
+			store(key, stack);
+		}
+		return stack.duplicate();
+	}
+
+	/**
+	 * Stores an entry in memory and, if a cache folder is given, on disk.
+	 * The stack is kept as is: it should not be modified afterwards
+	 * @param key the entry's key
+	 * @param stack the stack to cache
+	 * @param cacheDir the cache folder, or null to keep the entry in memory only
+	 */
+	public void put(String key, ImageStack stack, File cacheDir) {
+		if(stack==null) return;
+		long max;
+		synchronized(this) {
+			max=maxBytes;
+			if(max<=0) return;
+			store(key, stack);
+		}
+		if(cacheDir==null || sizeOf(stack)>max) return;
+
+		if(!cacheDir.exists() && !cacheDir.mkdirs()) {
+			IJ.log("[KymoButler] Unable to create cache folder "+cacheDir.getAbsolutePath());
+			return;
+		}
+		//Written under a temporary name, so that other threads never read a partial file
+		File file=new File(cacheDir, key+".tif");
+		File tmp=new File(cacheDir, key+".tmp-"+System.nanoTime()+".tif");
+		FileSaver saver=new FileSaver(new ImagePlus(key, stack));
+		boolean saved=stack.getSize()>1?saver.saveAsTiffStack(tmp.getAbsolutePath()):saver.saveAsTiff(tmp.getAbsolutePath());
+		try {
+			if(!saved) throw new IOException("unable to write "+tmp.getAbsolutePath());
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			tmp.delete();
+			IJ.log("[KymoButler] Unable to save cache entry "+file.getAbsolutePath());
+			return;
+		}
+		evictFiles(cacheDir, max);
+	}
+
+	/**
+	 * Removes all the entries kept in memory (files in cache folders are left untouched)
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		bytes=0;
+	}
+
+	/**
+	 * Returns the number of entries kept in memory
+	 * @return the number of entries
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns the number of bytes kept in memory
+	 * @return the number of bytes
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Computes a key identifying the content of an image: its dimensions, type and the pixels of all its slices
+	 * @param imp the image
+	 * @return the key, as a hexadecimal SHA-1 digest
+	 */
+	public static String contentKey(ImagePlus imp) {
+		MessageDigest digest;
+		try {
+			digest=MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		ImageStack stack=imp.getStack();
+		ByteBuffer buffer=ByteBuffer.allocate(1<<16);
+		buffer.putInt(stack.getWidth()).putInt(stack.getHeight()).putInt(stack.getSize()).putInt(imp.getBitDepth());
+		flush(digest, buffer);
+
+		for(int slice=1; slice<=stack.getSize(); slice++) {
+			Object pixels=stack.getPixels(slice);
+			if(pixels instanceof byte[]) {
+				digest.update((byte[]) pixels);
+			}else if(pixels instanceof short[]) {
+				short[] array=(short[]) pixels;
+				for(int i=0; i<array.length; ) {
+					int n=Math.min(array.length-i, buffer.capacity()/2);
+					buffer.asShortBuffer().put(array, i, n);
+					buffer.position(2*n);
+					flush(digest, buffer);
+					i+=n;
+				}
+			}else if(pixels instanceof float[]) {
+				float[] array=(float[]) pixels;
+				for(int i=0; i<array.length; ) {
+					int n=Math.min(array.length-i, buffer.capacity()/4);
+					buffer.asFloatBuffer().put(array, i, n);
+					buffer.position(4*n);
+					flush(digest, buffer);
+					i+=n;
+				}
+			}else if(pixels instanceof int[]) {
+				int[] array=(int[]) pixels;
+				for(int i=0; i<array.length; ) {
+					int n=Math.min(array.length-i, buffer.capacity()/4);
+					buffer.asIntBuffer().put(array, i, n);
+					buffer.position(4*n);
+					flush(digest, buffer);
+					i+=n;
+				}
+			}
+		}
+
+		StringBuilder sb=new StringBuilder();
+		for(byte b : digest.digest()) sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the number of bytes used by a stack's pixels
+	 * @param stack the stack
+	 * @return the number of bytes
+	 */
+	public static long sizeOf(ImageStack stack) {
+		int bytesPerPixel=stack.getBitDepth()==24?4:Math.max(1, stack.getBitDepth()/8);
+		return (long) stack.getWidth()*stack.getHeight()*stack.getSize()*bytesPerPixel;
+	}
+
+	/**
+	 * Stores an entry in memory, unless it is larger than the cache itself, then evicts the least recently used entries
+	 * @param key the entry's key
+	 * @param stack the stack to cache
+	 */
+	private void store(String key, ImageStack stack) {
+		long size=sizeOf(stack);
+		if(size>maxBytes) return;
+		ImageStack previous=entries.put(key, stack);
+		if(previous!=null) bytes-=sizeOf(previous);
+		bytes+=size;
+		evict();
+	}
+
+	/**
+	 * Removes the least recently used entries until the cache fits in its maximum size
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, ImageStack>> it=entries.entrySet().iterator();
+		while(bytes>maxBytes && it.hasNext()) {
+			bytes-=sizeOf(it.next().getValue());
+			it.remove();
+		}
+	}
+
+	/**
+	 * Deletes the least recently used files of a cache folder until it fits in a maximum size
+	 * @param cacheDir the cache folder
+	 * @param max the maximum number of bytes kept in the folder
+	 */
+	static void evictFiles(File cacheDir, long max) {
+		File[] files=cacheDir.listFiles();
+		if(files==null) return;
+
+		final long[] stamps=new long[files.length];
+		long total=0;
+		List<Integer> order=new ArrayList<Integer>();
+		for(int i=0; i<files.length; i++) {
+			if(!files[i].isFile() || !files[i].getName().endsWith(".tif") || files[i].getName().contains(".tmp-")) continue;
+			stamps[i]=files[i].lastModified();
+			total+=files[i].length();
+			order.add(i);
+		}
+		if(total<=max) return;
+
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(stamps[a], stamps[b]);
+			}
+		});
+		for(int i : order) {
+			if(total<=max) break;
+			long size=files[i].length();
+			if(files[i].delete()) total-=size;
+		}
+	}
+
+	/**
+	 * Feeds the content of a buffer to a digest, then clears the buffer
+	 * @param digest the digest
+	 * @param buffer the buffer
+	 */
+	private static void flush(MessageDigest digest, ByteBuffer buffer) {
+		buffer.flip();
+		digest.update(buffer);
+		buffer.clear();
+	}
+}
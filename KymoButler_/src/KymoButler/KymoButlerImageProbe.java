@@ -0,0 +1,357 @@
+/**
+*
+*  KymoButlerImageProbe.java, 18 oct. 2026
+*
+*  Reads image dimensions from file headers, without decoding the pixels.
+*
+*/
+
+/*
+ * This file is part of KymoButler for ImageJ and is distributed
+ * under the terms of the GNU General Public License v3.0 or later.
+ */
+
+package KymoButler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+import ij.Prefs;
+
+/**
+ * This class reads the dimensions of an image from its file header only: TIFF (including BigTIFF and
+ * ImageJ stacks) and PNG headers are parsed directly, other formats go through the header of their ImageIO reader.
+ * It lets a batch skip or sort its inputs before any pixel is loaded.
+ * Rules tell which images are worth analysing, based on their dimensions.
+ *
+ */
+public class KymoButlerImageProbe {
+	/** Maximum number of TIFF directories followed when counting slices **/
+	static final int MAX_IFDS=100000;
+
+	/** Number of images, in an ImageJ TIFF description **/
+	static final Pattern IMAGES=Pattern.compile("images=(\\d+)");
+
+	/**
+	 * Dimensions of an image, as read from its header
+	 */
+	public static class Info {
+		/** Image width, in pixels (space axis of a kymograph) **/
+		public final int width;
+
+		/** Image height, in pixels (time axis of a kymograph) **/
+		public final int height;
+
+		/** ImageJ bit depth: 8, 16, 24 (RGB) or 32 **/
+		public final int bitDepth;
+
+		/** Number of images in the file **/
+		public final int slices;
+
+		/** File format, e.g. "TIFF" or "PNG" **/
+		public final String format;
+
+		/**
+		 * Builds a new Info
+		 * @param width image width, in pixels
+		 * @param height image height, in pixels
+		 * @param bitDepth ImageJ bit depth
+		 * @param slices number of images in the file
+		 * @param format file format
+		 */
+		public Info(int width, int height, int bitDepth, int slices, String format) {
+			this.width=width;
+			this.height=height;
+			this.bitDepth=bitDepth;
+			this.slices=slices;
+			this.format=format;
+		}
+
+		/**
+		 * Returns the number of pixels of the file
+		 * @return width x height x slices
+		 */
+		public long getPixelCount() {
+			return (long) width*height*slices;
+		}
+
+		/**
+		 * Returns the number of bytes the decoded file uses in ImageJ
+		 * @return the number of bytes
+		 */
+		public long getBytes() {
+			return getPixelCount()*(bitDepth==24?4:Math.max(1, bitDepth/8));
+		}
+
+		@Override
+		public String toString() {
+			return format+" "+width+"x"+height+(slices>1?"x"+slices:"")+", "+bitDepth+"-bit";
+		}
+	}
+
+	/**
+	 * Rules telling which images a batch should analyse
+	 */
+	public static class Rules {
+		/** Minimum width, in pixels (0 for no minimum) **/
+		final int minWidth;
+
+		/** Minimum height, i.e. number of time points (0 for no minimum) **/
+		final int minHeight;
+
+		/** Maximum number of pixels per image, in millions (0 for no maximum) **/
+		final double maxMegapixels;
+
+		/** True to reject stacks **/
+		final boolean only2D;
+
+		/**
+		 * Builds new rules
+		 * @param minWidth minimum width, in pixels (0 for no minimum)
+		 * @param minHeight minimum height, i.e. number of time points (0 for no minimum)
+		 * @param maxMegapixels maximum number of pixels per image, in millions (0 for no maximum)
+		 * @param only2D true to reject stacks
+		 */
+		public Rules(int minWidth, int minHeight, double maxMegapixels, boolean only2D) {
+			this.minWidth=minWidth;
+			this.minHeight=minHeight;
+			this.maxMegapixels=maxMegapixels;
+			this.only2D=only2D;
+		}
+
+		/**
+		 * Checks an image against the rules
+		 * @param info the image's dimensions
+		 * @return the reason why the image is rejected, or null if it is accepted
+		 */
+		public String reject(Info info) {
+			if(info.width<minWidth) return "width "+info.width+" < "+minWidth;
+			if(info.height<minHeight) return "height "+info.height+" < "+minHeight;
+			if(maxMegapixels>0 && (double) info.width*info.height>maxMegapixels*1e6) return info.width+"x"+info.height+" > "+maxMegapixels+" megapixels";
+			if(only2D && info.slices>1) return "stack of "+info.slices+" images";
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the dimensions of an image file from its header
+	 * @param file the file
+	 * @return the dimensions, or null if the format is not recognised or the header could not be read
+	 */
+	public static Info probe(File file) {
+		try (RandomAccessFile raf=new RandomAccessFile(file, "r")) {
+			byte[] magic=new byte[8];
+			if(raf.read(magic)<8) return null;
+			if((magic[0]=='I' && magic[1]=='I') || (magic[0]=='M' && magic[1]=='M')) return probeTiff(raf, magic[0]=='I'?ByteOrder.LITTLE_ENDIAN:ByteOrder.BIG_ENDIAN);
+			if((magic[0]&0xFF)==0x89 && magic[1]=='P' && magic[2]=='N' && magic[3]=='G') return probePng(raf);
+		} catch (IOException e) {
+			return null;
+		}
+		return probeImageIO(file);
+	}
+
+	/**
+	 * Reads the dimensions of several image files from their headers, in parallel
+	 * @param files the files
+	 * @return the dimensions of each file, null for the files whose header could not be read
+	 */
+	public static Info[] probeAll(List<File> files) {
+		Info[] infos=new Info[files.size()];
+		if(files.isEmpty()) return infos;
+		ExecutorService pool=Executors.newFixedThreadPool(Math.max(1, Math.min(Prefs.getThreads(), files.size())));
+		List<Future<Info>> futures=new ArrayList<Future<Info>>();
+		for(final File file : files) {
+			futures.add(pool.submit(new Callable<Info>() {
+				@Override
+				public Info call() {
+					return probe(file);
+				}
+			}));
+		}
+		pool.shutdown();
+
+		for(int i=0; i<infos.length; i++) {
+			try {
+				infos[i]=futures.get(i).get();
+			} catch (InterruptedException e) {
+				pool.shutdownNow();
+				Thread.currentThread().interrupt();
+				break;
+			} catch (ExecutionException e) {
+				infos[i]=null;
+			}
+		}
+		return infos;
+	}
+
+	/**
+	 * Reads the first directory of a TIFF file, then counts its directories (or reads their number from an ImageJ description)
+	 * @param raf the file
+	 * @param order the file's byte order
+	 * @return the dimensions, or null if the header is invalid
+	 * @throws IOException if the file could not be read
+	 */
+	static Info probeTiff(RandomAccessFile raf, ByteOrder order) throws IOException {
+		ByteBuffer header=read(raf, 0, 16, order);
+		int version=header.getShort(2)&0xFFFF;
+		boolean big=version==43;
+		if(version!=42 && !big) return null;
+		long offset=big?header.getLong(8):header.getInt(4)&0xFFFFFFFFL;
+
+		int entrySize=big?20:12;
+		long width=0, height=0, bits=1, samples=1;
+		String description=null;
+		long first=offset;
+
+		ByteBuffer countBuffer=read(raf, offset, big?8:2, order);
+		long nEntries=big?countBuffer.getLong(0):countBuffer.getShort(0)&0xFFFF;
+		ByteBuffer entries=read(raf, offset+(big?8:2), (int) (nEntries*entrySize), order);
+		for(int i=0; i<nEntries; i++) {
+			int base=i*entrySize;
+			int tag=entries.getShort(base)&0xFFFF;
+			int type=entries.getShort(base+2)&0xFFFF;
+			long count=big?entries.getLong(base+4):entries.getInt(base+4)&0xFFFFFFFFL;
+			int valuePos=base+(big?12:8);
+			switch(tag) {
+				case 256: width=value(raf, entries, valuePos, type, count, big, order); break;
+				case 257: height=value(raf, entries, valuePos, type, count, big, order); break;
+				case 258: bits=value(raf, entries, valuePos, type, count, big, order); break;
+				case 277: samples=value(raf, entries, valuePos, type, count, big, order); break;
+				case 270:
+					if(count>(big?8:4)) {
+						long at=big?entries.getLong(valuePos):entries.getInt(valuePos)&0xFFFFFFFFL;
+						ByteBuffer text=read(raf, at, (int) Math.min(count, 4096), order);
+						description=new String(text.array(), StandardCharsets.ISO_8859_1);
+					}
+					break;
+				default: break;
+			}
+		}
+		if(width<=0 || height<=0) return null;
+
+		int slices=0;
+		Matcher matcher=description==null?null:IMAGES.matcher(description);
+		if(matcher!=null && matcher.find()) {
+			slices=Integer.parseInt(matcher.group(1));
+		}else {
+			long ifd=first;
+			while(ifd!=0 && slices<MAX_IFDS) {
+				slices++;
+				try {
+					ByteBuffer count=read(raf, ifd, big?8:2, order);
+					long n=big?count.getLong(0):count.getShort(0)&0xFFFF;
+					long next=ifd+(big?8:2)+n*entrySize;
+					ifd=big?read(raf, next, 8, order).getLong(0):read(raf, next, 4, order).getInt(0)&0xFFFFFFFFL;
+				} catch (IOException e) {
+					//Truncated file: the directories read so far are counted
+					break;
+				}
+			}
+		}
+
+		int bitDepth=samples>=3?24:bits<=8?8:bits<=16?16:32;
+		return new Info((int) width, (int) height, bitDepth, Math.max(1, slices), big?"BigTIFF":"TIFF");
+	}
+
+	/**
+	 * Reads the IHDR chunk of a PNG file
+	 * @param raf the file
+	 * @return the dimensions, or null if the header is invalid
+	 * @throws IOException if the file could not be read
+	 */
+	static Info probePng(RandomAccessFile raf) throws IOException {
+		ByteBuffer ihdr=read(raf, 8, 18, ByteOrder.BIG_ENDIAN);
+		if(ihdr.get(4)!='I' || ihdr.get(5)!='H' || ihdr.get(6)!='D' || ihdr.get(7)!='R') return null;
+		int width=ihdr.getInt(8);
+		int height=ihdr.getInt(12);
+		int depth=ihdr.get(16);
+		int colorType=ihdr.get(17);
+		int bitDepth=colorType==2 || colorType==6?24:depth==16?16:8;
+		return new Info(width, height, bitDepth, 1, "PNG");
+	}
+
+	/**
+	 * Reads the header of an image through its ImageIO reader (JPEG, GIF, BMP...)
+	 * @param file the file
+	 * @return the dimensions, or null if no reader recognises the file
+	 */
+	static Info probeImageIO(File file) {
+		try (ImageInputStream iis=ImageIO.createImageInputStream(file)) {
+			if(iis==null) return null;
+			Iterator<ImageReader> readers=ImageIO.getImageReaders(iis);
+			if(!readers.hasNext()) return null;
+			ImageReader reader=readers.next();
+			try {
+				reader.setInput(iis, true, true);
+				ImageTypeSpecifier type=reader.getRawImageType(0);
+				int bitDepth=type==null || type.getNumBands()>1?24:type.getBitsPerBand(0)>8?16:8;
+				return new Info(reader.getWidth(0), reader.getHeight(0), bitDepth, 1, reader.getFormatName().toUpperCase());
+			} finally {
+				reader.dispose();
+			}
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the first value of a TIFF directory entry, inline or at its offset
+	 * @param raf the file
+	 * @param entries the directory entries
+	 * @param valuePos position of the entry's value field in the entries
+	 * @param type the entry's TIFF type (3: SHORT, 4: LONG, 16: LONG8)
+	 * @param count the entry's number of values
+	 * @param big true for BigTIFF
+	 * @param order the file's byte order
+	 * @return the value
+	 * @throws IOException if the file could not be read
+	 */
+	static long value(RandomAccessFile raf, ByteBuffer entries, int valuePos, int type, long count, boolean big, ByteOrder order) throws IOException {
+		int size=type==3?2:type==16?8:4;
+		ByteBuffer source=entries;
+		int pos=valuePos;
+		if(count*size>(big?8:4)) {
+			source=read(raf, big?entries.getLong(valuePos):entries.getInt(valuePos)&0xFFFFFFFFL, size, order);
+			pos=0;
+		}
+		if(size==2) return source.getShort(pos)&0xFFFF;
+		if(size==8) return source.getLong(pos);
+		return source.getInt(pos)&0xFFFFFFFFL;
+	}
+
+	/**
+	 * Reads bytes from a file
+	 * @param raf the file
+	 * @param offset position of the first byte
+	 * @param length number of bytes to read
+	 * @param order byte order of the returned buffer
+	 * @return the bytes
+	 * @throws IOException if the bytes could not be read
+	 */
+	static ByteBuffer read(RandomAccessFile raf, long offset, int length, ByteOrder order) throws IOException {
+		if(length<0 || offset<0 || offset+length>raf.length()) throw new IOException("Invalid TIFF offset");
+		byte[] bytes=new byte[length];
+		raf.seek(offset);
+		raf.readFully(bytes);
+		return ByteBuffer.wrap(bytes).order(order);
+	}
+}
@@ -0,0 +1,262 @@
+/**
+*
+*  KymoButlerLeaseManager.java, 18 oct. 2026
+*
+*  Lease files sharing the items of a batch folder between several nodes.
+*
+*/
+
+/*
+ * This file is part of KymoButler for ImageJ and is distributed
+ * under the terms of the GNU General Public License v3.0 or later.
+ */
+
+package KymoButler;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import ij.IJ;
+
+/**
+ * This class lets several nodes (machines or processes) mounting the same storage share the items of a batch
+ * folder, without any coordinator: before analysing an item, a node creates its lease file in the batch folder,
+ * which only succeeds for one node (atomic file creation). While the item is in progress, the node refreshes the
+ * modification date of its lease (heartbeat); a lease that has not been refreshed for the expiry delay belongs to
+ * a crashed node, and may be taken over by another one. Once an item is done, a done marker records it, with the
+ * analysis parameters, so that no other node analyses it again.
+ * Expiry relies on the nodes' clocks being roughly synchronised (within a fraction of the expiry delay).
+ *
+ */
+public class KymoButlerLeaseManager {
+	/** Name of the leases folder, in the batch folder (never explored as batch input) **/
+	public static final String LEASES_FOLDER="KymoButlerLocal_leases";
+
+	/** Identifier of this node: host name and process id **/
+	public static final String NODE_ID=buildNodeId();
+
+	/** Root folder of the batch **/
+	final File root;
+
+	/** The leases folder **/
+	final File dir;
+
+	/** Fingerprint of the analysis parameters, recorded in the done markers **/
+	final String paramsFingerprint;
+
+	/** Delay after which a lease that was not refreshed may be taken over, in ms **/
+	final long expiryMs;
+
+	/** Delay between two heartbeats, in ms **/
+	final long heartbeatMs;
+
+	/** Leases held by this node **/
+	final Set<File> held=new HashSet<File>();
+
+	/** Heartbeat thread **/
+	Thread heartbeat=null;
+
+	/**
+	 * Builds a new lease manager, and starts its heartbeat
+	 * @param root the root folder of the batch, shared by the nodes
+	 * @param paramsFingerprint a fingerprint of the analysis parameters, items done with other parameters being run again
+	 * @param expiryMs delay after which a lease that was not refreshed may be taken over, in ms
+	 */
+	public KymoButlerLeaseManager(File root, String paramsFingerprint, long expiryMs) {
+		this.root=root;
+		this.dir=new File(root, LEASES_FOLDER);
+		this.paramsFingerprint=paramsFingerprint;
+		this.expiryMs=Math.max(1000, expiryMs);
+		this.heartbeatMs=Math.max(200, this.expiryMs/5);
+		if(!dir.isDirectory() && !dir.mkdirs()) IJ.log("[KymoButler] Unable to create leases folder "+dir.getAbsolutePath());
+
+		heartbeat=new Thread("KymoButler lease heartbeat") {
+			@Override
+			public void run() {
+				while(!isInterrupted()) {
+					try {
+						Thread.sleep(heartbeatMs);
+					} catch (InterruptedException e) {
+						break;
+					}
+					refresh();
+				}
+			}
+		};
+		heartbeat.setDaemon(true);
+		heartbeat.start();
+	}
+
+	/**
+	 * Tries to take the lease of an item: succeeds if no other node holds it, or if its holder stopped refreshing it
+	 * @param item the item's file
+	 * @return true if this node now holds the lease, and should analyse the item
+	 */
+	public boolean tryAcquire(File item) {
+		File lease=getFile(item, ".lease");
+		for(int attempt=0; attempt<2; attempt++) {
+			try {
+				JSONObject content=new JSONObject();
+				content.put("item", relativePath(item));
+				content.put("node", NODE_ID);
+				content.put("acquired", System.currentTimeMillis());
+				Files.write(Files.createFile(lease.toPath()), content.toString().getBytes(StandardCharsets.UTF_8));
+				synchronized(held) {
+					held.add(lease);
+				}
+				return true;
+			} catch (FileAlreadyExistsException e) {
+				if(System.currentTimeMillis()-lease.lastModified()<expiryMs) return false;
+				if(!takeOver(lease)) return false;
+			} catch (IOException e) {
+				IJ.log("[KymoButler] Unable to create lease "+lease.getAbsolutePath()+": "+e.getMessage());
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Releases the lease of an item, recording it as done if requested
+	 * @param item the item's file
+	 * @param done true if the item was analysed successfully
+	 */
+	public void release(File item, boolean done) {
+		if(done) {
+			JSONObject marker=new JSONObject();
+			marker.put("item", relativePath(item));
+			marker.put("node", NODE_ID);
+			marker.put("params", paramsFingerprint);
+			marker.put("size", item.length());
+			marker.put("modified", item.lastModified());
+			File file=getFile(item, ".done");
+			File tmp=new File(dir, file.getName()+".tmp-"+NODE_ID);
+			try {
+				Files.write(tmp.toPath(), marker.toString().getBytes(StandardCharsets.UTF_8));
+				if(!tmp.renameTo(file)) throw new IOException("unable to rename "+tmp.getName());
+			} catch (IOException e) {
+				IJ.log("[KymoButler] Unable to write done marker "+file.getAbsolutePath()+": "+e.getMessage());
+			}
+		}
+		File lease=getFile(item, ".lease");
+		synchronized(held) {
+			if(held.remove(lease)) lease.delete();
+		}
+	}
+
+	/**
+	 * Checks whether an item was analysed by any node, with the same parameters, on the same file
+	 * @param item the item's file
+	 * @return true if the item is done
+	 */
+	public boolean isDone(File item) {
+		File file=getFile(item, ".done");
+		if(!file.isFile()) return false;
+		try {
+			JSONObject marker=new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+			return paramsFingerprint.equals(marker.optString("params")) && marker.optLong("size", -1)==item.length()
+					&& marker.optLong("modified", -1)==item.lastModified();
+		} catch (IOException | JSONException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the delay between two heartbeats, which is also a sensible delay between two attempts to find work
+	 * @return the delay, in ms
+	 */
+	public long getHeartbeatMs() {
+		return heartbeatMs;
+	}
+
+	/**
+	 * Stops the heartbeat and releases all the leases still held, without marking their items as done
+	 */
+	public void close() {
+		heartbeat.interrupt();
+		synchronized(held) {
+			for(File lease : held) lease.delete();
+			held.clear();
+		}
+	}
+
+	/**
+	 * Refreshes the modification date of all the leases held by this node
+	 */
+	void refresh() {
+		long now=System.currentTimeMillis();
+		synchronized(held) {
+			for(File lease : held) {
+				if(!lease.setLastModified(now)) IJ.log("[KymoButler] Unable to refresh lease "+lease.getAbsolutePath());
+			}
+		}
+	}
+
+	/**
+	 * Removes an expired lease. The lease is first renamed to a name unique to this node, which only one node can do;
+	 * if the renamed lease turns out to have been refreshed meanwhile (taken over by another node), it is put back
+	 * @param lease the expired lease
+	 * @return true if the lease was removed
+	 */
+	boolean takeOver(File lease) {
+		File stale=new File(dir, lease.getName()+".stale-"+NODE_ID+"-"+System.nanoTime());
+		if(!lease.renameTo(stale)) return false;
+		if(System.currentTimeMillis()-stale.lastModified()<expiryMs) {
+			if(!lease.exists()) stale.renameTo(lease);
+			return false;
+		}
+		IJ.log("[KymoButler] Expired lease taken over: "+lease.getName());
+		stale.delete();
+		return true;
+	}
+
+	/**
+	 * Returns the lease or done marker file of an item, named after the digest of its path relative to the batch root
+	 * @param item the item's file
+	 * @param extension the file extension, ".lease" or ".done"
+	 * @return the file
+	 */
+	File getFile(File item, String extension) {
+		byte[] digest=KymoButlerResultCache.newDigest().digest(relativePath(item).getBytes(StandardCharsets.UTF_8));
+		return new File(dir, KymoButlerResultCache.toHex(digest).substring(0, 20)+extension);
+	}
+
+	/**
+	 * Returns the path of an item relative to the batch root, with forward slashes
+	 * @param item the item's file
+	 * @return the relative path
+	 */
+	String relativePath(File item) {
+		try {
+			return root.getCanonicalFile().toPath().relativize(item.getCanonicalFile().toPath()).toString().replace(File.separatorChar, '/');
+		} catch (IOException | IllegalArgumentException e) {
+			return item.getAbsolutePath();
+		}
+	}
+
+	/**
+	 * Builds the identifier of this node from its host name and process id, usable in file names
+	 * @return the identifier
+	 */
+	static String buildNodeId() {
+		String host;
+		try {
+			host=InetAddress.getLocalHost().getHostName();
+		} catch (IOException e) {
+			host="localhost";
+		}
+		String name=ManagementFactory.getRuntimeMXBean().getName();
+		String pid=name.contains("@")?name.substring(0, name.indexOf('@')):name;
+		return (host+"-"+pid).replaceAll("[^A-Za-z0-9._-]", "_");
+	}
+}
@@ -0,0 +1,120 @@
+/**
+*
+*  KymoButlerMemoryGovernor.java, 18 oct. 2026
+*
+*  Admission of batch images within a memory budget.
+*
+*/
+
+/*
+ * This file is part of KymoButler for ImageJ and is distributed
+ * under the terms of the GNU General Public License v3.0 or later.
+ */
+
+package KymoButler;
+
+/**
+ * This class keeps the memory used by the images in flight in a batch under a budget: before an image is opened,
+ * its memory footprint is estimated and reserved, waiting if needed for images ahead of it to be done. An image
+ * whose footprint exceeds the budget on its own is analysed alone, once all others are done.
+ * The footprint of an image covers all the copies held while it goes through the batch: the original image, its
+ * Improve Kymo version, the image encoded for KymoButler, the response string and its parsed JSON, which holds one
+ * object per pixel for the kymograph and the overlay and is by far the largest.
+ *
+ */
+public class KymoButlerMemoryGovernor {
+	/** Bytes per pixel of the Improve Kymo version of an image (32-bit) **/
+	static final long IMPROVE_BYTES_PER_PIXEL=4;
+
+	/** Bytes per pixel of the image encoded for KymoButler: RGB buffered image, then PNG bytes **/
+	static final long ENCODED_BYTES_PER_PIXEL=5;
+
+	/** Bytes per pixel of the response string: kymograph value and overlay RGB triplet, as UTF-16 text **/
+	static final long RESPONSE_BYTES_PER_PIXEL=32;
+
+	/** Bytes per pixel of the parsed response: boxed numbers and arrays for the kymograph and overlay, then the output images **/
+	static final long JSON_BYTES_PER_PIXEL=150;
+
+	/** Memory available to the images in flight, in bytes **/
+	final long budget;
+
+	/** Memory reserved by the images in flight, in bytes **/
+	long inFlight=0;
+
+	/** Highest memory reserved at once, in bytes **/
+	long peak=0;
+
+	/** Number of images that had to wait for memory to be admitted **/
+	int nWaits=0;
+
+	/**
+	 * Builds a new governor
+	 * @param budget memory available to the images in flight, in bytes
+	 */
+	public KymoButlerMemoryGovernor(long budget) {
+		this.budget=Math.max(1, budget);
+	}
+
+	/**
+	 * Builds a new governor whose budget is a share of the maximum heap
+	 * @param share share of the maximum heap available to the images in flight, between 0 and 1
+	 * @return the governor
+	 */
+	public static KymoButlerMemoryGovernor ofMaxHeap(double share) {
+		share=Math.max(0.05, Math.min(1, share));
+		return new KymoButlerMemoryGovernor((long) (Runtime.getRuntime().maxMemory()*share));
+	}
+
+	/**
+	 * Estimates the memory footprint of an image during its analysis
+	 * @param info the image's dimensions read from its header, null if unknown
+	 * @param fileLength the size of the image's file, used when its dimensions are unknown (as 8-bit pixels)
+	 * @param improve true if Improve Kymo is applied before analysis
+	 * @return the estimated footprint, in bytes
+	 */
+	public static long estimateBytes(KymoButlerImageProbe.Info info, long fileLength, boolean improve) {
+		long pixels=info!=null?info.getPixelCount():Math.max(0, fileLength);
+		long original=info!=null?info.getBytes():Math.max(0, fileLength);
+		long perPixel=ENCODED_BYTES_PER_PIXEL+RESPONSE_BYTES_PER_PIXEL+JSON_BYTES_PER_PIXEL+(improve?IMPROVE_BYTES_PER_PIXEL:0);
+		return original+pixels*perPixel;
+	}
+
+	/**
+	 * Reserves memory for an image, waiting until the images in flight leave enough room in the budget.
+	 * An image larger than the budget waits until no other image is in flight, and then runs alone
+	 * @param bytes the image's estimated footprint, in bytes
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized void acquire(long bytes) throws InterruptedException {
+		if(inFlight>0 && inFlight+bytes>budget) nWaits++;
+		while(inFlight>0 && inFlight+bytes>budget) wait();
+		inFlight+=bytes;
+		peak=Math.max(peak, inFlight);
+	}
+
+	/**
+	 * Releases the memory reserved for an image
+	 * @param bytes the footprint reserved for the image, in bytes
+	 */
+	public synchronized void release(long bytes) {
+		inFlight=Math.max(0, inFlight-bytes);
+		notifyAll();
+	}
+
+	/**
+	 * Returns a summary of the memory reserved during the batch, for the log
+	 * @return the summary
+	 */
+	public synchronized String getReport() {
+		return "peak "+toMB(peak)+" MB reserved out of "+toMB(budget)+" MB, "+nWaits+" image(s) waited for memory";
+	}
+
+	/**
+	 * Converts bytes to MB
+	 * @param bytes the number of bytes
+	 * @return the number of MB
+	 */
+	static long toMB(long bytes) {
+		return bytes/(1024*1024);
+	}
+}
@@ -0,0 +1,399 @@
+/**
+*
+*  KymoButlerProbabilityMap.java, 18 oct. 2026
+*
+*  Network probability maps exported by the local script, and Java-side track extraction from them.
+*
+*/
+
+/*
+ * This file is part of KymoButler for ImageJ and is distributed
+ * under the terms of the GNU General Public License v3.0 or later.
+ */
+
+package KymoButler;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * This class holds the probability maps computed by KymoButler's network for a kymograph, before any thresholding:
+ * one map per output channel (anterograde and retrograde for the unidirectional model, one map for the bidirectional
+ * model). The local script exports them next to the other outputs (a JSON header, &lt;image&gt;_probmap.json, and
+ * the maps as little-endian 32-bit floats, channel by channel and row by row, &lt;image&gt;_probmap.f32), and they are
+ * kept in a cache keyed by the image and the model only, as they do not depend on the threshold, minimum size and
+ * minimum frames. Tracks can then be extracted again in Java for any of these parameters, in milliseconds:
+ * the maps are thresholded, connected areas smaller than the minimum size are removed, and the runs of pixels of each
+ * row are linked to the run they touch in the previous row, as long as neither run touches another one. Each track
+ * holds the probability-weighted centre of its runs. Unlike KymoButler's own tracking (decision network of the
+ * bidirectional model), crossing tracks are split at the crossing.
+ *
+ */
+public class KymoButlerProbabilityMap {
+	/** Suffix of the maps' header, appended to the image's base name in the session folders **/
+	public static final String INFO_SUFFIX="_probmap.json";
+
+	/** Suffix of the maps' data, appended to the image's base name in the session folders **/
+	public static final String DATA_SUFFIX="_probmap.f32";
+
+	/** Name of the cache folder of the maps, next to the results cache **/
+	public static final String CACHE_FOLDER="KymoButlerLocal_maps";
+
+	/** Direction of the tracks of each channel, for the unidirectional model **/
+	static final String[] UNI_DIRECTIONS={"anterograde", "retrograde"};
+
+	/** Dimensions of the maps **/
+	final int width, height, channels;
+
+	/** True if the maps were computed by the bidirectional model **/
+	final boolean bidirectional;
+
+	/** Probabilities, channel by channel, row by row **/
+	final float[] data;
+
+	/**
+	 * Builds a new set of maps
+	 * @param width width of the maps
+	 * @param height height of the maps
+	 * @param channels number of maps
+	 * @param bidirectional true if the maps were computed by the bidirectional model
+	 * @param data probabilities, channel by channel, row by row
+	 */
+	public KymoButlerProbabilityMap(int width, int height, int channels, boolean bidirectional, float[] data) {
+		if(width<=0 || height<=0 || channels<=0 || data==null || data.length!=(long) width*height*channels) {
+			throw new IllegalArgumentException("Inconsistent probability maps");
+		}
+		this.width=width;
+		this.height=height;
+		this.channels=channels;
+		this.bidirectional=bidirectional;
+		this.data=data;
+	}
+
+	/**
+	 * Reads the maps exported by the local script
+	 * @param info the maps' header
+	 * @param data the maps' data
+	 * @return the maps, or null if they are missing or inconsistent
+	 */
+	public static KymoButlerProbabilityMap read(File info, File data) {
+		if(!info.isFile() || !data.isFile()) return null;
+		try {
+			JSONObject header=new JSONObject(FileUtils.readFileToString(info, "UTF-8"));
+			int width=header.getInt("width");
+			int height=header.getInt("height");
+			int channels=header.getInt("channels");
+			boolean bidirectional="bi".equals(header.optString("model"));
+
+			byte[] bytes=Files.readAllBytes(data.toPath());
+			if(bytes.length!=4L*width*height*channels) return null;
+			float[] values=new float[width*height*channels];
+			ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(values);
+			return new KymoButlerProbabilityMap(width, height, channels, bidirectional, values);
+		} catch (IOException | JSONException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the maps of a session folder
+	 * @param sessionDir the session folder
+	 * @param baseName the base name of the session files
+	 * @return the maps, or null if they are missing or inconsistent
+	 */
+	public static KymoButlerProbabilityMap read(File sessionDir, String baseName) {
+		return read(new File(sessionDir, baseName+INFO_SUFFIX), new File(sessionDir, baseName+DATA_SUFFIX));
+	}
+
+	/**
+	 * Returns the cache of the maps of a request
+	 * @param request the analysis request
+	 * @return the cache, or null if the results cache is disabled
+	 */
+	static KymoButlerResultCache getCache(KymoButlerAnalysisRequest request) {
+		if(request.resultCacheMB<=0 || request.cacheDir==null) return null;
+		File folder=new File(new File(request.cacheDir).getAbsoluteFile().getParentFile(), CACHE_FOLDER);
+		return new KymoButlerResultCache(folder, (long) (request.resultCacheMB*1024*1024), new String[] {INFO_SUFFIX, DATA_SUFFIX});
+	}
+
+	/**
+	 * Computes the key of the maps of a request: digest of the image sent to KymoButler, of the model choice and of the model
+	 * @param request the analysis request
+	 * @param kbPath the folder of the local KymoButler installation
+	 * @return the key
+	 * @throws IOException if the model files could not be read
+	 */
+	static String key(KymoButlerAnalysisRequest request, String kbPath) throws IOException {
+		return KymoButlerResultCache.key(request.image, "probmap;useBi="+request.useBidirectional, KymoButlerResultCache.modelFingerprint(new File(kbPath)));
+	}
+
+	/**
+	 * Looks for the maps of a request's image in the cache
+	 * @param request the analysis request
+	 * @param kbPath the folder of the local KymoButler installation
+	 * @return the maps, or null if they are not cached or do not match the image
+	 */
+	public static KymoButlerProbabilityMap find(KymoButlerAnalysisRequest request, String kbPath) {
+		KymoButlerResultCache cache=getCache(request);
+		if(cache==null) return null;
+		try {
+			File entry=cache.getEntry(key(request, kbPath));
+			if(entry==null) return null;
+			KymoButlerProbabilityMap map=read(new File(entry, INFO_SUFFIX.substring(1)), new File(entry, DATA_SUFFIX.substring(1)));
+			if(map==null || map.width!=request.image.getWidth() || map.height!=request.image.getHeight()) return null;
+			return map;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the maps written to a session folder in the cache, if any
+	 * @param request the analysis request
+	 * @param kbPath the folder of the local KymoButler installation
+	 * @param sessionDir the session folder
+	 * @param baseName the base name of the session files
+	 */
+	static void store(KymoButlerAnalysisRequest request, String kbPath, File sessionDir, String baseName) {
+		KymoButlerResultCache cache=getCache(request);
+		if(cache==null || !new File(sessionDir, baseName+INFO_SUFFIX).isFile()) return;
+		try {
+			cache.put(key(request, kbPath), sessionDir, baseName);
+		} catch (IOException e) {
+			//The maps are only an optimisation
+		}
+	}
+
+	/**
+	 * Analyses a request from cached maps, without running the network, and writes the outputs to a session folder
+	 * as the local script does
+	 * @param request the analysis request
+	 * @param kbPath the folder of the local KymoButler installation
+	 * @param sessionDir the session folder
+	 * @param baseName the base name of the session files
+	 * @param start the time at which the analysis started, in ms
+	 * @param messages the messages of the analysis
+	 * @return the result, marked as extracted from the probability maps
+	 */
+	KymoButlerAnalysisResult analyze(KymoButlerAnalysisRequest request, String kbPath, File sessionDir, String baseName, long start, List<String> messages) {
+		List<String> directions=new java.util.ArrayList<String>();
+		KymoButlerTracks tracks=extractTracks(request.threshold, request.minimumSize, request.minimumFrames, directions);
+		KymoButlerIO.log(messages, "Local mode: "+tracks.getNTracks()+" tracks extracted in Java from the cached probability maps"
+				+" (approximation of KymoButler's tracking"+(bidirectional?", decision threshold not used)":")"));
+
+		float[][] rgb=KymoButlerSparseAnalysis.getRGB(request.image);
+		float[] kymo=KymoButlerSparseAnalysis.getGray(rgb);
+		paint(rgb, tracks);
+		KymoButlerAnalysisResult result=KymoButlerTiledAnalysis.saveMerged(request, kbPath, sessionDir, baseName, KymoButlerSparseAnalysis.toRows(kymo, width, height),
+				KymoButlerSparseAnalysis.toRows(rgb, width, height), tracks, directions, start, 0, messages);
+		return new KymoButlerAnalysisResult(result.success, result.response, result.sessionDir, result.baseName, false, result.segmentsTablePath,
+				result.totalMs, result.kernelMs, result.messages, true);
+	}
+
+	/**
+	 * Draws tracks over an image, one colour per track
+	 * @param rgb the red, green and blue channels of the image, row by row
+	 * @param tracks the tracks
+	 */
+	void paint(float[][] rgb, KymoButlerTracks tracks) {
+		for(int i=0; i<tracks.getNTracks(); i++) {
+			Color color=Color.getHSBColor((float) ((i*0.618033988749895)%1), 1, 1);
+			for(int k=tracks.getStart(i); k<tracks.getEnd(i); k++) {
+				int x=(int) Math.round(tracks.getX(k));
+				int y=(int) Math.round(tracks.getT(k));
+				if(x<0 || x>=width || y<0 || y>=height) continue;
+				rgb[0][y*width+x]=color.getRed()/255f;
+				rgb[1][y*width+x]=color.getGreen()/255f;
+				rgb[2][y*width+x]=color.getBlue()/255f;
+			}
+		}
+	}
+
+	/**
+	 * Extracts the tracks from the maps
+	 * @param threshold the detection threshold: pixels of lower probability are background
+	 * @param minimumSize the minimum size of the connected areas, in pixels
+	 * @param minimumFrames the minimum number of frames of the tracks
+	 * @param directions list filled with the direction of each track
+	 * @return the tracks
+	 */
+	public KymoButlerTracks extractTracks(double threshold, double minimumSize, double minimumFrames, List<String> directions) {
+		int[] offsets=new int[1];
+		double[] t=new double[0];
+		double[] x=new double[0];
+		for(int c=0; c<channels; c++) {
+			String direction=bidirectional || channels!=UNI_DIRECTIONS.length?"bidirectional":UNI_DIRECTIONS[c];
+			KymoButlerTracks tracks=extractChannel(c, threshold, minimumSize, minimumFrames);
+			int nTracks=offsets.length-1;
+			int nPoints=t.length;
+			offsets=Arrays.copyOf(offsets, nTracks+tracks.getNTracks()+1);
+			for(int i=0; i<=tracks.getNTracks(); i++) offsets[nTracks+i]=nPoints+tracks.offsets[i];
+			t=Arrays.copyOf(t, nPoints+tracks.getNPoints());
+			x=Arrays.copyOf(x, nPoints+tracks.getNPoints());
+			System.arraycopy(tracks.t, 0, t, nPoints, tracks.getNPoints());
+			System.arraycopy(tracks.x, 0, x, nPoints, tracks.getNPoints());
+			for(int i=0; i<tracks.getNTracks(); i++) directions.add(direction);
+		}
+		return new KymoButlerTracks(offsets, t, x);
+	}
+
+	/**
+	 * Extracts the tracks of one map
+	 * @param channel the map
+	 * @param threshold the detection threshold
+	 * @param minimumSize the minimum size of the connected areas, in pixels
+	 * @param minimumFrames the minimum number of frames of the tracks
+	 * @return the tracks
+	 */
+	KymoButlerTracks extractChannel(int channel, double threshold, double minimumSize, double minimumFrames) {
+		int base=channel*width*height;
+
+		//Runs of pixels above the threshold, row by row: row, first and last column, weighted centre
+		int nRuns=0;
+		int[] runRow=new int[256], runStart=new int[256], runEnd=new int[256];
+		double[] runCentre=new double[256];
+		int[] rowFirstRun=new int[height+1];
+		for(int y=0; y<height; y++) {
+			rowFirstRun[y]=nRuns;
+			int x0=-1;
+			double sum=0, weighted=0;
+			for(int xx=0; xx<=width; xx++) {
+				float value=xx<width?data[base+y*width+xx]:0;
+				boolean on=xx<width && value>=threshold;
+				if(on) {
+					if(x0<0) {
+						x0=xx;
+						sum=0;
+						weighted=0;
+					}
+					sum+=value;
+					weighted+=value*xx;
+				}else if(x0>=0) {
+					if(nRuns==runRow.length) {
+						runRow=Arrays.copyOf(runRow, 2*nRuns);
+						runStart=Arrays.copyOf(runStart, 2*nRuns);
+						runEnd=Arrays.copyOf(runEnd, 2*nRuns);
+						runCentre=Arrays.copyOf(runCentre, 2*nRuns);
+					}
+					runRow[nRuns]=y;
+					runStart[nRuns]=x0;
+					runEnd[nRuns]=xx-1;
+					runCentre[nRuns]=sum>0?weighted/sum:(x0+xx-1)/2.0;
+					nRuns++;
+					x0=-1;
+				}
+			}
+		}
+		rowFirstRun[height]=nRuns;
+
+		//Connected areas (8-connectivity), as a union-find over the runs, and their number of pixels
+		int[] parent=new int[nRuns];
+		for(int r=0; r<nRuns; r++) parent[r]=r;
+		int[] nSuccessors=new int[nRuns];
+		int[] successor=new int[nRuns];
+		int[] nPredecessors=new int[nRuns];
+		int[] predecessor=new int[nRuns];
+		for(int y=1; y<height; y++) {
+			int p=rowFirstRun[y-1];
+			for(int r=rowFirstRun[y]; r<rowFirstRun[y+1]; r++) {
+				while(p<rowFirstRun[y] && runEnd[p]<runStart[r]-1) p++;
+				for(int q=p; q<rowFirstRun[y] && runStart[q]<=runEnd[r]+1; q++) {
+					union(parent, q, r);
+					nSuccessors[q]++;
+					successor[q]=r;
+					nPredecessors[r]++;
+					predecessor[r]=q;
+				}
+			}
+		}
+		int[] size=new int[nRuns];
+		for(int r=0; r<nRuns; r++) size[find(parent, r)]+=runEnd[r]-runStart[r]+1;
+
+		//Tracks: chains of runs, each touching a single run in the previous row and in the next one
+		int[] track=new int[nRuns];
+		int nTracks=0;
+		int[] trackLength=new int[16];
+		for(int r=0; r<nRuns; r++) {
+			track[r]=-1;
+			if(size[find(parent, r)]<minimumSize) continue;
+			int previous=nPredecessors[r]==1?predecessor[r]:-1;
+			if(previous>=0 && nSuccessors[previous]==1 && track[previous]>=0) {
+				track[r]=track[previous];
+			}else {
+				if(nTracks==trackLength.length) trackLength=Arrays.copyOf(trackLength, 2*nTracks);
+				track[r]=nTracks++;
+			}
+			trackLength[track[r]]++;
+		}
+
+		//Tracks shorter than the minimum number of frames are dropped
+		int[] newIndex=new int[nTracks];
+		int nKept=0;
+		for(int i=0; i<nTracks; i++) newIndex[i]=trackLength[i]>=Math.max(2, minimumFrames)?nKept++:-1;
+		int[] offsets=new int[nKept+1];
+		for(int i=0; i<nTracks; i++) if(newIndex[i]>=0) offsets[newIndex[i]+1]=trackLength[i];
+		for(int i=0; i<nKept; i++) offsets[i+1]+=offsets[i];
+		double[] t=new double[offsets[nKept]];
+		double[] x=new double[offsets[nKept]];
+		int[] fill=Arrays.copyOf(offsets, nKept);
+		for(int r=0; r<nRuns; r++) {
+			if(track[r]<0 || newIndex[track[r]]<0) continue;
+			int k=fill[newIndex[track[r]]]++;
+			t[k]=runRow[r];
+			x[k]=runCentre[r];
+		}
+		return new KymoButlerTracks(offsets, t, x);
+	}
+
+	/**
+	 * Finds the root of a run in the union-find, compressing the path
+	 * @param parent the parent of each run
+	 * @param r the run
+	 * @return the root
+	 */
+	static int find(int[] parent, int r) {
+		while(parent[r]!=r) {
+			parent[r]=parent[parent[r]];
+			r=parent[r];
+		}
+		return r;
+	}
+
+	/**
+	 * Merges the connected areas of two runs
+	 * @param parent the parent of each run
+	 * @param a the first run
+	 * @param b the second run
+	 */
+	static void union(int[] parent, int a, int b) {
+		int rootA=find(parent, a);
+		int rootB=find(parent, b);
+		if(rootA!=rootB) parent[Math.max(rootA, rootB)]=Math.min(rootA, rootB);
+	}
+
+	/** @return the width of the maps **/
+	public int getWidth() {
+		return width;
+	}
+
+	/** @return the height of the maps **/
+	public int getHeight() {
+		return height;
+	}
+
+	/** @return the number of maps **/
+	public int getChannels() {
+		return channels;
+	}
+}
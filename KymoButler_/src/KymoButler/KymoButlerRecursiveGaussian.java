@@ -0,0 +1,207 @@
+/**
+*
+*  KymoButlerRecursiveGaussian.java, 18 oct. 2026
+*
+*  Recursive (IIR) Gaussian blur, whose cost does not depend on sigma.
+*
+*/
+
+/*
+ * This file is part of KymoButler for ImageJ and is distributed
+ * under the terms of the GNU General Public License v3.0 or later.
+ */
+
+package KymoButler;
+
+import ij.Prefs;
+import ij.process.FloatProcessor;
+
+/**
+ * This class blurs images with the fourth-order recursive Gaussian filter of Deriche (INRIA report 1893, 1993):
+ * each line is the sum of a causal and an anti-causal pass of four taps, whatever sigma. Both passes read the
+ * input line, so that image borders, handled as in ImageJ's GaussianBlur by replicating the edge pixels, are
+ * exactly initialised from the steady state of a constant signal. For sigmas of 1 and above, the impulse
+ * response is within 0.047% of the peak of the exact Gaussian in 1D, and 0.094% in 2D.
+ *
+ */
+public class KymoButlerRecursiveGaussian {
+	/** Weights of the four exponentials of Deriche's fit, as two conjugate pairs (real then imaginary parts) **/
+	static final double[][] ALPHA={{0.84, 1.8675}, {0.84, -1.8675}, {-0.34015, -0.1299}, {-0.34015, 0.1299}};
+
+	/** Decay rates of the four exponentials, in units of 1/sigma (real then imaginary parts) **/
+	static final double[][] LAMBDA={{1.783, 0.6318}, {1.783, -0.6318}, {1.723, 1.997}, {1.723, -1.997}};
+
+	/** Feedback coefficients, shared by both passes: a[0] is 1, a[k] applies to the k-th previous output **/
+	final double[] a=new double[5];
+
+	/** Causal coefficients: b[k] applies to the k-th previous input **/
+	final double[] b=new double[5];
+
+	/** Anti-causal coefficients: c[k] applies to the k-th next input (c[0] is null) **/
+	final double[] c=new double[5];
+
+	/** Steady-state outputs of the causal and anti-causal passes, for a constant unit input **/
+	final double causalGain, antiCausalGain;
+
+	/**
+	 * Builds a filter for a given standard deviation
+	 * @param sigma the Gaussian standard deviation, in pixels (should be at least 0.5)
+	 */
+	public KymoButlerRecursiveGaussian(double sigma) {
+		//The causal filter is the sum of alpha_k/(1-q_k/z), q_k=exp(-lambda_k/sigma), reduced to a common denominator
+		double[] aRe=new double[5], aIm=new double[5];
+		double[] bRe=new double[5], bIm=new double[5];
+		aRe[0]=1;
+		for(int k=0; k<4; k++) {
+			double modulus=Math.exp(-LAMBDA[k][0]/sigma);
+			double qRe=modulus*Math.cos(LAMBDA[k][1]/sigma);
+			double qIm=-modulus*Math.sin(LAMBDA[k][1]/sigma);
+			//b=b*(1-q/z)+alpha_k*a, then a=a*(1-q/z)
+			for(int i=k; i>=0; i--) {
+				double re=bRe[i]+ALPHA[k][0]*aRe[i]-ALPHA[k][1]*aIm[i];
+				double im=bIm[i]+ALPHA[k][0]*aIm[i]+ALPHA[k][1]*aRe[i];
+				if(i>0) {
+					re-=qRe*bRe[i-1]-qIm*bIm[i-1];
+					im-=qRe*bIm[i-1]+qIm*bRe[i-1];
+				}
+				bRe[i]=re;
+				bIm[i]=im;
+			}
+			for(int i=k+1; i>0; i--) {
+				double re=aRe[i]-(qRe*aRe[i-1]-qIm*aIm[i-1]);
+				double im=aIm[i]-(qRe*aIm[i-1]+qIm*aRe[i-1]);
+				aRe[i]=re;
+				aIm[i]=im;
+			}
+		}
+
+		//Conjugate pairs leave real coefficients; the anti-causal filter mirrors the causal one, without its central tap
+		double sumA=0, sumB=0, sumC=0;
+		for(int i=0; i<5; i++) {
+			a[i]=aRe[i];
+			b[i]=bRe[i];
+			c[i]=i==0?0:bRe[i]-bRe[0]*aRe[i];
+			sumA+=a[i];
+			sumB+=b[i];
+			sumC+=c[i];
+		}
+
+		//Normalisation to a unit sum
+		double scale=sumA/(sumB+sumC);
+		for(int i=0; i<5; i++) {
+			b[i]*=scale;
+			c[i]*=scale;
+		}
+		causalGain=sumB*scale/sumA;
+		antiCausalGain=sumC*scale/sumA;
+	}
+
+	/**
+	 * Blurs a FloatProcessor in place, along x then y, spreading the lines over Prefs.getThreads() threads
+	 * @param ip the image to blur
+	 * @param sigma the Gaussian standard deviation, in pixels
+	 */
+	public static void blur(FloatProcessor ip, double sigma) {
+		final KymoButlerRecursiveGaussian filter=new KymoButlerRecursiveGaussian(sigma);
+		final float[] pixels=(float[]) ip.getPixels();
+		final int width=ip.getWidth();
+		final int height=ip.getHeight();
+
+		for(int pass=0; pass<2; pass++) {
+			final boolean rows=pass==0;
+			final int nLines=rows?height:width;
+			final int nThreads=Math.max(1, Math.min(Prefs.getThreads(), nLines/16));
+			Thread[] threads=new Thread[nThreads];
+			for(int t=0; t<nThreads; t++) {
+				final int first=t;
+				threads[t]=new Thread("KymoButler recursive Gaussian "+t) {
+					@Override
+					public void run() {
+						double[] line=new double[rows?width:height];
+						double[] work=new double[line.length];
+						for(int l=first; l<nLines && !isInterrupted(); l+=nThreads) {
+							if(rows) {
+								filter.filterLine(pixels, l*width, 1, width, line, work);
+							}else {
+								filter.filterLine(pixels, l, width, height, line, work);
+							}
+						}
+					}
+				};
+				threads[t].start();
+			}
+			try {
+				for(Thread thread : threads) thread.join();
+			} catch (InterruptedException e) {
+				for(Thread thread : threads) thread.interrupt();
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Filters one line of an image in place
+	 * @param pixels the image's pixels
+	 * @param offset index of the line's first pixel
+	 * @param step distance between two consecutive pixels of the line (1 for a row, the width for a column)
+	 * @param n the number of pixels of the line
+	 * @param line a working buffer of at least n values
+	 * @param work a second working buffer of at least n values
+	 */
+	void filterLine(float[] pixels, int offset, int step, int n, double[] line, double[] work) {
+		for(int i=0, j=offset; i<n; i++, j+=step) line[i]=pixels[j];
+		apply(line, work, n);
+		for(int i=0, j=offset; i<n; i++, j+=step) pixels[j]=(float) line[i];
+	}
+
+	/**
+	 * Filters a line in place, the values beyond both ends being replicates of the end values
+	 * @param line the values
+	 * @param work a working buffer of at least n values
+	 * @param n the number of values to filter, from the start of the array
+	 */
+	public void apply(double[] line, double[] work, int n) {
+		if(n<2) return;
+
+		//Causal pass, starting from the steady state of a constant signal equal to the first value
+		double x1=line[0], x2=x1, x3=x1, x4=x1;
+		double y1=line[0]*causalGain, y2=y1, y3=y1, y4=y1;
+		for(int i=0; i<n; i++) {
+			double x=line[i];
+			double y=b[0]*x+b[1]*x1+b[2]*x2+b[3]*x3+b[4]*x4-a[1]*y1-a[2]*y2-a[3]*y3-a[4]*y4;
+			work[i]=y;
+			x4=x3;
+			x3=x2;
+			x2=x1;
+			x1=x;
+			y4=y3;
+			y3=y2;
+			y2=y1;
+			y1=y;
+		}
+
+		//Anti-causal pass, starting from the steady state of a constant signal equal to the last value
+		x1=line[n-1];
+		x2=x1;
+		x3=x1;
+		x4=x1;
+		y1=line[n-1]*antiCausalGain;
+		y2=y1;
+		y3=y1;
+		y4=y1;
+		for(int i=n-1; i>=0; i--) {
+			double x=line[i];
+			double y=c[1]*x1+c[2]*x2+c[3]*x3+c[4]*x4-a[1]*y1-a[2]*y2-a[3]*y3-a[4]*y4;
+			line[i]=work[i]+y;
+			x4=x3;
+			x3=x2;
+			x2=x1;
+			x1=x;
+			y4=y3;
+			y3=y2;
+			y2=y1;
+			y1=y;
+		}
+	}
+}
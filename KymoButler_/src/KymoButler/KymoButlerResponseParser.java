@@ -50,6 +50,12 @@ public class KymoButlerResponseParser {
 	/** Stores the JSON content **/
 	JSONObject json=null;
 	
+	/** Tracks parsed from the JSON content, kept once parsed **/
+	KymoButlerTracks trackData=null;
+	
+	/** Time-interval index over the parsed tracks, built on first request **/
+	KymoButlerTrackIndex trackIndex=null;
+	
 	
 	/**
 	 * Builds a new parser, using the input path to get the JSON file
@@ -270,28 +276,19 @@ public class KymoButlerResponseParser {
 	 * @return the extracted tracks as an array of ImagePlus Rois or null if the field was not found
 	 */
 	public Roi[] getTracks(boolean simplifyTracks) {
-		JSONArray tracks=null;
-		
-		try {
-			tracks=json.getJSONArray(KymoButlerFields.TRACKS_FIELD_TAG);
-		}catch (JSONException e) {
-			IJ.log("The "+KymoButlerFields.TRACKS_FIELD_TAG+" section was not found: please check the JSON file");
-			return null;
-		}
+		KymoButlerTracks data=getTrackData();
+		if(data==null) return null;
 		
 		//Get dimensions
-		int nRois=tracks.length();
+		int nRois=data.getNTracks();
 		
 		Roi[] rois=new Roi[nRois];
 		
 		for(int i=0; i<nRois; i++) {
-			JSONArray line=tracks.getJSONArray(i);
 			FloatPolygon roi=new FloatPolygon();
 			
-			for(int j=0; j<line.length(); j++) {
-				JSONArray coord=line.getJSONArray(j);
-				roi.addPoint(coord.getDouble(1), coord.getDouble(0));
-			}
+			for(int j=data.getStart(i); j<data.getEnd(i); j++) roi.addPoint(data.getX(j), data.getT(j));
+			
 			rois[i]=new PolygonRoi(roi, Roi.POLYLINE);
 			if(simplifyTracks) rois[i]=simplifyTrack(rois[i]);
 			rois[i].setName("Track_"+(i+1));
@@ -300,6 +297,37 @@ public class KymoButlerResponseParser {
 		return rois;
 	}
 	
+	/**
+	 * Parses the tracks field from the KymoButler response into flat coordinate arrays (parsed once, then kept)
+	 * @return the extracted tracks or null if the field was not found
+	 */
+	public KymoButlerTracks getTrackData() {
+		if(trackData!=null) return trackData;
+		
+		try {
+			trackData=KymoButlerTracks.fromJSON(json.getJSONArray(KymoButlerFields.TRACKS_FIELD_TAG));
+		}catch (JSONException e) {
+			IJ.log("The "+KymoButlerFields.TRACKS_FIELD_TAG+" section was not found: please check the JSON file");
+			return null;
+		}
+		
+		return trackData;
+	}
+	
+	/**
+	 * Returns the time-interval index over the parsed tracks, to query the tracks active in a range of frames
+	 * or the track closest to a (t, x) position without scanning all tracks
+	 * @return the track index or null if the tracks field was not found
+	 */
+	public KymoButlerTrackIndex getTrackIndex() {
+		if(trackIndex!=null) return trackIndex;
+		
+		KymoButlerTracks data=getTrackData();
+		if(data!=null) trackIndex=new KymoButlerTrackIndex(data);
+		
+		return trackIndex;
+	}
+	
 	/**
 	 * Parses the tracks field from the KymoButler response and pushes all Rois to the RoiManager
 	 * @param simplifyTracks if true, the rois will be simplified into segments rather than being composed of one point per timepoint
@@ -0,0 +1,310 @@
+/**
+*
+*  KymoButlerResultCache.java, 18 oct. 2026
+*
+*  Size-bounded, on-disk cache of local analysis results, keyed by content.
+*
+*/
+
+/*
+ * This file is part of KymoButler for ImageJ and is distributed
+ * under the terms of the GNU General Public License v3.0 or later.
+ */
+
+package KymoButler;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+import ij.IJ;
+
+/**
+ * This class keeps the outputs of local KymoButler runs (the response and the tables and images derived from it)
+ * in a cache folder, one sub-folder per entry. Entries are keyed by a digest of the image sent to KymoButler,
+ * of the analysis parameters and of the KymoButler package files, so that analysing the same kymograph again
+ * with the same settings only copies files. The least recently used entries are deleted when the folder
+ * outgrows its maximum size.
+ * Entries are written to a temporary folder, then renamed, so that an interrupted run never leaves a partial entry.
+ *
+ */
+public class KymoButlerResultCache {
+	/** Name of the cache folder, created in the local output directory **/
+	public static final String CACHE_FOLDER="KymoButlerLocal_results";
+
+	/** Version of the cached outputs: should be changed whenever the local script changes its outputs **/
+	static final String VERSION="2";
+
+	/** Suffixes of the files stored in each entry, appended to the image's base name in the session folders **/
+	static final String[] SUFFIXES={"_response.json", "_overlay.tif", "_tracks_long.csv", "_pproc_table.csv",
+			"_pproc_hist_v.png", "_pproc_hist_t.png", "_pproc_hist_dist.png"};
+
+	/** The cache folder **/
+	final File dir;
+
+	/** Maximum number of bytes kept in the cache folder **/
+	final long maxBytes;
+
+	/** Suffixes of the files stored in each entry; the first file has to be present for an entry to be valid **/
+	final String[] suffixes;
+
+	/**
+	 * Builds a new cache of analysis results
+	 * @param dir the cache folder, created on first use
+	 * @param maxBytes maximum number of bytes kept in the cache folder
+	 */
+	public KymoButlerResultCache(File dir, long maxBytes) {
+		this(dir, maxBytes, SUFFIXES);
+	}
+
+	/**
+	 * Builds a new cache, storing the given session files
+	 * @param dir the cache folder, created on first use
+	 * @param maxBytes maximum number of bytes kept in the cache folder
+	 * @param suffixes suffixes of the files stored in each entry, the first one being read back by get()
+	 */
+	public KymoButlerResultCache(File dir, long maxBytes, String[] suffixes) {
+		this.dir=dir;
+		this.maxBytes=maxBytes;
+		this.suffixes=suffixes;
+	}
+
+	/**
+	 * Looks for an entry and, if found, copies its files to a session folder, under the given base name
+	 * @param key the entry's key
+	 * @param sessionDir the session folder to fill
+	 * @param baseName the base name of the session files
+	 * @return the content of the entry's first file (the response), or null if the entry was not found or could not be restored
+	 */
+	public String get(String key, File sessionDir, String baseName) {
+		File entry=new File(dir, key);
+		File response=new File(entry, suffixes[0].substring(1));
+		if(!response.isFile()) return null;
+		try {
+			for(String suffix : suffixes) {
+				File cached=new File(entry, suffix.substring(1));
+				if(cached.isFile()) Files.copy(cached.toPath(), new File(sessionDir, baseName+suffix).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			entry.setLastModified(System.currentTimeMillis());
+			return FileUtils.readFileToString(response, "UTF-8");
+		} catch (IOException e) {
+			//The entry may have been evicted meanwhile: treated as a miss
+			return null;
+		}
+	}
+
+	/**
+	 * Looks for an entry, to read its files in place (named after their suffixes, without the leading underscore)
+	 * @param key the entry's key
+	 * @return the entry's folder, or null if the entry was not found
+	 */
+	public File getEntry(String key) {
+		File entry=new File(dir, key);
+		if(!new File(entry, suffixes[0].substring(1)).isFile()) return null;
+		entry.setLastModified(System.currentTimeMillis());
+		return entry;
+	}
+
+	/**
+	 * Stores the outputs of a session folder as a new entry, then evicts the least recently used entries if needed
+	 * @param key the entry's key
+	 * @param sessionDir the session folder holding the outputs
+	 * @param baseName the base name of the session files
+	 */
+	public void put(String key, File sessionDir, String baseName) {
+		File entry=new File(dir, key);
+		if(entry.isDirectory()) return;
+		File tmp=new File(dir, key+".tmp-"+System.nanoTime());
+		try {
+			if(!tmp.mkdirs()) throw new IOException("unable to create "+tmp.getAbsolutePath());
+			for(String suffix : suffixes) {
+				File output=new File(sessionDir, baseName+suffix);
+				if(output.isFile()) Files.copy(output.toPath(), new File(tmp, suffix.substring(1)).toPath());
+			}
+			if(!tmp.renameTo(entry)) FileUtils.deleteDirectory(tmp);
+		} catch (IOException e) {
+			IJ.log("[KymoButler] Unable to store analysis results in cache: "+e.getMessage());
+			FileUtils.deleteQuietly(tmp);
+			return;
+		}
+		evict();
+	}
+
+	/**
+	 * Deletes the least recently used entries until the cache folder fits in its maximum size
+	 */
+	void evict() {
+		File[] entries=dir.listFiles();
+		if(entries==null) return;
+
+		final long[] stamps=new long[entries.length];
+		long[] sizes=new long[entries.length];
+		long total=0;
+		List<Integer> order=new ArrayList<Integer>();
+		for(int i=0; i<entries.length; i++) {
+			if(!entries[i].isDirectory() || entries[i].getName().contains(".tmp-")) continue;
+			stamps[i]=entries[i].lastModified();
+			sizes[i]=FileUtils.sizeOfDirectory(entries[i]);
+			total+=sizes[i];
+			order.add(i);
+		}
+		if(total<=maxBytes) return;
+
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(stamps[a], stamps[b]);
+			}
+		});
+		for(int i : order) {
+			if(total<=maxBytes) break;
+			FileUtils.deleteQuietly(entries[i]);
+			total-=sizes[i];
+		}
+	}
+
+	/**
+	 * Computes the key of an analysis: digest of the image as sent to KymoButler (pixels and colour model),
+	 * of the parameters and of the model
+	 * @param image the image sent to KymoButler
+	 * @param parameters a description of all the parameters influencing the outputs
+	 * @param modelFingerprint the fingerprint of the KymoButler package, from modelFingerprint()
+	 * @return the key, as a hexadecimal SHA-1 digest
+	 */
+	public static String key(BufferedImage image, String parameters, String modelFingerprint) {
+		MessageDigest digest=newDigest();
+		digest.update((VERSION+";"+parameters+";"+modelFingerprint+";").getBytes(StandardCharsets.UTF_8));
+		digest.update(ByteBuffer.allocate(12).putInt(image.getWidth()).putInt(image.getHeight()).putInt(image.getType()).array());
+
+		if(image.getColorModel() instanceof IndexColorModel) {
+			IndexColorModel cm=(IndexColorModel) image.getColorModel();
+			int[] rgbs=new int[cm.getMapSize()];
+			cm.getRGBs(rgbs);
+			update(digest, rgbs);
+		}
+
+		//Only the pixels within the raster's bounds are read: sub-images share their parent's data buffer
+		Raster raster=image.getRaster();
+		int width=image.getWidth();
+		int transferType=raster.getTransferType();
+		if(transferType==DataBuffer.TYPE_BYTE || transferType==DataBuffer.TYPE_USHORT || transferType==DataBuffer.TYPE_INT) {
+			Object row=null;
+			ByteBuffer bytes=null;
+			for(int y=0; y<image.getHeight(); y++) {
+				row=raster.getDataElements(0, y, width, 1, row);
+				if(transferType==DataBuffer.TYPE_BYTE) {
+					digest.update((byte[]) row);
+				}else if(transferType==DataBuffer.TYPE_INT) {
+					update(digest, (int[]) row);
+				}else {
+					short[] data=(short[]) row;
+					if(bytes==null) bytes=ByteBuffer.allocate(2*data.length);
+					bytes.clear();
+					bytes.asShortBuffer().put(data);
+					digest.update(bytes.array(), 0, 2*data.length);
+				}
+			}
+		}else {
+			update(digest, image.getRGB(0, 0, width, image.getHeight(), null, 0, width));
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Computes a fingerprint of the KymoButler package: content of the packages/*.wl files, plus the names, sizes and
+	 * modification dates of the network files (*.wlnet) found within two levels of the KymoButler folder
+	 * @param kymoButlerPath the local KymoButler folder
+	 * @return the fingerprint, as a hexadecimal SHA-1 digest
+	 * @throws IOException if a package file could not be read
+	 */
+	public static String modelFingerprint(File kymoButlerPath) throws IOException {
+		MessageDigest digest=newDigest();
+		File[] packages=new File(kymoButlerPath, "packages").listFiles();
+		if(packages!=null) {
+			Arrays.sort(packages);
+			for(File file : packages) {
+				if(!file.getName().endsWith(".wl")) continue;
+				digest.update(file.getName().getBytes(StandardCharsets.UTF_8));
+				digest.update(Files.readAllBytes(file.toPath()));
+			}
+		}
+
+		List<File> nets=new ArrayList<File>();
+		collectNets(kymoButlerPath, 2, nets);
+		Collections.sort(nets);
+		for(File net : nets) digest.update((net.getAbsolutePath()+";"+net.length()+";"+net.lastModified()+";").getBytes(StandardCharsets.UTF_8));
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Lists the network files of a folder and its sub-folders
+	 * @param folder the folder to explore
+	 * @param depth the number of sub-folder levels to explore
+	 * @param nets the list to fill
+	 */
+	static void collectNets(File folder, int depth, List<File> nets) {
+		File[] files=folder.listFiles();
+		if(files==null) return;
+		for(File file : files) {
+			if(file.isDirectory()) {
+				if(depth>0) collectNets(file, depth-1, nets);
+			}else if(file.getName().endsWith(".wlnet")) {
+				nets.add(file);
+			}
+		}
+	}
+
+	/**
+	 * Feeds an int array to a digest
+	 * @param digest the digest
+	 * @param data the array
+	 */
+	static void update(MessageDigest digest, int[] data) {
+		ByteBuffer bytes=ByteBuffer.allocate(1<<16);
+		for(int i=0; i<data.length; ) {
+			int n=Math.min(data.length-i, bytes.capacity()/4);
+			bytes.asIntBuffer().put(data, i, n);
+			digest.update(bytes.array(), 0, 4*n);
+			i+=n;
+		}
+	}
+
+	/**
+	 * Creates a new SHA-1 digest
+	 * @return the digest
+	 */
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Converts a digest to hexadecimal
+	 * @param digest the digest's bytes
+	 * @return the hexadecimal string
+	 */
+	static String toHex(byte[] digest) {
+		StringBuilder sb=new StringBuilder();
+		for(byte b : digest) sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+}
@@ -0,0 +1,317 @@
+/**
+*
+*  KymoButlerSegmentClassifier.java, 18 oct. 2026
+*
+*  Splits tracks into run, pause and reversal segments.
+*
+*/
+
+/*
+ * This file is part of KymoButler for ImageJ and is distributed
+ * under the terms of the GNU General Public License v3.0 or later.
+ */
+
+package KymoButler;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * This class splits tracks into segments of homogeneous motion, working directly on flat coordinate arrays:
+ * <ul>
+ * 	<li>pause: the absolute velocity stays below the pause velocity;</li>
+ * 	<li>run: the particle moves in the same direction as during its previous run (or has had no run yet);</li>
+ * 	<li>reversal: the particle moves in the direction opposite to its previous run.</li>
+ * </ul>
+ * Motion changes lasting less than the minimum duration are absorbed into the ongoing segment.
+ * Segments are stored as point ranges in primitive buffers reused from one call to the next: nothing is allocated per point.
+ *
+ */
+public class KymoButlerSegmentClassifier {
+	/** Segment type: pause **/
+	public static final int PAUSE=0;
+
+	/** Segment type: run **/
+	public static final int RUN=1;
+
+	/** Segment type: reversal **/
+	public static final int REVERSAL=2;
+
+	/** Segment types names, as written in the segments table **/
+	public static final String[] TYPES_NAMES=new String[] {"pause", "run", "reversal"};
+
+	/** Velocity below which a step is considered as a pause, in calibrated units **/
+	double pauseVelocity=0.1;
+
+	/** Minimum duration of a segment, in frames **/
+	double minFrames=3;
+
+	/** Calibration: duration of one frame **/
+	double timeSize=1.0;
+
+	/** Calibration: size of one pixel **/
+	double spaceSize=1.0;
+
+	/** Last classified coordinates **/
+	int[] offsets=null;
+	double[] t=null;
+	double[] x=null;
+
+	/** Number of segments found during the last classification **/
+	int nSegments=0;
+
+	/** Segments: track index, type, direction (-1, 0 or 1), first point and last point (both included) **/
+	int[] segTrack=new int[256];
+	int[] segType=new int[256];
+	int[] segDirection=new int[256];
+	int[] segStart=new int[256];
+	int[] segEnd=new int[256];
+
+	/**
+	 * Builds a new classifier
+	 * @param pauseVelocity velocity below which a step is considered as a pause, in calibrated units
+	 * @param minFrames minimum duration of a segment, in frames
+	 */
+	public KymoButlerSegmentClassifier(double pauseVelocity, double minFrames) {
+		this.pauseVelocity=pauseVelocity;
+		this.minFrames=minFrames;
+	}
+
+	/**
+	 * Sets the calibration used to compute velocities, durations and distances
+	 * @param timeSize duration of one frame
+	 * @param spaceSize size of one pixel
+	 */
+	public void setCalibration(double timeSize, double spaceSize) {
+		this.timeSize=timeSize>0?timeSize:1.0;
+		this.spaceSize=spaceSize>0?spaceSize:1.0;
+	}
+
+	/**
+	 * Classifies all the tracks of a track set
+	 * @param tracks the tracks to classify
+	 * @return the number of segments found
+	 */
+	public int classify(KymoButlerTracks tracks) {
+		return classify(tracks.getOffsets(), tracks.getTArray(), tracks.getXArray());
+	}
+
+	/**
+	 * Classifies all the tracks stored in flat coordinate arrays: the points of track i go from offsets[i] (included) to offsets[i+1] (excluded)
+	 * @param offsets index of the first point of each track, followed by the total number of points
+	 * @param t time coordinates (rows) of all points, in frames
+	 * @param x space coordinates (columns) of all points, in pixels
+	 * @return the number of segments found
+	 */
+	public int classify(int[] offsets, double[] t, double[] x) {
+		this.offsets=offsets;
+		this.t=t;
+		this.x=x;
+		nSegments=0;
+
+		//Threshold converted to pixels per frame, to avoid a division per step
+		double thr=pauseVelocity*timeSize/spaceSize;
+
+		for(int track=0; track<offsets.length-1; track++) {
+			int first=offsets[track];
+			int last=offsets[track+1]-1;
+			if(last<=first) continue;
+
+			int curDir=stepDirection(first, thr);
+			int curStart=first;
+			int lastRunDir=0;
+			int candDir=curDir;
+			int candStart=first;
+
+			for(int j=first+1; j<last; j++) {
+				int dir=stepDirection(j, thr);
+				if(dir==curDir) {
+					candDir=curDir;
+					continue;
+				}
+				if(dir!=candDir) {
+					candDir=dir;
+					candStart=j;
+				}
+				if(t[j+1]-t[candStart]>=minFrames) {
+					lastRunDir=addSegment(track, curDir, lastRunDir, curStart, candStart);
+					curDir=candDir;
+					curStart=candStart;
+				}
+			}
+			addSegment(track, curDir, lastRunDir, curStart, last);
+		}
+
+		return nSegments;
+	}
+
+	/**
+	 * Returns the number of segments found during the last classification
+	 * @return the number of segments
+	 */
+	public int getNSegments() {
+		return nSegments;
+	}
+
+	/**
+	 * Returns the track a segment belongs to
+	 * @param segment the segment index
+	 * @return the track index
+	 */
+	public int getTrack(int segment) {
+		return segTrack[segment];
+	}
+
+	/**
+	 * Returns the type of a segment
+	 * @param segment the segment index
+	 * @return the segment type (PAUSE, RUN or REVERSAL)
+	 */
+	public int getType(int segment) {
+		return segType[segment];
+	}
+
+	/**
+	 * Returns the direction of a segment along x
+	 * @param segment the segment index
+	 * @return 1 for increasing x, -1 for decreasing x, 0 for a pause
+	 */
+	public int getDirection(int segment) {
+		return segDirection[segment];
+	}
+
+	/**
+	 * Returns the first point of a segment
+	 * @param segment the segment index
+	 * @return the index of the segment's first point in the coordinate arrays
+	 */
+	public int getStartPoint(int segment) {
+		return segStart[segment];
+	}
+
+	/**
+	 * Returns the last point of a segment
+	 * @param segment the segment index
+	 * @return the index of the segment's last point in the coordinate arrays
+	 */
+	public int getEndPoint(int segment) {
+		return segEnd[segment];
+	}
+
+	/**
+	 * Returns the duration of a segment, in calibrated units
+	 * @param segment the segment index
+	 * @return the segment's duration
+	 */
+	public double getDuration(int segment) {
+		return (t[segEnd[segment]]-t[segStart[segment]])*timeSize;
+	}
+
+	/**
+	 * Returns the net displacement of a segment, in calibrated units
+	 * @param segment the segment index
+	 * @return the segment's displacement (signed)
+	 */
+	public double getDisplacement(int segment) {
+		return (x[segEnd[segment]]-x[segStart[segment]])*spaceSize;
+	}
+
+	/**
+	 * Returns the average velocity of a segment, in calibrated units
+	 * @param segment the segment index
+	 * @return the segment's velocity (signed), 0 if the segment has no duration
+	 */
+	public double getVelocity(int segment) {
+		double duration=getDuration(segment);
+		return duration>0?getDisplacement(segment)/duration:0;
+	}
+
+	/**
+	 * Writes the segments found during the last classification as a CSV table, one row per segment
+	 * @param path path to the output CSV file
+	 * @throws IOException if the file could not be written
+	 */
+	public void writeTable(String path) throws IOException {
+		try (BufferedWriter writer=new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(path)), StandardCharsets.UTF_8), 1<<16)) {
+			writer.write("track_id,segment_id,type,direction,t_start,t_end,x_start,x_end,duration,displacement,velocity\n");
+
+			int lastTrack=-1;
+			int segmentId=0;
+			for(int s=0; s<nSegments; s++) {
+				segmentId=segTrack[s]==lastTrack?segmentId+1:1;
+				lastTrack=segTrack[s];
+
+				writer.write(Integer.toString(segTrack[s]+1));
+				writer.write(',');
+				writer.write(Integer.toString(segmentId));
+				writer.write(',');
+				writer.write(TYPES_NAMES[segType[s]]);
+				writer.write(',');
+				writer.write(Integer.toString(segDirection[s]));
+				writer.write(',');
+				writer.write(Double.toString(t[segStart[s]]));
+				writer.write(',');
+				writer.write(Double.toString(t[segEnd[s]]));
+				writer.write(',');
+				writer.write(Double.toString(x[segStart[s]]));
+				writer.write(',');
+				writer.write(Double.toString(x[segEnd[s]]));
+				writer.write(',');
+				writer.write(Double.toString(getDuration(s)));
+				writer.write(',');
+				writer.write(Double.toString(getDisplacement(s)));
+				writer.write(',');
+				writer.write(Double.toString(getVelocity(s)));
+				writer.write('\n');
+			}
+		}
+	}
+
+	/**
+	 * Returns the direction of the step going from point j to point j+1
+	 * @param j index of the step's first point
+	 * @param thr pause velocity, in pixels per frame
+	 * @return 1 for increasing x, -1 for decreasing x, 0 for a pause
+	 */
+	private int stepDirection(int j, double thr) {
+		double dt=t[j+1]-t[j];
+		double dx=x[j+1]-x[j];
+		if(dt<=0) dt=1;
+		if(Math.abs(dx)<thr*dt) return 0;
+		return dx>0?1:-1;
+	}
+
+	/**
+	 * Stores a segment, growing the buffers when needed
+	 * @param track the track index
+	 * @param dir the segment's direction
+	 * @param lastRunDir the direction of the track's previous run (0 if none)
+	 * @param start the segment's first point
+	 * @param end the segment's last point
+	 * @return the direction of the track's last run, once this segment is added
+	 */
+	private int addSegment(int track, int dir, int lastRunDir, int start, int end) {
+		if(nSegments==segTrack.length) {
+			int size=nSegments*2;
+			segTrack=Arrays.copyOf(segTrack, size);
+			segType=Arrays.copyOf(segType, size);
+			segDirection=Arrays.copyOf(segDirection, size);
+			segStart=Arrays.copyOf(segStart, size);
+			segEnd=Arrays.copyOf(segEnd, size);
+		}
+
+		segTrack[nSegments]=track;
+		segDirection[nSegments]=dir;
+		segStart[nSegments]=start;
+		segEnd[nSegments]=end;
+		segType[nSegments]=dir==0?PAUSE:(lastRunDir!=0 && dir!=lastRunDir?REVERSAL:RUN);
+		nSegments++;
+
+		return dir==0?lastRunDir:dir;
+	}
+}
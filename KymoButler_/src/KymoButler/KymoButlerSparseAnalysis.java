@@ -0,0 +1,461 @@
+/**
+*
+*  KymoButlerSparseAnalysis.java, 18 oct. 2026
+*
+*  Coarse pre-scan of kymographs, analysing only the regions holding signal.
+*
+*/
+
+/*
+ * This file is part of KymoButler for ImageJ and is distributed
+ * under the terms of the GNU General Public License v3.0 or later.
+ */
+
+package KymoButler;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.json.JSONArray;
+
+/**
+ * This class skips the background of sparse kymographs: the kymograph is first downsampled into blocks of BLOCK x BLOCK
+ * pixels, and the blocks whose mean stands out from the background (median of the block means) by more than a number
+ * of times the noise (robust spread of the block means) hold signal. Isolated blocks are ignored, the others are grouped
+ * into regions, padded by MARGIN pixels so that the network sees the tracks' surroundings, and only these regions are
+ * analysed (as separate requests, several at once). Their tracks are then shifted back to the kymograph's coordinates,
+ * and their kymograph and overlay pasted over the original image. Averaging over a block divides the noise by BLOCK
+ * while a track crossing the block keeps a BLOCK-th of its contrast, so a block's signal to noise ratio is that of
+ * the track's pixels.
+ *
+ */
+public class KymoButlerSparseAnalysis {
+	/** Folder of the regions' session folders, in the merged session folder **/
+	public static final String REGIONS_FOLDER="regions";
+
+	/** Size of the blocks of the pre-scan, in pixels **/
+	static final int BLOCK=8;
+
+	/** Margin added around the regions holding signal, in pixels **/
+	static final int MARGIN=16;
+
+	/** Minimum width and height of a region, in pixels **/
+	static final int MIN_SIZE=64;
+
+	/** Maximum number of regions: each region costs a kernel start **/
+	static final int MAX_REGIONS=8;
+
+	/** Maximum share of the kymograph covered by the regions: above it, the kymograph is analysed at once **/
+	static final double MAX_COVERAGE=0.7;
+
+	/**
+	 * Finds the regions of a kymograph holding signal
+	 * @param image the kymograph
+	 * @param snr number of times the noise by which a block should stand out from the background to hold signal
+	 * @return the regions, an empty list if the kymograph holds no signal
+	 */
+	public static List<Rectangle> findRegions(BufferedImage image, double snr) {
+		int width=image.getWidth();
+		int height=image.getHeight();
+		int bw=(width+BLOCK-1)/BLOCK;
+		int bh=(height+BLOCK-1)/BLOCK;
+
+		//Block means
+		double[] means=new double[bw*bh];
+		int[] counts=new int[bw*bh];
+		Raster raster=image.getRaster();
+		int nBands=Math.min(3, raster.getNumBands());
+		int[] line=new int[width];
+		for(int y=0; y<height; y++) {
+			for(int band=0; band<nBands; band++) {
+				raster.getSamples(0, y, width, 1, band, line);
+				for(int x=0; x<width; x++) means[(y/BLOCK)*bw+x/BLOCK]+=line[x]/(double) nBands;
+			}
+			for(int x=0; x<width; x++) counts[(y/BLOCK)*bw+x/BLOCK]++;
+		}
+		for(int b=0; b<means.length; b++) means[b]/=counts[b];
+
+		//Background and noise
+		double background=median(means.clone());
+		double[] deviations=new double[means.length];
+		for(int b=0; b<means.length; b++) deviations[b]=Math.abs(means[b]-background);
+		double noise=1.4826*median(deviations);
+
+		boolean[] active=new boolean[bw*bh];
+		for(int b=0; b<means.length; b++) active[b]=means[b]-background>snr*noise && means[b]>background;
+
+		//Isolated blocks are noise
+		boolean[] kept=new boolean[bw*bh];
+		for(int by=0; by<bh; by++) {
+			for(int bx=0; bx<bw; bx++) {
+				if(!active[by*bw+bx]) continue;
+				for(int dy=-1; dy<=1 && !kept[by*bw+bx]; dy++) {
+					for(int dx=-1; dx<=1; dx++) {
+						int nx=bx+dx, ny=by+dy;
+						if((dx!=0 || dy!=0) && nx>=0 && nx<bw && ny>=0 && ny<bh && active[ny*bw+nx]) {
+							kept[by*bw+bx]=true;
+							break;
+						}
+					}
+				}
+			}
+		}
+
+		//Connected groups of blocks, padded by the margin
+		List<Rectangle> regions=new ArrayList<Rectangle>();
+		boolean[] visited=new boolean[bw*bh];
+		ArrayDeque<Integer> queue=new ArrayDeque<Integer>();
+		for(int b=0; b<kept.length; b++) {
+			if(!kept[b] || visited[b]) continue;
+			int minX=bw, minY=bh, maxX=-1, maxY=-1;
+			visited[b]=true;
+			queue.add(b);
+			while(!queue.isEmpty()) {
+				int current=queue.poll();
+				int bx=current%bw, by=current/bw;
+				minX=Math.min(minX, bx);
+				maxX=Math.max(maxX, bx);
+				minY=Math.min(minY, by);
+				maxY=Math.max(maxY, by);
+				for(int dy=-1; dy<=1; dy++) {
+					for(int dx=-1; dx<=1; dx++) {
+						int nx=bx+dx, ny=by+dy;
+						if(nx<0 || nx>=bw || ny<0 || ny>=bh) continue;
+						int neighbour=ny*bw+nx;
+						if(kept[neighbour] && !visited[neighbour]) {
+							visited[neighbour]=true;
+							queue.add(neighbour);
+						}
+					}
+				}
+			}
+			Rectangle region=new Rectangle(minX*BLOCK-MARGIN, minY*BLOCK-MARGIN, (maxX-minX+1)*BLOCK+2*MARGIN, (maxY-minY+1)*BLOCK+2*MARGIN);
+			regions.add(fit(region, width, height));
+		}
+
+		return mergeRegions(regions, width, height);
+	}
+
+	/**
+	 * Tells whether analysing the regions only is worth it, i.e. whether they cover a small enough share of the kymograph
+	 * @param regions the regions
+	 * @param width the width of the kymograph
+	 * @param height the height of the kymograph
+	 * @return true if the regions should be analysed instead of the kymograph
+	 */
+	public static boolean isWorthIt(List<Rectangle> regions, int width, int height) {
+		return getCoverage(regions, width, height)<=MAX_COVERAGE;
+	}
+
+	/**
+	 * Returns the share of the kymograph covered by the regions
+	 * @param regions the regions, which do not overlap
+	 * @param width the width of the kymograph
+	 * @param height the height of the kymograph
+	 * @return the share, between 0 and 1
+	 */
+	public static double getCoverage(List<Rectangle> regions, int width, int height) {
+		double area=0;
+		for(Rectangle region : regions) area+=(double) region.width*region.height;
+		return area/((double) width*height);
+	}
+
+	/**
+	 * Merges the overlapping regions, then the closest regions until there are at most MAX_REGIONS
+	 * @param regions the regions
+	 * @param width the width of the kymograph
+	 * @param height the height of the kymograph
+	 * @return the merged regions
+	 */
+	static List<Rectangle> mergeRegions(List<Rectangle> regions, int width, int height) {
+		boolean merged=true;
+		while(merged) {
+			merged=false;
+			for(int i=0; i<regions.size() && !merged; i++) {
+				for(int j=i+1; j<regions.size(); j++) {
+					if(regions.get(i).intersects(regions.get(j))) {
+						regions.set(i, fit(regions.get(i).union(regions.remove(j)), width, height));
+						merged=true;
+						break;
+					}
+				}
+			}
+			if(!merged && regions.size()>MAX_REGIONS) {
+				//Merge the pair adding the least area
+				int bestI=0, bestJ=1;
+				double bestCost=Double.MAX_VALUE;
+				for(int i=0; i<regions.size(); i++) {
+					for(int j=i+1; j<regions.size(); j++) {
+						Rectangle a=regions.get(i), b=regions.get(j), union=a.union(b);
+						double cost=(double) union.width*union.height-(double) a.width*a.height-(double) b.width*b.height;
+						if(cost<bestCost) {
+							bestCost=cost;
+							bestI=i;
+							bestJ=j;
+						}
+					}
+				}
+				regions.set(bestI, regions.get(bestI).union(regions.remove(bestJ)));
+				merged=true;
+			}
+		}
+		return regions;
+	}
+
+	/**
+	 * Enlarges a region to the minimum size, around its centre, and clips it to the kymograph
+	 * @param region the region
+	 * @param width the width of the kymograph
+	 * @param height the height of the kymograph
+	 * @return the region
+	 */
+	static Rectangle fit(Rectangle region, int width, int height) {
+		int w=Math.min(width, Math.max(MIN_SIZE, region.width));
+		int h=Math.min(height, Math.max(MIN_SIZE, region.height));
+		int x=Math.max(0, Math.min(width-w, region.x+(region.width-w)/2));
+		int y=Math.max(0, Math.min(height-h, region.y+(region.height-h)/2));
+		Rectangle fitted=new Rectangle(x, y, w, h);
+		return fitted.union(region).intersection(new Rectangle(0, 0, width, height));
+	}
+
+	/**
+	 * Returns the median of values
+	 * @param values the values, sorted in place
+	 * @return the median
+	 */
+	static double median(double[] values) {
+		Arrays.sort(values);
+		int n=values.length;
+		return n%2==1?values[n/2]:(values[n/2-1]+values[n/2])/2;
+	}
+
+	/**
+	 * Analyses the regions of a request holding signal, and merges their outputs into a new session folder
+	 * @param request the analysis request
+	 * @param kbPath the folder of the local KymoButler installation
+	 * @param regions the regions to analyse, which do not overlap
+	 * @return the merged result
+	 */
+	static KymoButlerAnalysisResult analyze(KymoButlerAnalysisRequest request, String kbPath, List<Rectangle> regions) {
+		long start=System.currentTimeMillis();
+		List<String> messages=new ArrayList<String>();
+		String baseName=KymoButlerIO.sanitizeBaseName(request.title);
+		int width=request.image.getWidth();
+		int height=request.image.getHeight();
+
+		File sessionDir=KymoButlerIO.createSessionDir(new File(request.getSessionParentDir()), baseName);
+		if(sessionDir==null) {
+			KymoButlerIO.log(messages, "Local mode: unable to create output directory in "+request.getSessionParentDir());
+			return new KymoButlerAnalysisResult(false, null, null, baseName, false, null, System.currentTimeMillis()-start, 0, messages);
+		}
+		KymoButlerIO.log(messages, "Local mode: pre-scan kept "+regions.size()+" region(s), covering "
+				+Math.round(100*getCoverage(regions, width, height))+"% of the kymograph");
+
+		//Analyse the regions
+		String regionsDir=new File(sessionDir, REGIONS_FOLDER).getAbsolutePath();
+		List<Future<KymoButlerAnalysisResult>> futures=new ArrayList<Future<KymoButlerAnalysisResult>>();
+		ExecutorService executor=Executors.newFixedThreadPool(Math.max(1, Math.min(request.tileWorkers, regions.size())));
+		for(int i=0; i<regions.size(); i++) {
+			Rectangle region=regions.get(i);
+			final KymoButlerAnalysisRequest sub=request.toBuilder()
+					.image(KymoButlerTiledAnalysis.crop(request.image, region.x, region.y, region.width, region.height), baseName+"_r"+(i+1)+".png")
+					.outputDir(regionsDir)
+					.segments(false, request.segPauseVelocity, request.segMinFrames)
+					.prescan(false, request.prescanSnr)
+					.build();
+			futures.add(executor.submit(new Callable<KymoButlerAnalysisResult>() {
+				@Override
+				public KymoButlerAnalysisResult call() {
+					return KymoButlerIO.analyze(sub);
+				}
+			}));
+		}
+		executor.shutdown();
+
+		//The kymograph and overlay default to the original image
+		float[][] rgb=getRGB(request.image);
+		float[] kymo=getGray(rgb);
+
+		//Merge the regions
+		long kernelMs=0;
+		List<KymoButlerTracks> tracks=new ArrayList<KymoButlerTracks>();
+		List<String> directions=new ArrayList<String>();
+		try {
+			for(int i=0; i<regions.size(); i++) {
+				KymoButlerAnalysisResult result=futures.get(i).get();
+				messages.addAll(result.getMessages());
+				kernelMs+=result.getKernelMs();
+				KymoButlerResponseParser parser=result.isSuccess() && KymoButlerResponseParser.isJSON(result.getResponse())?new KymoButlerResponseParser(result.getResponse()):null;
+				if(parser==null || parser.hasError()) {
+					executor.shutdownNow();
+					KymoButlerIO.log(messages, "Local mode: the analysis of region "+(i+1)+" failed.");
+					return new KymoButlerAnalysisResult(false, null, sessionDir.getAbsolutePath(), baseName, false, null, System.currentTimeMillis()-start, kernelMs, messages);
+				}
+
+				Rectangle region=regions.get(i);
+				paste(kymo, rgb, width, parser.json.optJSONArray(KymoButlerFields.KYMOGRAPH_FIELD_TAG), parser.json.optJSONArray(KymoButlerFields.OVERLAY_FIELD_TAG), region);
+				if(parser.hasTracks() && parser.getTrackData()!=null) {
+					KymoButlerTracks regionTracks=parser.getTrackData();
+					tracks.add(shift(regionTracks, region.y, region.x));
+					directions.addAll(Arrays.asList(KymoButlerTiledAnalysis.readDirections(result.getTracksCsvPath(), regionTracks.getNTracks())));
+				}
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			executor.shutdownNow();
+			KymoButlerIO.log(messages, "Local mode: analysis of the regions interrupted.");
+			return new KymoButlerAnalysisResult(false, null, sessionDir.getAbsolutePath(), baseName, false, null, System.currentTimeMillis()-start, kernelMs, messages);
+		}
+		if(regions.isEmpty()) KymoButlerIO.log(messages, "Local mode: no signal found, KymoButler was not run.");
+
+		return KymoButlerTiledAnalysis.saveMerged(request, kbPath, sessionDir, baseName, toRows(kymo, width, height), toRows(rgb, width, height),
+				concat(tracks), directions, start, kernelMs, messages);
+	}
+
+	/**
+	 * Reads the channels of an image as values between 0 and 1 (the grey level in all three channels for grey images)
+	 * @param image the image
+	 * @return the red, green and blue channels, row by row
+	 */
+	static float[][] getRGB(BufferedImage image) {
+		int width=image.getWidth();
+		int height=image.getHeight();
+		float[][] rgb=new float[3][width*height];
+		Raster raster=image.getRaster();
+		int nBands=Math.min(3, raster.getNumBands());
+		double max=(1<<raster.getSampleModel().getSampleSize(0))-1;
+		int[] line=new int[width];
+		for(int y=0; y<height; y++) {
+			for(int band=0; band<3; band++) {
+				raster.getSamples(0, y, width, 1, Math.min(band, nBands-1), line);
+				for(int x=0; x<width; x++) rgb[band][y*width+x]=(float) (line[x]/max);
+			}
+		}
+		return rgb;
+	}
+
+	/**
+	 * Averages the channels of an image
+	 * @param rgb the red, green and blue channels
+	 * @return the grey levels
+	 */
+	static float[] getGray(float[][] rgb) {
+		float[] gray=new float[rgb[0].length];
+		for(int i=0; i<gray.length; i++) gray[i]=(rgb[0][i]+rgb[1][i]+rgb[2][i])/3;
+		return gray;
+	}
+
+	/**
+	 * Converts grey levels to the layout of the response's kymograph
+	 * @param values the grey levels, row by row
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @return the image, as a JSONArray of rows
+	 */
+	static JSONArray toRows(float[] values, int width, int height) {
+		JSONArray rows=new JSONArray();
+		for(int y=0; y<height; y++) {
+			JSONArray row=new JSONArray();
+			for(int x=0; x<width; x++) row.put(values[y*width+x]);
+			rows.put(row);
+		}
+		return rows;
+	}
+
+	/**
+	 * Converts colours to the layout of the response's overlay
+	 * @param rgb the red, green and blue channels, row by row
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @return the image, as a JSONArray of rows of {r, g, b} values
+	 */
+	static JSONArray toRows(float[][] rgb, int width, int height) {
+		JSONArray rows=new JSONArray();
+		for(int y=0; y<height; y++) {
+			JSONArray row=new JSONArray();
+			for(int x=0; x<width; x++) {
+				int i=y*width+x;
+				row.put(new JSONArray().put(rgb[0][i]).put(rgb[1][i]).put(rgb[2][i]));
+			}
+			rows.put(row);
+		}
+		return rows;
+	}
+
+	/**
+	 * Pastes the kymograph and overlay of a region over the merged ones
+	 * @param kymo the merged kymograph, row by row
+	 * @param rgb the merged overlay, row by row, one array per channel
+	 * @param width the width of the kymograph
+	 * @param kymograph the region's kymograph, as a JSONArray of rows, null if none
+	 * @param overlay the region's overlay, as a JSONArray of rows of {r, g, b} values, null if none
+	 * @param region the region
+	 */
+	static void paste(float[] kymo, float[][] rgb, int width, JSONArray kymograph, JSONArray overlay, Rectangle region) {
+		for(int y=0; y<region.height; y++) {
+			JSONArray kymoRow=kymograph!=null && y<kymograph.length()?kymograph.getJSONArray(y):null;
+			JSONArray overlayRow=overlay!=null && y<overlay.length()?overlay.getJSONArray(y):null;
+			for(int x=0; x<region.width; x++) {
+				int i=(region.y+y)*width+region.x+x;
+				if(kymoRow!=null && x<kymoRow.length()) kymo[i]=(float) kymoRow.getDouble(x);
+				if(overlayRow!=null && x<overlayRow.length()) {
+					JSONArray value=overlayRow.getJSONArray(x);
+					for(int c=0; c<3; c++) rgb[c][i]=(float) value.getDouble(c);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Shifts tracks from a region's coordinates to the kymograph's coordinates
+	 * @param tracks the tracks of the region
+	 * @param rows the first row of the region
+	 * @param columns the first column of the region
+	 * @return the shifted tracks
+	 */
+	static KymoButlerTracks shift(KymoButlerTracks tracks, int rows, int columns) {
+		double[] t=tracks.getTArray().clone();
+		double[] x=tracks.getXArray().clone();
+		for(int k=0; k<t.length; k++) {
+			t[k]+=rows;
+			x[k]+=columns;
+		}
+		return new KymoButlerTracks(tracks.getOffsets(), t, x);
+	}
+
+	/**
+	 * Concatenates track sets
+	 * @param tracks the track sets
+	 * @return the tracks of all sets
+	 */
+	static KymoButlerTracks concat(List<KymoButlerTracks> tracks) {
+		int nTracks=0, nPoints=0;
+		for(KymoButlerTracks set : tracks) {
+			nTracks+=set.getNTracks();
+			nPoints+=set.getNPoints();
+		}
+		int[] offsets=new int[nTracks+1];
+		double[] t=new double[nPoints];
+		double[] x=new double[nPoints];
+		int track=0, point=0;
+		for(KymoButlerTracks set : tracks) {
+			for(int i=0; i<set.getNTracks(); i++) offsets[track+i]=point+set.getStart(i);
+			System.arraycopy(set.getTArray(), 0, t, point, set.getNPoints());
+			System.arraycopy(set.getXArray(), 0, x, point, set.getNPoints());
+			track+=set.getNTracks();
+			point+=set.getNPoints();
+		}
+		offsets[nTracks]=nPoints;
+		return new KymoButlerTracks(offsets, t, x);
+	}
+}
@@ -0,0 +1,524 @@
+/**
+*
+*  KymoButlerTiledAnalysis.java, 18 oct. 2026
+*
+*  Analysis of long kymographs as overlapping time windows, whose tracks are stitched back together.
+*
+*/
+
+/*
+ * This file is part of KymoButler for ImageJ and is distributed
+ * under the terms of the GNU General Public License v3.0 or later.
+ */
+
+package KymoButler;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ColorProcessor;
+
+/**
+ * This class analyses kymographs too long to be analysed at once: the kymograph is split along the time axis into
+ * windows sharing a few rows with their neighbours, the windows are analysed as separate requests (several at once,
+ * each in its own Wolfram kernel), and their outputs are merged into a single session, as if the kymograph had been
+ * analysed at once. Each window owns the rows up to the middle of its overlaps; a track crossing the boundary between
+ * two windows is found in both, and the two pieces are stitched when they follow the same path over the shared rows.
+ * Tracks that are not stitched are cut at the boundary, so that tracks lying in the shared rows are not counted twice.
+ * The postprocessing table is then computed on the stitched tracks.
+ *
+ */
+public class KymoButlerTiledAnalysis {
+	/** Folder of the windows' session folders, in the merged session folder **/
+	public static final String TILES_FOLDER="tiles";
+
+	/** Minimum number of shared rows over which two pieces should follow the same path to be stitched **/
+	static final int MIN_COMMON_ROWS=3;
+
+	/** Maximum distance between two pieces on a shared row, in pixels, for the row to count as common **/
+	static final double MAX_DISTANCE=2;
+
+	/**
+	 * Tells whether a request is analysed as time windows: tiling is enabled and the kymograph is longer than a window
+	 * @param request the analysis request
+	 * @return true if the kymograph is analysed as time windows
+	 */
+	public static boolean isTiled(KymoButlerAnalysisRequest request) {
+		return request.tileRows>0 && request.image.getHeight()>request.tileRows;
+	}
+
+	/**
+	 * Splits a kymograph into windows of equal heights, at most rows high and sharing at least overlap rows
+	 * (give or take one) with their neighbours
+	 * @param height the height of the kymograph
+	 * @param rows the maximum height of the windows
+	 * @param overlap the number of rows shared by consecutive windows (at most half a window)
+	 * @return the first row (included) and last row (excluded) of each window
+	 */
+	static int[][] getWindows(int height, int rows, int overlap) {
+		rows=Math.max(1, rows);
+		overlap=Math.max(0, Math.min(overlap, rows/2));
+		if(height<=rows) return new int[][] {{0, height}};
+
+		int n=(int) Math.ceil((height-overlap)/(double) (rows-overlap));
+		int h=(int) Math.ceil((height+(n-1)*(double) overlap)/n);
+		int[][] windows=new int[n][2];
+		for(int i=0; i<n; i++) {
+			windows[i][0]=(int) ((long) i*(height-h)/(n-1));
+			windows[i][1]=i==n-1?height:windows[i][0]+h;
+		}
+		return windows;
+	}
+
+	/**
+	 * Analyses a request as time windows, and merges their outputs into a new session folder
+	 * @param request the analysis request
+	 * @param kbPath the folder of the local KymoButler installation
+	 * @return the merged result
+	 */
+	static KymoButlerAnalysisResult analyze(final KymoButlerAnalysisRequest request, String kbPath) {
+		long start=System.currentTimeMillis();
+		List<String> messages=new ArrayList<String>();
+		String baseName=KymoButlerIO.sanitizeBaseName(request.title);
+
+		File sessionDir=KymoButlerIO.createSessionDir(new File(request.getSessionParentDir()), baseName);
+		if(sessionDir==null) {
+			KymoButlerIO.log(messages, "Local mode: unable to create output directory in "+request.getSessionParentDir());
+			return new KymoButlerAnalysisResult(false, null, null, baseName, false, null, System.currentTimeMillis()-start, 0, messages);
+		}
+
+		int height=request.image.getHeight();
+		int[][] windows=getWindows(height, request.tileRows, request.tileOverlap);
+		int nWorkers=Math.min(request.tileWorkers, windows.length);
+		KymoButlerIO.log(messages, "Local mode: "+height+" rows split into "+windows.length+" windows of "+(windows[0][1]-windows[0][0])
+				+" rows, "+nWorkers+" analysed at once");
+
+		//Analyse the windows
+		String tilesDir=new File(sessionDir, TILES_FOLDER).getAbsolutePath();
+		List<Future<KymoButlerAnalysisResult>> futures=new ArrayList<Future<KymoButlerAnalysisResult>>();
+		ExecutorService executor=Executors.newFixedThreadPool(Math.max(1, nWorkers));
+		for(int i=0; i<windows.length; i++) {
+			BufferedImage window=crop(request.image, 0, windows[i][0], request.image.getWidth(), windows[i][1]-windows[i][0]);
+			final KymoButlerAnalysisRequest tile=request.toBuilder()
+					.image(window, baseName+"_t"+(i+1)+".png")
+					.outputDir(tilesDir)
+					.segments(false, request.segPauseVelocity, request.segMinFrames)
+					.tiling(0, 0, 1)
+					.build();
+			futures.add(executor.submit(new Callable<KymoButlerAnalysisResult>() {
+				@Override
+				public KymoButlerAnalysisResult call() {
+					return KymoButlerIO.analyze(tile);
+				}
+			}));
+		}
+		executor.shutdown();
+
+		KymoButlerAnalysisResult[] tiles=new KymoButlerAnalysisResult[windows.length];
+		long kernelMs=0;
+		boolean failed=false;
+		try {
+			for(int i=0; i<windows.length; i++) {
+				tiles[i]=futures.get(i).get();
+				messages.addAll(tiles[i].getMessages());
+				kernelMs+=tiles[i].getKernelMs();
+				if(!tiles[i].isSuccess() || !KymoButlerResponseParser.isJSON(tiles[i].getResponse())) failed=true;
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			executor.shutdownNow();
+			KymoButlerIO.log(messages, "Local mode: analysis of the windows interrupted.");
+			return new KymoButlerAnalysisResult(false, null, sessionDir.getAbsolutePath(), baseName, false, null, System.currentTimeMillis()-start, kernelMs, messages);
+		}
+		if(failed) {
+			KymoButlerIO.log(messages, "Local mode: the analysis of some windows failed.");
+			return new KymoButlerAnalysisResult(false, null, sessionDir.getAbsolutePath(), baseName, false, null, System.currentTimeMillis()-start, kernelMs, messages);
+		}
+
+		//Merge the windows
+		int[] bounds=getBounds(windows);
+		KymoButlerTracks[] tracks=new KymoButlerTracks[windows.length];
+		String[][] directions=new String[windows.length][];
+		JSONArray kymograph=new JSONArray();
+		JSONArray overlay=new JSONArray();
+		for(int i=0; i<windows.length; i++) {
+			KymoButlerResponseParser parser=new KymoButlerResponseParser(tiles[i].getResponse());
+			if(parser.hasError()) {
+				KymoButlerIO.log(messages, "Local mode: window "+(i+1)+" returned an error"+(parser.hasMessages()?": "+parser.getMessages():"."));
+				return new KymoButlerAnalysisResult(false, null, sessionDir.getAbsolutePath(), baseName, false, null, System.currentTimeMillis()-start, kernelMs, messages);
+			}
+			tracks[i]=offset(parser.hasTracks()?parser.getTrackData():null, windows[i][0]);
+			directions[i]=readDirections(tiles[i].getTracksCsvPath(), tracks[i].getNTracks());
+			appendRows(kymograph, parser.json.optJSONArray(KymoButlerFields.KYMOGRAPH_FIELD_TAG), bounds[i]-windows[i][0], bounds[i+1]-windows[i][0]);
+			appendRows(overlay, parser.json.optJSONArray(KymoButlerFields.OVERLAY_FIELD_TAG), bounds[i]-windows[i][0], bounds[i+1]-windows[i][0]);
+		}
+
+		List<String> stitchedDirections=new ArrayList<String>();
+		KymoButlerTracks stitched=stitch(windows, bounds, tracks, directions, stitchedDirections);
+		KymoButlerIO.log(messages, "Local mode: "+stitched.getNTracks()+" tracks after stitching the windows");
+
+		return saveMerged(request, kbPath, sessionDir, baseName, kymograph, overlay, stitched, stitchedDirections, start, kernelMs, messages);
+	}
+
+	/**
+	 * Writes the outputs of an analysis merged from several requests (windows, regions) to its session folder,
+	 * as the local script does for a single request, and computes the postprocessing table on the merged tracks
+	 * @param request the analysis request
+	 * @param kbPath the folder of the local KymoButler installation
+	 * @param sessionDir the session folder
+	 * @param baseName the base name of the output files
+	 * @param kymograph the merged kymograph, as a JSONArray of rows
+	 * @param overlay the merged overlay, as a JSONArray of rows of {r, g, b} values
+	 * @param tracks the merged tracks, in the kymograph's coordinates
+	 * @param directions the direction of each track
+	 * @param start the time at which the analysis started, in ms
+	 * @param kernelMs the time already spent in WolframScript, in ms
+	 * @param messages the messages of the analysis
+	 * @return the merged result
+	 */
+	static KymoButlerAnalysisResult saveMerged(KymoButlerAnalysisRequest request, String kbPath, File sessionDir, String baseName, JSONArray kymograph,
+			JSONArray overlay, KymoButlerTracks tracks, List<String> directions, long start, long kernelMs, List<String> messages) {
+		JSONObject merged=new JSONObject();
+		merged.put(KymoButlerFields.KYMOGRAPH_FIELD_TAG, kymograph);
+		merged.put(KymoButlerFields.OVERLAY_FIELD_TAG, overlay);
+		merged.put(KymoButlerFields.TRACKS_FIELD_TAG, tracks.toJSON());
+		String response=merged.toString();
+
+		String tracksPath=new File(sessionDir, baseName+"_tracks.json").getAbsolutePath();
+		try {
+			ImageIO.write(request.image, "png", new File(sessionDir, baseName+"_input.png"));
+			FileUtils.writeStringToFile(new File(sessionDir, baseName+"_response.json"), response, "UTF-8");
+			FileUtils.writeStringToFile(new File(tracksPath), merged.getJSONArray(KymoButlerFields.TRACKS_FIELD_TAG).toString(), "UTF-8");
+			writeTracksCsv(new File(sessionDir, baseName+"_tracks_long.csv"), tracks, directions, request.timeSize, request.spaceSize);
+		} catch (IOException e) {
+			KymoButlerIO.log(messages, "Local mode: unable to write the merged outputs to "+sessionDir.getAbsolutePath());
+			return new KymoButlerAnalysisResult(false, response, sessionDir.getAbsolutePath(), baseName, false, null, System.currentTimeMillis()-start, kernelMs, messages);
+		}
+		if(overlay.length()>0) IJ.saveAsTiff(toRGB(overlay), new File(sessionDir, baseName+"_overlay.tif").getAbsolutePath());
+
+		//Postprocessing, on the merged tracks
+		if(tracks.getNTracks()>0) {
+			String scriptPath=new File(sessionDir, baseName+"_pproc.wls").getAbsolutePath();
+			try {
+				FileUtils.writeStringToFile(new File(scriptPath), KymoButlerIO.buildPprocScript(request, kbPath, tracksPath, sessionDir, baseName), "UTF-8");
+				long kernelStart=System.currentTimeMillis();
+				int status=KymoButlerIO.runScript(request.wolframScriptPath, scriptPath, request.timeOutMs, messages);
+				kernelMs+=System.currentTimeMillis()-kernelStart;
+				if(status!=0) KymoButlerIO.log(messages, "Local mode: postprocessing of the merged tracks failed.");
+			} catch (IOException e) {
+				KymoButlerIO.log(messages, "Local mode: unable to write WolframScript file to "+scriptPath);
+			}
+		}
+
+		String segmentsPath=request.segmentTracks?KymoButlerIO.saveSegmentsTable(request, response, sessionDir, baseName, messages):null;
+		return new KymoButlerAnalysisResult(true, response, sessionDir.getAbsolutePath(), baseName, false, segmentsPath, System.currentTimeMillis()-start, kernelMs, messages);
+	}
+
+	/**
+	 * Returns the rows owned by each window: the boundary between two windows is the middle of their shared rows
+	 * @param windows the first and last rows of the windows
+	 * @return the boundaries: window i owns the rows from bounds[i] (included) to bounds[i+1] (excluded)
+	 */
+	static int[] getBounds(int[][] windows) {
+		int[] bounds=new int[windows.length+1];
+		for(int i=1; i<windows.length; i++) bounds[i]=(windows[i][0]+windows[i-1][1])/2;
+		bounds[windows.length]=windows[windows.length-1][1];
+		return bounds;
+	}
+
+	/**
+	 * Stitches the tracks of consecutive windows, and cuts the other tracks at the boundaries between windows
+	 * @param windows the first and last rows of the windows
+	 * @param bounds the rows owned by each window
+	 * @param tracks the tracks of each window, in the kymograph's rows
+	 * @param directions the direction of each track of each window
+	 * @param stitchedDirections list filled with the direction of each stitched track
+	 * @return the stitched tracks
+	 */
+	static KymoButlerTracks stitch(int[][] windows, int[] bounds, KymoButlerTracks[] tracks, String[][] directions, List<String> stitchedDirections) {
+		int n=windows.length;
+		int[][] next=new int[n][];
+		int[][] cutNext=new int[n][];
+		boolean[][] hasPrevious=new boolean[n][];
+		for(int i=0; i<n; i++) {
+			int nTracks=tracks[i].getNTracks();
+			next[i]=new int[nTracks];
+			Arrays.fill(next[i], -1);
+			cutNext[i]=new int[nTracks];
+			hasPrevious[i]=new boolean[nTracks];
+		}
+		for(int i=0; i<n-1; i++) match(tracks[i], tracks[i+1], windows[i+1][0], windows[i][1], next[i], cutNext[i], hasPrevious[i+1]);
+
+		int[] offsets=new int[16];
+		double[] t=new double[256];
+		double[] x=new double[256];
+		int nOut=0, nPoints=0;
+		for(int i=0; i<n; i++) {
+			for(int j=0; j<tracks[i].getNTracks(); j++) {
+				if(hasPrevious[i][j]) continue;
+				int first=nPoints;
+
+				//Follow the track through the windows
+				int window=i, track=j;
+				double from=i==0?Double.NEGATIVE_INFINITY:bounds[i];
+				while(track>=0) {
+					boolean last=next[window][track]<0;
+					double to=!last?cutNext[window][track]:window==n-1?Double.POSITIVE_INFINITY:bounds[window+1];
+					KymoButlerTracks data=tracks[window];
+					for(int k=data.getStart(track); k<data.getEnd(track); k++) {
+						if(data.getT(k)<from || data.getT(k)>=to) continue;
+						if(nPoints==t.length) {
+							t=Arrays.copyOf(t, 2*t.length);
+							x=Arrays.copyOf(x, 2*x.length);
+						}
+						t[nPoints]=data.getT(k);
+						x[nPoints]=data.getX(k);
+						nPoints++;
+					}
+					if(last) break;
+					from=cutNext[window][track];
+					track=next[window][track];
+					window++;
+				}
+
+				//Tracks left with less than two points by the cuts are dropped
+				if(nPoints-first<2) {
+					nPoints=first;
+					continue;
+				}
+				if(nOut+2>offsets.length) offsets=Arrays.copyOf(offsets, 2*offsets.length);
+				offsets[nOut]=first;
+				nOut++;
+				stitchedDirections.add(directions[i][j]);
+			}
+		}
+		offsets[nOut]=nPoints;
+
+		return new KymoButlerTracks(Arrays.copyOf(offsets, nOut+1), Arrays.copyOf(t, nPoints), Arrays.copyOf(x, nPoints));
+	}
+
+	/**
+	 * Matches the tracks of two consecutive windows that follow the same path over their shared rows, one to one,
+	 * the pairs sharing the most rows first
+	 * @param a the tracks of the first window
+	 * @param b the tracks of the second window
+	 * @param from the first shared row
+	 * @param to the last shared row (excluded)
+	 * @param next filled with the track of b matching each track of a, -1 if none
+	 * @param cutNext filled with the row at which each matched track of a hands over to its match
+	 * @param hasPrevious filled with true for the tracks of b matched by a track of a
+	 */
+	static void match(KymoButlerTracks a, KymoButlerTracks b, int from, int to, int[] next, int[] cutNext, boolean[] hasPrevious) {
+		int nRows=to-from;
+		if(nRows<=0) return;
+
+		//Points of b on the shared rows, by row
+		int[] rowStart=new int[nRows+1];
+		for(int k=0; k<b.getNPoints(); k++) {
+			int row=(int) Math.round(b.getT(k))-from;
+			if(row>=0 && row<nRows) rowStart[row+1]++;
+		}
+		for(int r=0; r<nRows; r++) rowStart[r+1]+=rowStart[r];
+		int[] rowTrack=new int[rowStart[nRows]];
+		double[] rowX=new double[rowStart[nRows]];
+		int[] fill=Arrays.copyOf(rowStart, nRows);
+		for(int track=0; track<b.getNTracks(); track++) {
+			for(int k=b.getStart(track); k<b.getEnd(track); k++) {
+				int row=(int) Math.round(b.getT(k))-from;
+				if(row<0 || row>=nRows) continue;
+				rowTrack[fill[row]]=track;
+				rowX[fill[row]]=b.getX(k);
+				fill[row]++;
+			}
+		}
+
+		//Rows on which pairs of tracks are close: number, sum of distances, first and last row
+		Map<Long, double[]> pairs=new HashMap<Long, double[]>();
+		for(int track=0; track<a.getNTracks(); track++) {
+			for(int k=a.getStart(track); k<a.getEnd(track); k++) {
+				int row=(int) Math.round(a.getT(k))-from;
+				if(row<0 || row>=nRows) continue;
+				for(int l=rowStart[row]; l<rowStart[row+1]; l++) {
+					double distance=Math.abs(a.getX(k)-rowX[l]);
+					if(distance>MAX_DISTANCE) continue;
+					Long key=Long.valueOf(((long) track<<32) | rowTrack[l]);
+					double[] pair=pairs.get(key);
+					if(pair==null) {
+						pairs.put(key, new double[] {1, distance, row, row});
+					}else {
+						pair[0]++;
+						pair[1]+=distance;
+						pair[2]=Math.min(pair[2], row);
+						pair[3]=Math.max(pair[3], row);
+					}
+				}
+			}
+		}
+
+		List<Map.Entry<Long, double[]>> candidates=new ArrayList<Map.Entry<Long, double[]>>();
+		int minRows=Math.min(MIN_COMMON_ROWS, nRows);
+		for(Map.Entry<Long, double[]> pair : pairs.entrySet()) {
+			if(pair.getValue()[0]>=minRows) candidates.add(pair);
+		}
+		candidates.sort(new java.util.Comparator<Map.Entry<Long, double[]>>() {
+			@Override
+			public int compare(Map.Entry<Long, double[]> p1, Map.Entry<Long, double[]> p2) {
+				double[] v1=p1.getValue(), v2=p2.getValue();
+				if(v1[0]!=v2[0]) return Double.compare(v2[0], v1[0]);
+				return Double.compare(v1[1]/v1[0], v2[1]/v2[0]);
+			}
+		});
+
+		for(Map.Entry<Long, double[]> pair : candidates) {
+			int trackA=(int) (pair.getKey().longValue()>>>32);
+			int trackB=(int) (pair.getKey().longValue() & 0xFFFFFFFFL);
+			if(next[trackA]>=0 || hasPrevious[trackB]) continue;
+			int cut=from+(int) ((pair.getValue()[2]+pair.getValue()[3]+1)/2);
+			next[trackA]=trackB;
+			cutNext[trackA]=cut;
+			hasPrevious[trackB]=true;
+		}
+	}
+
+	/**
+	 * Shifts tracks along the time axis, from a window's rows to the kymograph's rows
+	 * @param tracks the tracks of the window, null if none
+	 * @param rows the first row of the window
+	 * @return the shifted tracks
+	 */
+	static KymoButlerTracks offset(KymoButlerTracks tracks, int rows) {
+		if(tracks==null) return new KymoButlerTracks(new int[] {0}, new double[0], new double[0]);
+		double[] t=tracks.getTArray().clone();
+		for(int k=0; k<t.length; k++) t[k]+=rows;
+		return new KymoButlerTracks(tracks.getOffsets(), t, tracks.getXArray());
+	}
+
+	/**
+	 * Copies part of an image into a new image, which does not share the original's data buffer
+	 * @param image the image
+	 * @param x the first column
+	 * @param y the first row
+	 * @param width the number of columns
+	 * @param height the number of rows
+	 * @return the copy
+	 */
+	static BufferedImage crop(BufferedImage image, int x, int y, int width, int height) {
+		BufferedImage view=image.getSubimage(x, y, width, height);
+		WritableRaster raster=view.getColorModel().createCompatibleWritableRaster(width, height);
+		view.copyData(raster);
+		return new BufferedImage(view.getColorModel(), raster, view.isAlphaPremultiplied(), null);
+	}
+
+	/**
+	 * Reads the direction of each track from a tracks table (track_id, t, x, dir...)
+	 * @param path the path to the table, null if unknown
+	 * @param nTracks the number of tracks
+	 * @return the direction of each track, "bidirectional" if unknown
+	 */
+	static String[] readDirections(String path, int nTracks) {
+		String[] directions=new String[nTracks];
+		Arrays.fill(directions, "bidirectional");
+		if(path==null || !new File(path).isFile()) return directions;
+		try {
+			List<String> lines=Files.readAllLines(new File(path).toPath(), StandardCharsets.UTF_8);
+			for(int i=1; i<lines.size(); i++) {
+				String[] fields=lines.get(i).split(",");
+				if(fields.length<4) continue;
+				try {
+					int id=(int) Double.parseDouble(fields[0].trim())-1;
+					if(id>=0 && id<nTracks) directions[id]=fields[3].trim().replace("\"", "");
+				} catch (NumberFormatException e) {
+					//Not a track row
+				}
+			}
+		} catch (IOException e) {
+			IJ.log("Local mode: unable to read the tracks table "+path);
+		}
+		return directions;
+	}
+
+	/**
+	 * Appends the rows of a window's image (kymograph or overlay) to the merged image
+	 * @param merged the merged image, as a JSONArray of rows
+	 * @param rows the window's image, as a JSONArray of rows, null if none
+	 * @param from first row to append (included)
+	 * @param to last row to append (excluded)
+	 */
+	static void appendRows(JSONArray merged, JSONArray rows, int from, int to) {
+		if(rows==null) return;
+		for(int r=Math.max(0, from); r<Math.min(to, rows.length()); r++) merged.put(rows.get(r));
+	}
+
+	/**
+	 * Converts an overlay (rows of {r, g, b} values between 0 and 1) into an RGB image
+	 * @param overlay the overlay
+	 * @return the RGB image
+	 */
+	static ImagePlus toRGB(JSONArray overlay) {
+		int height=overlay.length();
+		int width=overlay.getJSONArray(0).length();
+		ColorProcessor cp=new ColorProcessor(width, height);
+		for(int y=0; y<height; y++) {
+			JSONArray line=overlay.getJSONArray(y);
+			for(int x=0; x<width; x++) {
+				JSONArray rgb=line.getJSONArray(x);
+				int r=(int) Math.round(255*rgb.getDouble(0));
+				int g=(int) Math.round(255*rgb.getDouble(1));
+				int b=(int) Math.round(255*rgb.getDouble(2));
+				cp.set(x, y, (r<<16) | (g<<8) | b);
+			}
+		}
+		return new ImagePlus("Overlay", cp);
+	}
+
+	/**
+	 * Writes the tracks table, in the same layout as the one written by the local script
+	 * @param file the table
+	 * @param tracks the tracks
+	 * @param directions the direction of each track
+	 * @param timeSize time interval between two lines of the kymograph
+	 * @param spaceSize size of a pixel
+	 * @throws IOException if the table could not be written
+	 */
+	static void writeTracksCsv(File file, KymoButlerTracks tracks, List<String> directions, double timeSize, double spaceSize) throws IOException {
+		StringBuilder sb=new StringBuilder("track_id,t,x,dir,t_phys,x_phys\n");
+		for(int i=0; i<tracks.getNTracks(); i++) {
+			for(int k=tracks.getStart(i); k<tracks.getEnd(i); k++) {
+				sb.append(i+1).append(',').append(format(tracks.getT(k))).append(',').append(format(tracks.getX(k))).append(',')
+					.append(directions.get(i)).append(',').append(format(tracks.getT(k)*timeSize)).append(',').append(format(tracks.getX(k)*spaceSize)).append('\n');
+			}
+		}
+		FileUtils.writeStringToFile(file, sb.toString(), "UTF-8");
+	}
+
+	/**
+	 * Formats a number for the tracks table, without decimals for integers
+	 * @param value the number
+	 * @return the formatted number
+	 */
+	static String format(double value) {
+		if(value==Math.rint(value) && Math.abs(value)<1e15) return Long.toString((long) value);
+		return Double.toString(value);
+	}
+}
@@ -0,0 +1,404 @@
+/**
+*
+*  KymoButlerTrackIndex.java, 18 oct. 2026
+*
+*  Time-interval and per-frame spatial index over detected tracks.
+*
+*/
+
+/*
+ * This file is part of KymoButler for ImageJ and is distributed
+ * under the terms of the GNU General Public License v3.0 or later.
+ */
+
+package KymoButler;
+
+import java.util.Arrays;
+
+/**
+ * This class indexes a set of tracks to answer per-frame queries without scanning all of them:
+ * <ul>
+ * 	<li>tracks active in a range of frames, using an implicit augmented interval tree over the tracks' time spans;</li>
+ * 	<li>number of tracks active at a given frame, using two sorted arrays of span bounds;</li>
+ * 	<li>nearest track to a (t, x) position, using points bucketed per frame and sorted along x.</li>
+ * </ul>
+ * The index is immutable once built.
+ *
+ */
+public class KymoButlerTrackIndex {
+	/** The indexed tracks **/
+	final KymoButlerTracks tracks;
+
+	/** Span starts (first frame), sorted in ascending order **/
+	final int[] spanStart;
+
+	/** Span ends (last frame + 1, exclusive), in the spanStart order **/
+	final int[] spanEnd;
+
+	/** Track index, in the spanStart order **/
+	final int[] spanTrack;
+
+	/** Largest span end found in each node's subtree of the implicit interval tree **/
+	final int[] spanMaxEnd;
+
+	/** Depth of the root node of the implicit interval tree **/
+	final int maxLevel;
+
+	/** Span ends, sorted in ascending order (used for counting) **/
+	final int[] sortedEnd;
+
+	/** First frame present in the per-frame buckets **/
+	final int firstFrame;
+
+	/** Index of the first point of each frame bucket, followed by the total number of points **/
+	final int[] frameOffsets;
+
+	/** x coordinates of the points, sorted within each frame bucket **/
+	final double[] frameX;
+
+	/** Track index of each point, in the frameX order **/
+	final int[] frameTrack;
+
+	/**
+	 * Builds the index over the input tracks
+	 * @param tracks the tracks to index
+	 */
+	public KymoButlerTrackIndex(KymoButlerTracks tracks) {
+		this.tracks=tracks;
+		int nTracks=tracks.getNTracks();
+
+		//Time spans, sorted by start: empty tracks are left out
+		long[] keys=new long[nTracks];
+		int nSpans=0;
+		for(int i=0; i<nTracks; i++) {
+			if(tracks.getStart(i)==tracks.getEnd(i)) continue;
+			keys[nSpans++]=((long) toFrame(tracks.getTMin(i))<<32) | i;
+		}
+		keys=Arrays.copyOf(keys, nSpans);
+		Arrays.sort(keys);
+
+		spanStart=new int[nSpans];
+		spanEnd=new int[nSpans];
+		spanTrack=new int[nSpans];
+		for(int i=0; i<nSpans; i++) {
+			spanTrack[i]=(int) (keys[i] & 0xFFFFFFFFL);
+			spanStart[i]=(int) (keys[i]>>32);
+			spanEnd[i]=toFrame(tracks.getTMax(spanTrack[i]))+1;
+		}
+
+		spanMaxEnd=new int[nSpans];
+		maxLevel=buildMaxEnd();
+
+		sortedEnd=spanEnd.clone();
+		Arrays.sort(sortedEnd);
+
+		//Per-frame buckets, points sorted by frame then x
+		int nPoints=tracks.getNPoints();
+		int minFrame=Integer.MAX_VALUE;
+		int maxFrame=Integer.MIN_VALUE;
+		for(int p=0; p<nPoints; p++) {
+			int f=toFrame(tracks.getT(p));
+			if(f<minFrame) minFrame=f;
+			if(f>maxFrame) maxFrame=f;
+		}
+		if(nPoints==0) {
+			minFrame=0;
+			maxFrame=-1;
+		}
+		firstFrame=minFrame;
+
+		frameOffsets=new int[maxFrame-minFrame+2];
+		for(int p=0; p<nPoints; p++) frameOffsets[toFrame(tracks.getT(p))-minFrame+1]++;
+		for(int f=1; f<frameOffsets.length; f++) frameOffsets[f]+=frameOffsets[f-1];
+
+		frameX=new double[nPoints];
+		frameTrack=new int[nPoints];
+		int[] fill=Arrays.copyOf(frameOffsets, frameOffsets.length-1);
+		for(int i=0; i<nTracks; i++) {
+			for(int p=tracks.getStart(i); p<tracks.getEnd(i); p++) {
+				int dest=fill[toFrame(tracks.getT(p))-minFrame]++;
+				frameX[dest]=tracks.getX(p);
+				frameTrack[dest]=i;
+			}
+		}
+		for(int f=0; f<frameOffsets.length-1; f++) sortBucket(frameOffsets[f], frameOffsets[f+1]);
+	}
+
+	/**
+	 * Returns the indexed tracks
+	 * @return the indexed tracks
+	 */
+	public KymoButlerTracks getTracks() {
+		return tracks;
+	}
+
+	/**
+	 * Returns the tracks whose time span (first to last frame) overlaps [from, to]
+	 * @param from first frame of the range (included)
+	 * @param to last frame of the range (included)
+	 * @return the indexes of the tracks active within the range, sorted in ascending order
+	 */
+	public int[] getTracksInFrames(int from, int to) {
+		int n=spanStart.length;
+		if(n==0 || to<from) return new int[0];
+
+		int qStart=from;
+		int qEnd=to+1;
+		int[] out=new int[16];
+		int nOut=0;
+
+		//Iterative traversal of the implicit tree: each stack entry packs the node, its level and a visited flag
+		int[] stack=new int[3*(maxLevel+2)*2];
+		int top=0;
+		stack[top++]=(1<<maxLevel)-1;
+		stack[top++]=maxLevel;
+		stack[top++]=0;
+
+		while(top>0) {
+			int visited=stack[--top];
+			int level=stack[--top];
+			int node=stack[--top];
+
+			if(level<=3) {
+				//Small subtree: linear scan of the sorted spans it covers
+				int i0=node>>level<<level;
+				int i1=Math.min(i0+(1<<(level+1))-1, n);
+				for(int i=i0; i<i1 && spanStart[i]<qEnd; i++) {
+					if(qStart<spanEnd[i]) {
+						if(nOut==out.length) out=Arrays.copyOf(out, nOut*2);
+						out[nOut++]=spanTrack[i];
+					}
+				}
+			}else if(visited==0) {
+				int left=node-(1<<(level-1));
+				stack[top++]=node;
+				stack[top++]=level;
+				stack[top++]=1;
+				if(left>=n || spanMaxEnd[left]>qStart) {
+					stack[top++]=left;
+					stack[top++]=level-1;
+					stack[top++]=0;
+				}
+			}else if(node<n && spanStart[node]<qEnd) {
+				if(qStart<spanEnd[node]) {
+					if(nOut==out.length) out=Arrays.copyOf(out, nOut*2);
+					out[nOut++]=spanTrack[node];
+				}
+				stack[top++]=node+(1<<(level-1));
+				stack[top++]=level-1;
+				stack[top++]=0;
+			}
+		}
+
+		out=Arrays.copyOf(out, nOut);
+		Arrays.sort(out);
+		return out;
+	}
+
+	/**
+	 * Returns the tracks whose time span (first to last frame) contains the input frame
+	 * @param frame the frame to look at
+	 * @return the indexes of the tracks active at that frame, sorted in ascending order
+	 */
+	public int[] getTracksAtFrame(int frame) {
+		return getTracksInFrames(frame, frame);
+	}
+
+	/**
+	 * Counts the tracks whose time span contains the input frame, without listing them
+	 * @param frame the frame to look at
+	 * @return the number of tracks active at that frame
+	 */
+	public int countTracksAtFrame(int frame) {
+		return countLessOrEqual(spanStart, frame)-countLessOrEqual(sortedEnd, frame);
+	}
+
+	/**
+	 * Returns the track having a point closest to the input position (euclidean distance, in pixels)
+	 * @param t the time coordinate (row)
+	 * @param x the space coordinate (column)
+	 * @return the index of the closest track, or -1 if there is no track
+	 */
+	public int getNearestTrack(double t, double x) {
+		return getNearestTrack(t, x, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Returns the track having a point closest to the input position (euclidean distance, in pixels)
+	 * @param t the time coordinate (row)
+	 * @param x the space coordinate (column)
+	 * @param maxDistance maximum distance for a point to be considered
+	 * @return the index of the closest track, or -1 if no track has a point within maxDistance
+	 */
+	public int getNearestTrack(double t, double x, double maxDistance) {
+		int nFrames=frameOffsets.length-1;
+		if(nFrames<=0) return -1;
+
+		double bestD2=maxDistance*maxDistance;
+		int best=-1;
+		int center=toFrame(t)-firstFrame;
+
+		//Frames are visited outwards from the query frame, until the time gap alone exceeds the best distance
+		int dFirst=center<0?-center:(center>=nFrames?center-nFrames+1:0);
+		double offset=Math.abs(t-(firstFrame+center));
+		for(int d=dFirst; center-d>=0 || center+d<nFrames; d++) {
+			double gap=d-offset;
+			if(gap>0 && gap*gap>bestD2) break;
+
+			int p=-1;
+			int bucket=center-d;
+			if(bucket>=0 && bucket<nFrames) {
+				p=nearestInBucket(bucket, x, firstFrame+bucket-t, bestD2);
+				if(p>=0) {
+					double dt=firstFrame+bucket-t;
+					double dx=frameX[p]-x;
+					bestD2=dt*dt+dx*dx;
+					best=frameTrack[p];
+				}
+			}
+			bucket=center+d;
+			if(d>0 && bucket>=0 && bucket<nFrames) {
+				p=nearestInBucket(bucket, x, firstFrame+bucket-t, bestD2);
+				if(p>=0) {
+					double dt=firstFrame+bucket-t;
+					double dx=frameX[p]-x;
+					bestD2=dt*dt+dx*dx;
+					best=frameTrack[p];
+				}
+			}
+		}
+
+		return best;
+	}
+
+	/**
+	 * Returns the first frame holding at least one point
+	 * @return the first frame holding at least one point
+	 */
+	public int getFirstFrame() {
+		return firstFrame;
+	}
+
+	/**
+	 * Returns the last frame holding at least one point
+	 * @return the last frame holding at least one point (firstFrame-1 if there is no point)
+	 */
+	public int getLastFrame() {
+		return firstFrame+frameOffsets.length-2;
+	}
+
+	/**
+	 * Looks in a frame bucket for the point closest to x, and keeps it only if it beats the current best distance
+	 * @param bucket the bucket index
+	 * @param x the space coordinate
+	 * @param dt time distance between the query and the bucket's frame
+	 * @param bestD2 current best squared distance
+	 * @return the index of the point in the frame arrays, or -1 if no point beats bestD2
+	 */
+	private int nearestInBucket(int bucket, double x, double dt, double bestD2) {
+		int lo=frameOffsets[bucket];
+		int hi=frameOffsets[bucket+1];
+		if(lo==hi) return -1;
+
+		int pos=Arrays.binarySearch(frameX, lo, hi, x);
+		if(pos<0) pos=-pos-1;
+
+		int out=-1;
+		double limit=bestD2;
+		for(int p=pos-1; p<=pos; p++) {
+			if(p<lo || p>=hi) continue;
+			double dx=frameX[p]-x;
+			double d2=dt*dt+dx*dx;
+			if(d2<limit) {
+				limit=d2;
+				out=p;
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Fills spanMaxEnd for the implicit tree built over the sorted spans: leaves are at even indexes,
+	 * the node of level k at index i has its children at i-2^(k-1) and i+2^(k-1)
+	 * @return the level of the root
+	 */
+	private int buildMaxEnd() {
+		int n=spanStart.length;
+		if(n==0) return 0;
+
+		int lastIndex=0;
+		int last=0;
+		for(int i=0; i<n; i+=2) {
+			lastIndex=i;
+			last=spanEnd[i];
+			spanMaxEnd[i]=last;
+		}
+
+		int k;
+		for(k=1; 1<<k<=n; k++) {
+			int half=1<<(k-1);
+			int step=half<<2;
+			for(int i=(half<<1)-1; i<n; i+=step) {
+				int endLeft=spanMaxEnd[i-half];
+				int endRight=i+half<n?spanMaxEnd[i+half]:last;
+				int e=spanEnd[i];
+				if(e<endLeft) e=endLeft;
+				if(e<endRight) e=endRight;
+				spanMaxEnd[i]=e;
+			}
+			lastIndex=((lastIndex>>k)&1)!=0?lastIndex-half:lastIndex+half;
+			if(lastIndex<n && spanMaxEnd[lastIndex]>last) last=spanMaxEnd[lastIndex];
+		}
+
+		return k-1;
+	}
+
+	/**
+	 * Sorts a frame bucket along x, keeping the track indexes aligned (insertion sort: buckets are small)
+	 * @param from first index of the bucket (included)
+	 * @param to last index of the bucket (excluded)
+	 */
+	private void sortBucket(int from, int to) {
+		for(int i=from+1; i<to; i++) {
+			double xi=frameX[i];
+			int ti=frameTrack[i];
+			int j=i-1;
+			while(j>=from && frameX[j]>xi) {
+				frameX[j+1]=frameX[j];
+				frameTrack[j+1]=frameTrack[j];
+				j--;
+			}
+			frameX[j+1]=xi;
+			frameTrack[j+1]=ti;
+		}
+	}
+
+	/**
+	 * Counts the values lower or equal to the input value in a sorted array
+	 * @param sorted the sorted array
+	 * @param value the value to compare to
+	 * @return the number of values lower or equal to value
+	 */
+	private static int countLessOrEqual(int[] sorted, int value) {
+		int lo=0;
+		int hi=sorted.length;
+		while(lo<hi) {
+			int mid=(lo+hi)>>>1;
+			if(sorted[mid]<=value) {
+				lo=mid+1;
+			}else {
+				hi=mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Converts a time coordinate to a frame index
+	 * @param t the time coordinate
+	 * @return the closest frame index
+	 */
+	private static int toFrame(double t) {
+		return (int) Math.rint(t);
+	}
+}
@@ -0,0 +1,188 @@
+/**
+*
+*  KymoButlerTracks.java, 18 oct. 2026
+*
+*  Compact, primitive storage of the tracks returned by KymoButler.
+*
+*/
+
+/*
+ * This file is part of KymoButler for ImageJ and is distributed
+ * under the terms of the GNU General Public License v3.0 or later.
+ */
+
+package KymoButler;
+
+import org.json.JSONArray;
+
+/**
+ * This class stores a set of tracks as flat coordinate arrays: the points of track i are stored
+ * from offsets[i] (included) to offsets[i+1] (excluded) in the t (time, row) and x (space, column) arrays.
+ * No object is allocated per point, which keeps large track sets cheap to hold and to scan.
+ *
+ */
+public class KymoButlerTracks {
+	/** Index of the first point of each track, followed by the total number of points **/
+	final int[] offsets;
+
+	/** Time coordinates (rows) of all points **/
+	final double[] t;
+
+	/** Space coordinates (columns) of all points **/
+	final double[] x;
+
+	/**
+	 * Builds a new track set from flat coordinate arrays
+	 * @param offsets index of the first point of each track, followed by the total number of points (length: nTracks+1)
+	 * @param t time coordinates of all points
+	 * @param x space coordinates of all points
+	 */
+	public KymoButlerTracks(int[] offsets, double[] t, double[] x) {
+		if(offsets==null || offsets.length==0 || t==null || x==null || t.length!=x.length || offsets[offsets.length-1]>t.length) {
+			throw new IllegalArgumentException("Inconsistent track arrays");
+		}
+		this.offsets=offsets;
+		this.t=t;
+		this.x=x;
+	}
+
+	/**
+	 * Builds a track set from the tracks field of a KymoButler response, each track being a list of {t, x} pairs
+	 * @param tracks the tracks, as a JSONArray
+	 * @return the tracks as a KymoButlerTracks object
+	 */
+	public static KymoButlerTracks fromJSON(JSONArray tracks) {
+		int nTracks=tracks.length();
+		int[] offsets=new int[nTracks+1];
+
+		for(int i=0; i<nTracks; i++) offsets[i+1]=offsets[i]+tracks.getJSONArray(i).length();
+
+		double[] t=new double[offsets[nTracks]];
+		double[] x=new double[offsets[nTracks]];
+
+		for(int i=0; i<nTracks; i++) {
+			JSONArray line=tracks.getJSONArray(i);
+			for(int j=0; j<line.length(); j++) {
+				JSONArray coord=line.getJSONArray(j);
+				t[offsets[i]+j]=coord.getDouble(0);
+				x[offsets[i]+j]=coord.getDouble(1);
+			}
+		}
+
+		return new KymoButlerTracks(offsets, t, x);
+	}
+
+	/**
+	 * Converts the tracks back to the JSON layout used by KymoButler (a list of {t, x} pairs per track)
+	 * @return the tracks as a JSONArray
+	 */
+	public JSONArray toJSON() {
+		JSONArray out=new JSONArray();
+
+		for(int i=0; i<getNTracks(); i++) {
+			JSONArray track=new JSONArray();
+			for(int j=offsets[i]; j<offsets[i+1]; j++) track.put(new JSONArray().put(t[j]).put(x[j]));
+			out.put(track);
+		}
+
+		return out;
+	}
+
+	/**
+	 * Returns the number of tracks
+	 * @return the number of tracks
+	 */
+	public int getNTracks() {
+		return offsets.length-1;
+	}
+
+	/**
+	 * Returns the total number of points, all tracks included
+	 * @return the total number of points
+	 */
+	public int getNPoints() {
+		return offsets[offsets.length-1];
+	}
+
+	/**
+	 * Returns the index of the first point of the track
+	 * @param track the track index
+	 * @return the index of the track's first point in the coordinate arrays
+	 */
+	public int getStart(int track) {
+		return offsets[track];
+	}
+
+	/**
+	 * Returns the index following the last point of the track
+	 * @param track the track index
+	 * @return the index following the track's last point in the coordinate arrays
+	 */
+	public int getEnd(int track) {
+		return offsets[track+1];
+	}
+
+	/**
+	 * Returns the time coordinate of a point
+	 * @param point the point index
+	 * @return the time coordinate (row) of the point
+	 */
+	public double getT(int point) {
+		return t[point];
+	}
+
+	/**
+	 * Returns the space coordinate of a point
+	 * @param point the point index
+	 * @return the space coordinate (column) of the point
+	 */
+	public double getX(int point) {
+		return x[point];
+	}
+
+	/**
+	 * Returns the backing offsets array: should not be modified
+	 * @return the offsets array (length: nTracks+1)
+	 */
+	public int[] getOffsets() {
+		return offsets;
+	}
+
+	/**
+	 * Returns the backing time coordinates array: should not be modified
+	 * @return the time coordinates of all points
+	 */
+	public double[] getTArray() {
+		return t;
+	}
+
+	/**
+	 * Returns the backing space coordinates array: should not be modified
+	 * @return the space coordinates of all points
+	 */
+	public double[] getXArray() {
+		return x;
+	}
+
+	/**
+	 * Returns the earliest time point of the track
+	 * @param track the track index
+	 * @return the smallest time coordinate of the track, NaN for an empty track
+	 */
+	public double getTMin(int track) {
+		double min=Double.NaN;
+		for(int j=offsets[track]; j<offsets[track+1]; j++) if(!(t[j]>=min)) min=t[j];
+		return min;
+	}
+
+	/**
+	 * Returns the latest time point of the track
+	 * @param track the track index
+	 * @return the largest time coordinate of the track, NaN for an empty track
+	 */
+	public double getTMax(int track) {
+		double max=Double.NaN;
+		for(int j=offsets[track]; j<offsets[track+1]; j++) if(!(t[j]<=max)) max=t[j];
+		return max;
+	}
+}
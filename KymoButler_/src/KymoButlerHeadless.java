@@ -0,0 +1,232 @@
+/**
+*
+*  KymoButlerHeadless.java, 18 oct. 2026
+*
+*  Command-line batch analysis, without display.
+*
+*/
+
+/*
+ * This file is part of KymoButler for ImageJ and is distributed
+ * under the terms of the GNU General Public License v3.0 or later.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONObject;
+
+import ij.IJ;
+import ij.Prefs;
+import ij.macro.Interpreter;
+
+/**
+ * This class runs a KymoButler batch from the command line, e.g. on cluster nodes without display:
+ * the images of a folder or of a list are analysed with the parameters of a JSON file, in the same format as
+ * the parameters saved by KymoButler Analyze, and the outputs are written in an output folder. The run ends
+ * with a JSON summary (kymobutler_run_summary.json in the output folder) and an exit status:
+ * 0 if all images were analysed (or skipped by the batch rules), 1 if some failed, 2 for invalid arguments,
+ * 3 if the run could not start.
+ *
+ * Usage: java -cp KymoButler.jar:ij.jar:json.jar:commons-io.jar KymoButlerHeadless
+ *        --input folder|list.txt|image --params params.json --output folder
+ *        [--kymobutler folder] [--wolframscript path] [--summary file.json]
+ *
+ */
+public class KymoButlerHeadless {
+	/** Exit status: all images analysed **/
+	public static final int EXIT_OK=0;
+
+	/** Exit status: some images failed **/
+	public static final int EXIT_FAILED=1;
+
+	/** Exit status: invalid arguments **/
+	public static final int EXIT_USAGE=2;
+
+	/** Exit status: the run could not start (no input image, output folder not writable...) **/
+	public static final int EXIT_ERROR=3;
+
+	/** Name of the run summary, in the output folder **/
+	public static final String SUMMARY_NAME="kymobutler_run_summary.json";
+
+	/** Command-line usage **/
+	static final String USAGE="Usage: KymoButlerHeadless --input <folder|list.txt|image> --params <params.json> --output <folder>\n"
+			+"                          [--kymobutler <KymoButler folder>] [--wolframscript <path>] [--summary <file.json>]\n"
+			+"  --input          folder of images (filtered as in KymoButler Analyze batches), text file listing one image per line, or image\n"
+			+"  --params         analysis parameters, as saved by KymoButler Analyze (parameters log or JSON)\n"
+			+"  --output         folder where outputs, journal and batch tables are written, in the input sub-folders\n"
+			+"  --kymobutler     folder of the local KymoButler installation (default: as set in KymoButler Options)\n"
+			+"  --wolframscript  path to wolframscript (default: as set in KymoButler Options)\n"
+			+"  --summary        path to the JSON run summary (default: <output>/"+SUMMARY_NAME+")";
+
+	/**
+	 * Runs the batch and exits with its status
+	 * @param args the command-line arguments
+	 */
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		System.exit(run(args));
+	}
+
+	/**
+	 * Runs the batch
+	 * @param args the command-line arguments
+	 * @return the exit status
+	 */
+	public static int run(String[] args) {
+		String input=null, params=null, output=null, kymoButlerPath=null, wolframScript=null, summaryPath=null;
+		for(int i=0; i<args.length; i++) {
+			String arg=args[i];
+			if(arg.equals("-h") || arg.equals("--help")) {
+				System.out.println(USAGE);
+				return EXIT_OK;
+			}
+			if(i+1>=args.length) return usage("Missing value for "+arg);
+			String value=args[++i];
+			if(arg.equals("--input")) {
+				input=value;
+			}else if(arg.equals("--params")) {
+				params=value;
+			}else if(arg.equals("--output")) {
+				output=value;
+			}else if(arg.equals("--kymobutler")) {
+				kymoButlerPath=value;
+			}else if(arg.equals("--wolframscript")) {
+				wolframScript=value;
+			}else if(arg.equals("--summary")) {
+				summaryPath=value;
+			}else {
+				return usage("Unknown argument "+arg);
+			}
+		}
+		if(input==null || params==null || output==null) return usage("--input, --params and --output are required");
+
+		Interpreter.batchMode=true;
+		loadPreferences();
+		if(kymoButlerPath!=null) Prefs.set("KymoButler_localPath.string", kymoButlerPath);
+		if(wolframScript!=null) Prefs.set("KymoButler_wolframscript.string", wolframScript);
+
+		File outputRoot=new File(output).getAbsoluteFile();
+		if(!outputRoot.isDirectory() && !outputRoot.mkdirs()) {
+			System.err.println("Unable to create the output folder "+outputRoot);
+			return EXIT_ERROR;
+		}
+		Prefs.set("KymoButler_outputDir.string", outputRoot.getAbsolutePath());
+
+		KymoButler_Analyze analyze=new KymoButler_Analyze();
+		analyze.headless=true;
+		if(!new File(params).isFile() || !analyze.loadParametersFromJson(params)) return usage("Unable to read the parameters file "+params);
+		analyze.batchMode=true;
+		analyze.batchWatch=false;
+		analyze.batchShowOutputs=false;
+		analyze.showKymo=false;
+		analyze.showOverlay=false;
+		analyze.openLocalTables=false;
+		analyze.addToManager=false;
+
+		File inputFile=new File(input).getAbsoluteFile();
+		List<File> files;
+		if(inputFile.isDirectory()) {
+			files=analyze.findBatchFiles(inputFile);
+			analyze.batchInputRoot=inputFile;
+		}else if(inputFile.isFile() && input.toLowerCase().endsWith(".txt")) {
+			files=readList(inputFile);
+			analyze.batchInputRoot=commonFolder(files);
+		}else if(inputFile.isFile()) {
+			files=new ArrayList<File>();
+			files.add(inputFile);
+			analyze.batchInputRoot=inputFile.getParentFile();
+		}else {
+			return usage("Input not found: "+input);
+		}
+		if(files==null || files.isEmpty()) {
+			System.err.println("No image to analyse in "+input);
+			return EXIT_ERROR;
+		}
+		analyze.batchOutputRoot=outputRoot;
+
+		JSONObject summary=analyze.runBatch(outputRoot, files);
+		int status=summary.getInt("failed")>0 || summary.optBoolean("interrupted")?EXIT_FAILED:EXIT_OK;
+		summary.put("exitStatus", status);
+		File summaryFile=summaryPath!=null?new File(summaryPath):new File(outputRoot, SUMMARY_NAME);
+		try {
+			FileUtils.writeStringToFile(summaryFile, summary.toString(2), "UTF-8");
+			IJ.log("[KymoButler] Run summary saved: "+summaryFile.getAbsolutePath());
+		} catch (IOException e) {
+			System.err.println("Unable to write the run summary to "+summaryFile+": "+e.getMessage());
+			return EXIT_ERROR;
+		}
+		IJ.log("[KymoButler] Run complete: "+summary.getInt("done")+" done, "+summary.getInt("failed")+" failed, "+summary.getInt("skipped")
+				+" skipped, "+summary.getInt("alreadyDone")+" already done");
+		return status;
+	}
+
+	/**
+	 * Prints an error and the usage
+	 * @param msg the error
+	 * @return EXIT_USAGE
+	 */
+	static int usage(String msg) {
+		System.err.println(msg);
+		System.err.println(USAGE);
+		return EXIT_USAGE;
+	}
+
+	/**
+	 * Loads the ImageJ preferences of the user (KymoButler Options), if any, without starting ImageJ
+	 */
+	static void loadPreferences() {
+		try {
+			Prefs.load(new KymoButlerHeadless(), null);
+		} catch (Exception e) {
+			IJ.log("[KymoButler] ImageJ preferences not loaded, using defaults: "+e);
+		}
+	}
+
+	/**
+	 * Reads a list of images, one path per line; empty lines and lines starting with # are ignored,
+	 * relative paths are relative to the list's folder
+	 * @param list the list file
+	 * @return the images, or null if the list could not be read
+	 */
+	static List<File> readList(File list) {
+		List<File> files=new ArrayList<File>();
+		try {
+			for(String line : Files.readAllLines(list.toPath(), StandardCharsets.UTF_8)) {
+				line=line.trim();
+				if(line.isEmpty() || line.startsWith("#")) continue;
+				File file=new File(line);
+				if(!file.isAbsolute()) file=new File(list.getParentFile(), line);
+				files.add(file.getAbsoluteFile());
+			}
+		} catch (IOException e) {
+			System.err.println("Unable to read "+list+": "+e.getMessage());
+			return null;
+		}
+		return files;
+	}
+
+	/**
+	 * Returns the deepest folder containing all the files of a list
+	 * @param files the files
+	 * @return the folder, or null if the files have no common folder
+	 */
+	static File commonFolder(List<File> files) {
+		File common=null;
+		if(files==null) return null;
+		for(File file : files) {
+			File parent=file.getParentFile();
+			if(common==null) {
+				common=parent;
+				continue;
+			}
+			while(common!=null && parent!=null && !parent.toPath().startsWith(common.toPath())) common=common.getParentFile();
+		}
+		return common;
+	}
+}
@@ -21,23 +21,41 @@
 *
 */
 
+import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.FileUtils;
 import org.json.JSONObject;
 
+import KymoButler.KymoButlerAnalysisRequest;
+import KymoButler.KymoButlerBatchJournal;
+import KymoButler.KymoButlerBatchPipeline;
+import KymoButler.KymoButlerBatchTables;
+import KymoButler.KymoButlerCostModel;
+import KymoButler.KymoButlerFileFinder;
+import KymoButler.KymoButlerFolderWatcher;
 import KymoButler.KymoButlerIO;
+import KymoButler.KymoButlerImageCache;
+import KymoButler.KymoButlerImageProbe;
+import KymoButler.KymoButlerLeaseManager;
+import KymoButler.KymoButlerMemoryGovernor;
 import KymoButler.KymoButlerResponseParser;
+import KymoButler.KymoButlerResultCache;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.Prefs;
 import ij.WindowManager;
 import ij.gui.NonBlockingGenericDialog;
+import ij.gui.WaitForUserDialog;
 import ij.measure.Calibration;
 import ij.measure.ResultsTable;
 import ij.io.DirectoryChooser;
+import ij.io.FileInfo;
 import ij.io.OpenDialog;
 import ij.plugin.PlugIn;
 
@@ -83,6 +101,21 @@ public class KymoButler_Analyze implements PlugIn{
 	/** Preferences: show outputs during batch **/
 	boolean batchShowOutputs=Prefs.get("KymoButler_batchShowOutputs.boolean", false);
 	
+	/** Preferences: resume the batch, skipping the images completed by previous runs **/
+	boolean batchResume=Prefs.get("KymoButler_batchResume.boolean", false);
+	
+	/** Preferences: watch the batch folder, analysing new images until stopped **/
+	boolean batchWatch=Prefs.get("KymoButler_batchWatch.boolean", false);
+	
+	/** Preferences: share the batch folder with other nodes, each analysing the images it claims **/
+	boolean batchDistributed=Prefs.get("KymoButler_batchDistributed.boolean", false);
+	
+	/** Preferences: extensions of the batch input files, comma-separated (empty for all files) **/
+	String batchExtensions=Prefs.get("KymoButler_batchExtensions.string", KymoButlerFileFinder.DEFAULT_EXTENSIONS);
+	
+	/** Preferences: glob pattern the names of the batch input files should match **/
+	String batchPattern=Prefs.get("KymoButler_batchPattern.string", "*");
+	
 	/** Preferences: Improve Kymo before analysis **/
 	boolean improveBeforeAnalysis=Prefs.get("KymoButler_improveBeforeAnalysis.boolean", false);
 	
@@ -92,6 +125,36 @@ public class KymoButler_Analyze implements PlugIn{
 	/** Preferences: Improve Kymo stop **/
 	int improveStop=(int) Prefs.get("KymoButler_improveStop.double", 15);
 	
+	/** Preferences: size of the Improve Kymo cache, in MB (0 to disable) **/
+	double improveCacheMB=Prefs.get("KymoButler_improveCacheMB.double", 512);
+	
+	/** Preferences: persist Improve Kymo results in a cache folder next to the outputs **/
+	boolean improveCacheOnDisk=Prefs.get("KymoButler_improveCacheOnDisk.boolean", false);
+	
+	/** Capacity of the queues between the batch stages: at most this number of images wait in front of each stage **/
+	static final int BATCH_QUEUE_CAPACITY=2;
+	
+	/** Estimates the analysis time of the batch images, for their order and the remaining time **/
+	final KymoButlerCostModel costModel=new KymoButlerCostModel();
+	
+	/** Keeps the memory used by the batch images in flight under a share of the maximum heap **/
+	final KymoButlerMemoryGovernor memoryGovernor=KymoButlerMemoryGovernor.ofMaxHeap(Prefs.get("KymoButler_batchMemoryShare.double", 50)/100);
+	
+	/** Status of the images of the current batch, for the run summary **/
+	final java.util.List<JSONObject> batchRecords=java.util.Collections.synchronizedList(new java.util.ArrayList<JSONObject>());
+	
+	/** True when run from the command line: no dialog, outputs only written to disk **/
+	boolean headless=false;
+	
+	/** Root of the input images in a headless run, their outputs being written in the same sub-folders of batchOutputRoot (null otherwise) **/
+	File batchInputRoot=null;
+	
+	/** Root of the outputs in a headless run, null to write the outputs next to the images **/
+	File batchOutputRoot=null;
+	
+	/** Improve Kymo results, shared by all runs of the plugin **/
+	static final KymoButlerImageCache improveCache=new KymoButlerImageCache(0);
+	
 	/** Preferences: addToManager **/
 	boolean addToManager=Prefs.get("KymoButler_addToManager.boolean", true);
 	
@@ -171,6 +234,11 @@ public class KymoButler_Analyze implements PlugIn{
 		gd.addCheckbox("Batch_mode (folder)", batchMode);
 		gd.addCheckbox("Batch_include_subfolders", batchRecursive);
 		gd.addCheckbox("Batch_show_outputs", batchShowOutputs);
+		gd.addCheckbox("Batch_resume (skip completed images)", batchResume);
+		gd.addCheckbox("Batch_watch_folder (analyse new images until stopped)", batchWatch);
+		gd.addCheckbox("Batch_distributed (share the folder with other nodes)", batchDistributed);
+		gd.addStringField("Batch_extensions", batchExtensions, 20);
+		gd.addStringField("Batch_file_pattern", batchPattern, 20);
 		gd.addCheckbox("Improve_kymo_before_analysis", improveBeforeAnalysis);
 		gd.addNumericField("Improve_start", improveStart, 0);
 		gd.addNumericField("Improve_stop", improveStop, 0);
@@ -208,6 +276,11 @@ public class KymoButler_Analyze implements PlugIn{
 			batchMode=gd.getNextBoolean();
 			batchRecursive=gd.getNextBoolean();
 			batchShowOutputs=gd.getNextBoolean();
+			batchResume=gd.getNextBoolean();
+			batchWatch=gd.getNextBoolean();
+			batchDistributed=gd.getNextBoolean();
+			batchExtensions=gd.getNextString();
+			batchPattern=gd.getNextString();
 			improveBeforeAnalysis=gd.getNextBoolean();
 			improveStart=(int) gd.getNextNumber();
 			improveStop=(int) gd.getNextNumber();
@@ -248,6 +321,11 @@ public class KymoButler_Analyze implements PlugIn{
 		Prefs.set("KymoButler_batchMode.boolean", batchMode);
 		Prefs.set("KymoButler_batchRecursive.boolean", batchRecursive);
 		Prefs.set("KymoButler_batchShowOutputs.boolean", batchShowOutputs);
+		Prefs.set("KymoButler_batchResume.boolean", batchResume);
+		Prefs.set("KymoButler_batchWatch.boolean", batchWatch);
+		Prefs.set("KymoButler_batchDistributed.boolean", batchDistributed);
+		Prefs.set("KymoButler_batchExtensions.string", batchExtensions==null?"":batchExtensions);
+		Prefs.set("KymoButler_batchPattern.string", batchPattern==null?"":batchPattern);
 		Prefs.set("KymoButler_improveBeforeAnalysis.boolean", improveBeforeAnalysis);
 		Prefs.set("KymoButler_improveStart.double", improveStart);
 		Prefs.set("KymoButler_improveStop.double", improveStop);
@@ -260,92 +338,189 @@ public class KymoButler_Analyze implements PlugIn{
 	 */
 	public void runAnalysis() {
 		if(showKymo || showOverlay || addToManager) {
-			long analysisStart=System.currentTimeMillis();
-			IJ.log("[KymoButler] Analysis started");
-			Calibration cal=ip.getCalibration();
+			AnalysisItem item=new AnalysisItem(null, kbio);
+			item.image=ip;
+			prepareImage(item);
+			runInference(item);
+			renderOutputs(item);
+		}else {
+			IJ.showStatus("Nothing to do, please check at least one option");
+		}
+	}
+	
+	/**
+	 * Analysis step 1: applies Improve Kymo to the item's image, if requested (the result may come from the cache)
+	 * @param item the item to analyse, its image being set
+	 */
+	void prepareImage(AnalysisItem item) {
+		item.start=System.currentTimeMillis();
+		IJ.log("[KymoButler] Analysis started");
+		ImagePlus image=item.image;
+		
+		item.analysisImage=image;
+		if(improveBeforeAnalysis) {
+			long t0=System.currentTimeMillis();
+			IJ.log("[KymoButler] Step: Improve Kymo");
+			improveCache.setMaxBytes((long) (improveCacheMB*1024*1024));
+			String key=KymoButlerImageCache.contentKey(image)+"_"+KymoButler_ImproveKymo.describe(improveStart, improveStop, image.getWidth(), image.getHeight());
+			File cacheDir=improveCacheOnDisk?getCacheDir(image):null;
+			ImageStack cached=improveCache.get(key, cacheDir);
 			
-			ImagePlus analysisImage=ip;
-			if(improveBeforeAnalysis) {
-				long t0=System.currentTimeMillis();
-				IJ.log("[KymoButler] Step: Improve Kymo");
-				analysisImage=ip.duplicate();
-				analysisImage.setTitle(ip.getTitle());
-				if(ip.getOriginalFileInfo()!=null) analysisImage.setFileInfo(ip.getOriginalFileInfo());
+			ImagePlus analysisImage;
+			if(cached!=null) {
+				analysisImage=new ImagePlus(image.getTitle(), cached);
+				analysisImage.setCalibration(image.getCalibration());
+				IJ.log("[KymoButler] Improve Kymo result found in cache");
+			}else {
+				analysisImage=image.duplicate();
+				analysisImage.setTitle(image.getTitle());
 				KymoButler_ImproveKymo.apply(analysisImage, improveStart, improveStop);
-				IJ.log("[KymoButler] Step complete: Improve Kymo ("+elapsedMs(t0)+" ms)");
+				improveCache.put(key, analysisImage.getStack().duplicate(), cacheDir);
 			}
-			
-			long t1=System.currentTimeMillis();
-			IJ.log("[KymoButler] Step: Prepare input");
-			kbio.setKymograph(analysisImage);
-			kbio.setThreshold(p);
-			kbio.setMinimumSize(minimumSize);
-			kbio.setMinimumFrames(minimumFrames);
-			IJ.log("[KymoButler] Step complete: Prepare input ("+elapsedMs(t1)+" ms)");
-			
-			long t2=System.currentTimeMillis();
-			IJ.log("[KymoButler] Step: Run local analysis");
-			String response=kbio.getAnalysisResults();
-			IJ.log("[KymoButler] Step complete: Run local analysis ("+elapsedMs(t2)+" ms)");
-			
-			if(response==null) {
-				IJ.showStatus("Process cancelled, either by server or by user");
-			}else {
-				if(KymoButlerResponseParser.isJSON(response)){
-					long t3=System.currentTimeMillis();
-					IJ.log("[KymoButler] Step: Parse response");
-					KymoButlerResponseParser pkr=new KymoButlerResponseParser(response);
+			if(image.getOriginalFileInfo()!=null) analysisImage.setFileInfo(image.getOriginalFileInfo());
+			item.analysisImage=analysisImage;
+			IJ.log("[KymoButler] Step complete: Improve Kymo ("+elapsedMs(t0)+" ms)");
+		}
+	}
+	
+	/**
+	 * Analysis step 2: sends the prepared image to KymoButler and waits for its response
+	 * @param item the item to analyse, its image being prepared
+	 */
+	void runInference(AnalysisItem item) {
+		KymoButlerIO io=item.io;
+		
+		long t1=System.currentTimeMillis();
+		IJ.log("[KymoButler] Step: Prepare input");
+		io.setKymograph(item.analysisImage);
+		io.setThreshold(p);
+		io.setMinimumSize(minimumSize);
+		io.setMinimumFrames(minimumFrames);
+		IJ.log("[KymoButler] Step complete: Prepare input ("+elapsedMs(t1)+" ms)");
+		
+		long t2=System.currentTimeMillis();
+		IJ.log("[KymoButler] Step: Run local analysis");
+		item.response=io.getAnalysisResults();
+		IJ.log("[KymoButler] Step complete: Run local analysis ("+elapsedMs(t2)+" ms)");
+	}
+	
+	/**
+	 * Analysis step 3: parses the response, saves the tables and displays the requested outputs
+	 * @param item the analysed item
+	 * @return true if KymoButler returned tracks, false if the analysis was cancelled or failed
+	 */
+	boolean renderOutputs(AnalysisItem item) {
+		KymoButlerIO io=item.io;
+		boolean success=false;
+		String response=item.response;
+		Calibration cal=item.image.getCalibration();
+		
+		if(response==null) {
+			IJ.showStatus("Process cancelled, either by server or by user");
+		}else {
+			if(KymoButlerResponseParser.isJSON(response)){
+				long t3=System.currentTimeMillis();
+				IJ.log("[KymoButler] Step: Parse response");
+				KymoButlerResponseParser pkr=new KymoButlerResponseParser(response);
 
-					/** Check if KB returns an error before running parsing*/
-					if(pkr.hasError()){
-						if(pkr.hasMessages()){ 
-							IJ.log(pkr.getMessages());
-							IJ.showMessage("KymoButler", pkr.getMessages());
-						}else{
-							IJ.log("Undefined Error!");	
-							IJ.showMessage("KymoButler", "Undefined error while parsing local response.");
-						}		
-					}else{	
-						long outStep=System.currentTimeMillis();
-						if(addToManager) pkr.pushRoisToRoiManager(simplifyTracks, clearManager);
-						if(showKymo) pkr.showKymograph(cal);
-						if(showOverlay) pkr.showOverlay(cal);
+				/** Check if KB returns an error before running parsing*/
+				if(pkr.hasError()){
+					if(pkr.hasMessages()){ 
+						IJ.log(pkr.getMessages());
+						IJ.showMessage("KymoButler", pkr.getMessages());
+					}else{
+						IJ.log("Undefined Error!");	
+						IJ.showMessage("KymoButler", "Undefined error while parsing local response.");
+					}		
+				}else{	
+					success=true;
+					long outStep=System.currentTimeMillis();
+					String segmentsPath=io.saveSegmentsTable(pkr.getTrackData());
+					if(segmentsPath!=null) IJ.log("[KymoButler] Segments table saved: "+segmentsPath);
+					if(addToManager) pkr.pushRoisToRoiManager(simplifyTracks, clearManager);
+					if(showKymo) pkr.showKymograph(cal);
+					if(showOverlay) pkr.showOverlay(cal);
 
-						if(addToManager && allowCorrections) {
-							IJ.showStatus("Local mode: corrections upload is not available.");
-						}
-						IJ.log("[KymoButler] Step complete: Render outputs ("+elapsedMs(outStep)+" ms)");
-					
-					
-						if(debug && pkr.hasSomethingToLog()) IJ.log(pkr.getSomethingToLog());
+					if(addToManager && allowCorrections) {
+						IJ.showStatus("Local mode: corrections upload is not available.");
 					}
-					IJ.log("[KymoButler] Step complete: Parse response ("+elapsedMs(t3)+" ms)");
-				}else {
-					IJ.log("The response doesn't seem to be properly formatted");
-					IJ.showMessage("KymoButler", "Invalid JSON response: unable to parse local output.");
+					IJ.log("[KymoButler] Step complete: Render outputs ("+elapsedMs(outStep)+" ms)");
+				
+				
+					if(debug && pkr.hasSomethingToLog()) IJ.log(pkr.getSomethingToLog());
 				}
+				IJ.log("[KymoButler] Step complete: Parse response ("+elapsedMs(t3)+" ms)");
+			}else {
+				IJ.log("The response doesn't seem to be properly formatted");
+				IJ.showMessage("KymoButler", "Invalid JSON response: unable to parse local output.");
 			}
-			
-			if(debug) kbio.saveResults(response, IJ.getDirectory("imageJ")+(new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date()))+"_debug_KymoButler.json");			
-			if(kbio.isLocalMode() && kbio.getLastOutputDir()!=null) {
-				IJ.log("Local outputs saved to: "+kbio.getLastOutputDir());
-				saveParameterLog(kbio.getLastOutputDir(), analysisStart, System.currentTimeMillis());
-				if(openLocalTables) openLocalTables();
-			}
-			
-			if(analysisImage!=ip) analysisImage.close();
-			IJ.log("[KymoButler] Analysis finished ("+elapsedMs(analysisStart)+" ms)");
-		}else {
-			IJ.showStatus("Nothing to do, please check at least one option");
+		}
+		
+		if(debug) io.saveResults(response, IJ.getDirectory("imageJ")+(new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date()))+"_debug_KymoButler.json");			
+		if(io.isLocalMode() && io.getLastOutputDir()!=null) {
+			IJ.log("Local outputs saved to: "+io.getLastOutputDir());
+			saveParameterLog(io.getLastOutputDir(), item.start, System.currentTimeMillis(), item.image.getTitle());
+			if(openLocalTables) openLocalTables(io);
+		}
+		
+		if(item.analysisImage!=item.image) item.analysisImage.close();
+		IJ.log("[KymoButler] Analysis finished ("+elapsedMs(item.start)+" ms)");
+		return success;
+	}
+	
+	/**
+	 * An image going through the analysis steps, with what each step hands over to the next one
+	 */
+	static class AnalysisItem {
+		/** Source file, in batch mode (null otherwise) **/
+		final File file;
+		
+		/** KymoButlerIO object running the analysis of this item **/
+		final KymoButlerIO io;
+		
+		/** Dimensions read from the file header, in batch mode (null if unknown) **/
+		KymoButlerImageProbe.Info info=null;
+		
+		/** The image to analyse **/
+		ImagePlus image=null;
+		
+		/** The image sent to KymoButler: the image itself, or its Improve Kymo version **/
+		ImagePlus analysisImage=null;
+		
+		/** KymoButler response, null if the analysis failed **/
+		String response=null;
+		
+		/** Memory reserved for this item by the batch memory governor, in bytes **/
+		long reservedBytes=0;
+		
+		/** Start of the analysis, in ms **/
+		long start=System.currentTimeMillis();
+		
+		/**
+		 * Builds a new item
+		 * @param file the source file, or null
+		 * @param io the KymoButlerIO object running the analysis
+		 */
+		AnalysisItem(File file, KymoButlerIO io) {
+			this.file=file;
+			this.io=io;
+		}
+		
+		@Override
+		public String toString() {
+			if(file!=null) return file.getAbsolutePath();
+			return image!=null?image.getTitle():"kymograph";
 		}
 	}
 	
-	private void openLocalTables() {
-		String tracksPath=kbio.getLastTracksCsvPath();
-		String pprocPath=kbio.getLastPprocTablePath();
+	private void openLocalTables(KymoButlerIO io) {
+		String tracksPath=io.getLastTracksCsvPath();
+		String pprocPath=io.getLastPprocTablePath();
+		String segmentsPath=io.getLastSegmentsTablePath();
 		
 		openResultsTable(tracksPath, "KymoButler Tracks");
 		openResultsTable(pprocPath, "KymoButler PProc");
+		if(segmentsPath!=null && new java.io.File(segmentsPath).exists()) openResultsTable(segmentsPath, "KymoButler Segments");
 	}
 	
 	private void openResultsTable(String path, String title) {
@@ -359,20 +534,104 @@ public class KymoButler_Analyze implements PlugIn{
 	}
 	
 	private void runBatch() {
-		long batchStart=System.currentTimeMillis();
 		DirectoryChooser dc=new DirectoryChooser("Select folder with images");
 		String folder=dc.getDirectory();
 		if(folder==null) return;
 		
-		java.util.List<java.io.File> files=new java.util.ArrayList<java.io.File>();
-		collectFiles(new java.io.File(folder), batchRecursive, files);
+		if(batchWatch) {
+			watchFolder(new File(folder));
+			return;
+		}
 		
-		if(files.isEmpty()) {
-			IJ.showMessage("Batch mode", "No files found in:\n"+folder);
+		java.util.List<java.io.File> files=findBatchFiles(new File(folder));
+		if(files==null) return;
+		
+		if(!(addToManager || (batchShowOutputs && (showKymo || showOverlay)))) {
+			IJ.showStatus("Nothing to do, please check at least one option");
 			return;
 		}
 		
-		IJ.showStatus("Batch started: "+files.size()+" image(s)");
+		runBatch(new File(folder), files);
+	}
+	
+	/**
+	 * Lists the files of a batch folder matching the batch filters
+	 * @param folder the batch folder
+	 * @return the files, or null if the pattern is invalid or no file was found (the user being told)
+	 */
+	java.util.List<java.io.File> findBatchFiles(File folder) {
+		long t0=System.currentTimeMillis();
+		java.util.List<java.io.File> files;
+		try {
+			files=new KymoButlerFileFinder(batchRecursive, batchExtensions, batchPattern).find(folder);
+		} catch (IllegalArgumentException e) {
+			showBatchMessage("Invalid file pattern:\n"+batchPattern);
+			return null;
+		}
+		IJ.log("[KymoButler] Batch files found: "+files.size()+" ("+elapsedMs(t0)+" ms)");
+		
+		if(files.isEmpty()) {
+			showBatchMessage("No files found in:\n"+folder.getAbsolutePath());
+			return null;
+		}
+		return files;
+	}
+	
+	/**
+	 * Analyses a list of batch files: journal, batch rules, pipeline and batch tables
+	 * @param root the batch root folder, where the journal and batch tables are written
+	 * @param files the files to analyse
+	 * @return a summary of the run: number of images done, failed, skipped and already done, status of each image, output files
+	 */
+	JSONObject runBatch(File root, java.util.List<java.io.File> files) {
+		long batchStart=System.currentTimeMillis();
+		batchRecords.clear();
+		JSONObject parameters=getAnalysisParameters();
+		JSONObject summary=new JSONObject();
+		summary.put("root", root.getAbsolutePath());
+		summary.put("node", KymoButlerLeaseManager.NODE_ID);
+		summary.put("started", new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(new Date(batchStart)));
+		summary.put("parameters", parameters);
+		summary.put("files", files.size());
+		
+		KymoButlerBatchJournal journal=openJournal(root, parameters);
+		files.remove(journal.getFile());
+		summary.put("journal", journal.getFile().getAbsolutePath());
+		KymoButlerLeaseManager leases=null;
+		int nAlreadyDone=0;
+		if(batchDistributed) {
+			leases=new KymoButlerLeaseManager(root, KymoButlerBatchJournal.fingerprint(parameters), (long) (Prefs.get("KymoButler_leaseExpirySeconds.double", 300)*1000));
+			IJ.log("[KymoButler] Distributed batch, node "+KymoButlerLeaseManager.NODE_ID);
+		}else if(batchResume) {
+			int nFound=files.size();
+			int nRetried=0;
+			for(java.util.Iterator<java.io.File> it=files.iterator(); it.hasNext(); ) {
+				java.io.File file=it.next();
+				if(journal.isDone(file)) {
+					it.remove();
+				}else if(journal.getPreviousStatus(file)!=null) {
+					nRetried++;
+				}
+			}
+			nAlreadyDone=nFound-files.size();
+			IJ.log("[KymoButler] Batch resumed: "+nAlreadyDone+" image(s) already done, "+nRetried+" retried, "+(files.size()-nRetried)+" new");
+			if(files.isEmpty()) {
+				journal.close();
+				showBatchMessage("All images were already analysed with these parameters in:\n"+root.getAbsolutePath());
+				return completeSummary(summary, nAlreadyDone, batchStart);
+			}
+		}
+		journal.startBatch(parameters, files.size(), batchResume || batchDistributed);
+		
+		java.util.List<AnalysisItem> items=probeBatchItems(files, journal);
+		if(items.isEmpty()) {
+			journal.close();
+			if(leases!=null) leases.close();
+			showBatchMessage("No image matches the batch rules (see Options) in:\n"+root.getAbsolutePath());
+			return completeSummary(summary, nAlreadyDone, batchStart);
+		}
+		
+		IJ.showStatus("Batch started: "+items.size()+" image(s)");
 		IJ.showProgress(0);
 		
 		boolean origShowKymo=showKymo;
@@ -385,30 +644,438 @@ public class KymoButler_Analyze implements PlugIn{
 			openLocalTables=false;
 		}
 		
-		for(int i=0; i<files.size(); i++) {
-			java.io.File file=files.get(i);
-			long fileStart=System.currentTimeMillis();
-			IJ.showStatus("Batch "+(i+1)+"/"+files.size()+": "+file.getName());
-			IJ.showProgress(i, files.size());
-			ImagePlus img=IJ.openImage(file.getAbsolutePath());
-			if(img==null) {
-				IJ.log("Batch skipped (unsupported format): "+file.getAbsolutePath());
-				continue;
+		KymoButlerBatchTables tables=openTables(root, batchResume?journal.getDoneOutputs():null);
+		AtomicInteger total=new AtomicInteger(items.size());
+		for(AnalysisItem item : items) costModel.submitted(item, item.info);
+		KymoButlerBatchPipeline<AnalysisItem> pipeline=createBatchPipeline(total, journal, tables, leases);
+		pipeline.start();
+		try {
+			if(leases==null) {
+				for(AnalysisItem item : items) pipeline.submit(item);
+			}else {
+				submitLeased(items, pipeline, leases, total);
 			}
-			
-			ip=img;
-			runAnalysis();
-			img.close();
-			IJ.log("[KymoButler] Batch item done: "+file.getName()+" ("+elapsedMs(fileStart)+" ms)");
+			pipeline.close();
+		} catch (InterruptedException e) {
+			IJ.log("[KymoButler] Batch interrupted");
+			summary.put("interrupted", true);
+			Thread.currentThread().interrupt();
 		}
+		journal.close();
+		tables.close();
+		if(leases!=null) leases.close();
 		
 		showKymo=origShowKymo;
 		showOverlay=origShowOverlay;
 		openLocalTables=origOpenTables;
 		
 		IJ.showProgress(1);
-		IJ.showStatus("Batch complete: "+files.size()+" image(s)");
+		IJ.showStatus("Batch complete: "+total.get()+" image(s)");
+		IJ.log("[KymoButler] Batch pipeline utilisation:\n"+pipeline.getReport());
+		IJ.log("[KymoButler] Batch memory: "+memoryGovernor.getReport());
+		IJ.log("[KymoButler] Batch tables: "+tables.getDuration().getN()+" track(s), mean velocity "+IJ.d2s(tables.getVelocity().getMean(), 3)
+				+", mean duration "+IJ.d2s(tables.getDuration().getMean(), 3)+", mean distance "+IJ.d2s(tables.getDistance().getMean(), 3)
+				+" (see "+tables.getFile(KymoButlerBatchTables.SUMMARY_NAME).getName()+")");
 		IJ.log("[KymoButler] Batch complete ("+elapsedMs(batchStart)+" ms)");
+		
+		JSONObject tablesPaths=new JSONObject();
+		tablesPaths.put("tracks", tables.getFile(KymoButlerBatchTables.TRACKS_NAME).getAbsolutePath());
+		tablesPaths.put("pproc", tables.getFile(KymoButlerBatchTables.PPROC_NAME).getAbsolutePath());
+		tablesPaths.put("summary", tables.getFile(KymoButlerBatchTables.SUMMARY_NAME).getAbsolutePath());
+		summary.put("tables", tablesPaths);
+		summary.put("tracks", tables.getDuration().getN());
+		summary.put("memory", memoryGovernor.getReport());
+		return completeSummary(summary, nAlreadyDone, batchStart);
+	}
+	
+	/**
+	 * Adds the status of each image and their counts to a batch run summary
+	 * @param summary the summary
+	 * @param nAlreadyDone the number of images skipped as done by previous runs
+	 * @param batchStart start of the batch, in ms
+	 * @return the summary
+	 */
+	private JSONObject completeSummary(JSONObject summary, int nAlreadyDone, long batchStart) {
+		int nDone=0, nFailed=0, nSkipped=0;
+		org.json.JSONArray records=new org.json.JSONArray();
+		synchronized(batchRecords) {
+			for(JSONObject record : batchRecords) {
+				String status=record.getString("status");
+				if(status.equals(KymoButlerBatchJournal.DONE)) nDone++;
+				if(status.equals(KymoButlerBatchJournal.FAILED)) nFailed++;
+				if(status.equals(KymoButlerBatchJournal.SKIPPED)) nSkipped++;
+				records.put(record);
+			}
+		}
+		summary.put("done", nDone);
+		summary.put("failed", nFailed);
+		summary.put("skipped", nSkipped);
+		summary.put("alreadyDone", nAlreadyDone);
+		summary.put("elapsedMs", System.currentTimeMillis()-batchStart);
+		summary.put("items", records);
+		return summary;
+	}
+	
+	/**
+	 * Records the status of a batch image in the journal and in the run summary
+	 * @param journal the batch journal
+	 * @param file the image's file
+	 * @param status the status, one of the KymoButlerBatchJournal statuses
+	 * @param outputDir the image's session folder, may be null
+	 * @param message a message explaining the status, may be null
+	 */
+	private void recordStatus(KymoButlerBatchJournal journal, File file, String status, String outputDir, String message) {
+		journal.record(file, status, outputDir, message);
+		JSONObject record=new JSONObject();
+		record.put("file", file.getAbsolutePath());
+		record.put("status", status);
+		if(outputDir!=null) record.put("outputDir", outputDir);
+		if(message!=null) record.put("message", message);
+		batchRecords.add(record);
+	}
+	
+	/**
+	 * Tells the user about a batch that cannot go on: in a dialog, or in the log when running headless
+	 * @param msg the message
+	 */
+	private void showBatchMessage(String msg) {
+		if(headless) {
+			IJ.log("[KymoButler] "+msg.replace("\n", " "));
+		}else {
+			IJ.showMessage("Batch mode", msg);
+		}
+	}
+	
+	/**
+	 * Watches a folder and analyses its images, present at start or new, once they are completely written, until the
+	 * user stops watching. Images go through the batch rules, journal, pipeline and tables, as in a resumed batch run:
+	 * images already done with the same parameters are not analysed again
+	 * @param folder the folder to watch
+	 */
+	private void watchFolder(final File folder) {
+		long batchStart=System.currentTimeMillis();
+		if(!(addToManager || (batchShowOutputs && (showKymo || showOverlay)))) {
+			IJ.showStatus("Nothing to do, please check at least one option");
+			return;
+		}
+		
+		final KymoButlerFileFinder finder;
+		try {
+			finder=new KymoButlerFileFinder(batchRecursive, batchExtensions, batchPattern);
+		} catch (IllegalArgumentException e) {
+			IJ.showMessage("Batch mode", "Invalid file pattern:\n"+batchPattern);
+			return;
+		}
+		
+		boolean origShowKymo=showKymo;
+		boolean origShowOverlay=showOverlay;
+		boolean origOpenTables=openLocalTables;
+		
+		if(!batchShowOutputs) {
+			showKymo=false;
+			showOverlay=false;
+			openLocalTables=false;
+		}
+		
+		JSONObject parameters=getAnalysisParameters();
+		final KymoButlerBatchJournal journal=openJournal(folder, parameters);
+		journal.startBatch(parameters, 0, true);
+		KymoButlerBatchTables tables=openTables(folder, journal.getDoneOutputs());
+		final KymoButlerLeaseManager leases=batchDistributed?new KymoButlerLeaseManager(folder, KymoButlerBatchJournal.fingerprint(parameters),
+				(long) (Prefs.get("KymoButler_leaseExpirySeconds.double", 300)*1000)):null;
+		final AtomicInteger total=new AtomicInteger();
+		final KymoButlerBatchPipeline<AnalysisItem> pipeline=createBatchPipeline(total, journal, tables, leases);
+		pipeline.start();
+		
+		long stableMs=(long) (Prefs.get("KymoButler_watchStableSeconds.double", 2)*1000);
+		KymoButlerFolderWatcher watcher=new KymoButlerFolderWatcher(folder, finder, stableMs, new KymoButlerFolderWatcher.Listener() {
+			@Override
+			public void fileReady(File file) throws InterruptedException {
+				if(journal.isDone(file) || (leases!=null && (leases.isDone(file) || !leases.tryAcquire(file)))) return;
+				IJ.log("[KymoButler] Watch: image queued "+file.getAbsolutePath());
+				java.util.List<AnalysisItem> items=probeBatchItems(java.util.Collections.singletonList(file), journal);
+				if(items.isEmpty() && leases!=null) leases.release(file, false);
+				for(AnalysisItem item : items) {
+					total.incrementAndGet();
+					costModel.submitted(item, item.info);
+					pipeline.submit(item);
+				}
+			}
+		});
+		
+		try {
+			watcher.start();
+			IJ.log("[KymoButler] Watching "+folder.getAbsolutePath()+" (files stable for "+stableMs+" ms are analysed)");
+			IJ.showStatus("Watching "+folder.getName()+" for images");
+			new WaitForUserDialog("KymoButler watch folder", "Watching for new images in:\n"+folder.getAbsolutePath()
+					+"\n \nClick OK to stop watching (images already queued are still analysed).").show();
+		} catch (IOException e) {
+			IJ.log("[KymoButler] Unable to watch "+folder.getAbsolutePath()+": "+e.getMessage());
+		}
+		watcher.stop();
+		
+		try {
+			pipeline.close();
+		} catch (InterruptedException e) {
+			IJ.log("[KymoButler] Batch interrupted");
+			Thread.currentThread().interrupt();
+		}
+		journal.close();
+		tables.close();
+		if(leases!=null) leases.close();
+		
+		showKymo=origShowKymo;
+		showOverlay=origShowOverlay;
+		openLocalTables=origOpenTables;
+		
+		IJ.showProgress(1);
+		IJ.showStatus("Watch stopped: "+total.get()+" image(s) analysed");
+		IJ.log("[KymoButler] Batch pipeline utilisation:\n"+pipeline.getReport());
+		IJ.log("[KymoButler] Batch memory: "+memoryGovernor.getReport());
+		IJ.log("[KymoButler] Watch stopped: "+total.get()+" image(s) analysed ("+elapsedMs(batchStart)+" ms)");
+	}
+	
+	/**
+	 * Reads the dimensions of the batch files from their headers, skips the images rejected by the batch rules
+	 * set in the options, then sorts the others in the requested order. Files whose header could not be read
+	 * are kept, last, for ImageJ to try opening them
+	 * @param files the batch files
+	 * @param journal the batch journal, where skipped images are recorded
+	 * @return the items to analyse
+	 */
+	private java.util.List<AnalysisItem> probeBatchItems(java.util.List<File> files, KymoButlerBatchJournal journal) {
+		long t0=System.currentTimeMillis();
+		KymoButlerImageProbe.Rules rules=new KymoButlerImageProbe.Rules((int) Prefs.get("KymoButler_batchMinWidth.double", 0),
+				(int) Prefs.get("KymoButler_batchMinHeight.double", 0), Prefs.get("KymoButler_batchMaxMegapixels.double", 0),
+				Prefs.get("KymoButler_batchOnly2D.boolean", false));
+		String order=Prefs.get("KymoButler_batchOrder.string", "Longest first");
+		
+		KymoButlerImageProbe.Info[] infos=KymoButlerImageProbe.probeAll(files);
+		java.util.List<AnalysisItem> items=new java.util.ArrayList<AnalysisItem>();
+		for(int i=0; i<files.size(); i++) {
+			File file=files.get(i);
+			if(infos[i]!=null) {
+				String reason=rules.reject(infos[i]);
+				if(reason!=null) {
+					IJ.log("Batch skipped ("+reason+"): "+file.getAbsolutePath());
+					recordStatus(journal, file, KymoButlerBatchJournal.SKIPPED, null, reason);
+					continue;
+				}
+			}
+			AnalysisItem item=new AnalysisItem(file, new KymoButlerIO());
+			if(batchOutputRoot!=null) item.io.setOutputDir(getOutputDir(file).getAbsolutePath());
+			item.info=infos[i];
+			items.add(item);
+		}
+		
+		if(!order.equals("Name")) {
+			//Longest first by default. Each pipeline stage has a single worker, so within one ImageJ the order balances nothing;
+			//it balances the nodes of a distributed batch, which claim images in this order, so that no node is left alone
+			//with a long image at the end. The fitted cost model never decreases with the work, so it would give the same order:
+			//the measured throughput only feeds the ETA
+			final int sign=order.equals("Shortest first") || order.equals("Smallest first")?1:-1;
+			java.util.Collections.sort(items, new java.util.Comparator<AnalysisItem>() {
+				@Override
+				public int compare(AnalysisItem a, AnalysisItem b) {
+					if(a.info==null || b.info==null) return a.info==null?(b.info==null?0:1):-1;
+					return sign*Double.compare(KymoButlerCostModel.getWork(a.info), KymoButlerCostModel.getWork(b.info));
+				}
+			});
+		}
+		IJ.log("[KymoButler] Batch files probed: "+items.size()+" accepted, "+(files.size()-items.size())+" skipped ("+elapsedMs(t0)+" ms)");
+		return items;
+	}
+	
+	/**
+	 * Builds the batch pipeline: decoding and Improve Kymo, then inference, then outputs, each stage having its own thread.
+	 * While KymoButler analyses an image, the next one is being prepared and the previous one's outputs are being written
+	 * @param total the number of items submitted to the batch, for the progress bar
+	 * @param journal the batch journal, where the status of each item is recorded
+	 * @param tables the batch tables, where the tables of each analysed item are gathered
+	 * @param leases the leases of a distributed batch, released as items end, null otherwise
+	 * @return the pipeline, not started
+	 */
+	private KymoButlerBatchPipeline<AnalysisItem> createBatchPipeline(final AtomicInteger total, final KymoButlerBatchJournal journal, final KymoButlerBatchTables tables,
+			final KymoButlerLeaseManager leases) {
+		final AtomicInteger done=new AtomicInteger();
+		KymoButlerBatchPipeline<AnalysisItem> pipeline=new KymoButlerBatchPipeline<AnalysisItem>(BATCH_QUEUE_CAPACITY);
+		
+		pipeline.addStage("Decode and Improve Kymo", new KymoButlerBatchPipeline.Stage<AnalysisItem>() {
+			@Override
+			public boolean process(AnalysisItem item) throws Exception {
+				item.reservedBytes=KymoButlerMemoryGovernor.estimateBytes(item.info, item.file.length(), improveBeforeAnalysis);
+				memoryGovernor.acquire(item.reservedBytes);
+				journal.record(item.file, KymoButlerBatchJournal.STARTED, null, null);
+				try {
+					item.image=IJ.openImage(item.file.getAbsolutePath());
+					if(item.image==null) {
+						IJ.log("Batch skipped (unsupported format): "+item.file.getAbsolutePath());
+						endItem(item, KymoButlerBatchJournal.SKIPPED, "unsupported format", journal, leases);
+						IJ.showProgress(done.incrementAndGet(), total.get());
+						return false;
+					}
+					prepareImage(item);
+				} catch (Exception e) {
+					endItem(item, KymoButlerBatchJournal.FAILED, e.toString(), journal, leases);
+					closeImages(item);
+					throw e;
+				}
+				return true;
+			}
+		}, 1);
+		
+		pipeline.addStage("Inference", new KymoButlerBatchPipeline.Stage<AnalysisItem>() {
+			@Override
+			public boolean process(AnalysisItem item) throws Exception {
+				String eta=KymoButlerCostModel.formatEta(costModel.getRemainingMs());
+				IJ.showStatus("Batch "+(done.get()+1)+"/"+total.get()+": "+item.file.getName()+(eta.isEmpty()?"":" ("+eta+")"));
+				long t0=System.currentTimeMillis();
+				try {
+					runInference(item);
+					costModel.finished(item, item.info, item.response!=null && !item.io.isLastFromCache()?System.currentTimeMillis()-t0:-1);
+				} catch (Exception e) {
+					endItem(item, KymoButlerBatchJournal.FAILED, e.toString(), journal, leases);
+					closeImages(item);
+					throw e;
+				}
+				return true;
+			}
+		}, 1);
+		
+		pipeline.addStage("Outputs", new KymoButlerBatchPipeline.Stage<AnalysisItem>() {
+			@Override
+			public boolean process(AnalysisItem item) throws Exception {
+				try {
+					boolean success=renderOutputs(item);
+					//Recorded as done before its rows are added: on resume, the batch tables only keep the rows of done images
+					endItem(item, success?KymoButlerBatchJournal.DONE:KymoButlerBatchJournal.FAILED, success?null:"no tracks returned by KymoButler", journal, leases);
+					if(success) tables.add(item.file, item.io.getLastOutputDir(), item.io.getLastTracksCsvPath(), item.io.getLastPprocTablePath());
+				} catch (Exception e) {
+					endItem(item, KymoButlerBatchJournal.FAILED, e.toString(), journal, leases);
+					throw e;
+				} finally {
+					closeImages(item);
+					item.response=null;
+					IJ.showProgress(done.incrementAndGet(), total.get());
+				}
+				IJ.log("[KymoButler] Batch item done: "+item.file.getName()+" ("+elapsedMs(item.start)+" ms)");
+				return true;
+			}
+		}, 1);
+		
+		return pipeline;
+	}
+	
+	/**
+	 * Returns the output folder of a batch image in a headless run: the image's folder, relative to the input root,
+	 * in the output root
+	 * @param file the image's file
+	 * @return the output folder
+	 */
+	private File getOutputDir(File file) {
+		File parent=file.getAbsoluteFile().getParentFile();
+		if(batchInputRoot==null || parent==null) return batchOutputRoot;
+		try {
+			java.nio.file.Path relative=batchInputRoot.getCanonicalFile().toPath().relativize(parent.getCanonicalFile().toPath());
+			if(relative.startsWith("..")) return batchOutputRoot;
+			return new File(batchOutputRoot, relative.toString());
+		} catch (IOException | IllegalArgumentException e) {
+			return batchOutputRoot;
+		}
+	}
+	
+	/**
+	 * Closes the images of a batch item, whatever stage it ended in
+	 * @param item the item
+	 */
+	private void closeImages(AnalysisItem item) {
+		if(item.analysisImage!=null && item.analysisImage!=item.image) item.analysisImage.close();
+		if(item.image!=null) item.image.close();
+		item.analysisImage=null;
+		item.image=null;
+	}
+	
+	/**
+	 * Records the final status of a batch item in the journal, releases its memory and, in a distributed batch, its lease
+	 * @param item the item
+	 * @param status the final status, one of KymoButlerBatchJournal.DONE, FAILED or SKIPPED
+	 * @param message a message explaining the status, may be null
+	 * @param journal the batch journal
+	 * @param leases the leases of a distributed batch, null otherwise
+	 */
+	private void endItem(AnalysisItem item, String status, String message, KymoButlerBatchJournal journal, KymoButlerLeaseManager leases) {
+		recordStatus(journal, item.file, status, item.io.getLastOutputDir(), message);
+		costModel.finished(item, item.info, -1);
+		memoryGovernor.release(item.reservedBytes);
+		item.reservedBytes=0;
+		if(leases!=null) leases.release(item.file, status.equals(KymoButlerBatchJournal.DONE));
+	}
+	
+	/**
+	 * Submits the items of a distributed batch that this node manages to claim. Items done or claimed by other nodes
+	 * are passed over; once all items were tried, those still claimed by other nodes are tried again, until they are
+	 * done or their lease expires (their node having stopped), so that the batch is complete when every node returns
+	 * @param items the batch items, in the order they should be analysed
+	 * @param pipeline the batch pipeline
+	 * @param leases the leases of the batch
+	 * @param total the number of items analysed by this node, for the progress bar, updated as items are passed over
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private void submitLeased(java.util.List<AnalysisItem> items, KymoButlerBatchPipeline<AnalysisItem> pipeline, KymoButlerLeaseManager leases, AtomicInteger total) throws InterruptedException {
+		java.util.List<AnalysisItem> remaining=new java.util.LinkedList<AnalysisItem>(items);
+		int nOthers=0;
+		while(!remaining.isEmpty()) {
+			boolean claimed=false;
+			for(java.util.Iterator<AnalysisItem> it=remaining.iterator(); it.hasNext(); ) {
+				AnalysisItem item=it.next();
+				if(leases.isDone(item.file)) {
+					it.remove();
+					costModel.finished(item, item.info, -1);
+					total.decrementAndGet();
+					nOthers++;
+				}else if(leases.tryAcquire(item.file)) {
+					it.remove();
+					if(leases.isDone(item.file)) {
+						//Completed by another node between the two checks
+						leases.release(item.file, false);
+						costModel.finished(item, item.info, -1);
+						total.decrementAndGet();
+						nOthers++;
+						continue;
+					}
+					pipeline.submit(item);
+					claimed=true;
+				}
+			}
+			if(!remaining.isEmpty() && !claimed) {
+				IJ.showStatus("Batch: waiting for "+remaining.size()+" image(s) claimed by other nodes");
+				Thread.sleep(leases.getHeartbeatMs());
+			}
+		}
+		IJ.log("[KymoButler] Distributed batch: "+total.get()+" image(s) claimed by this node, "+nOthers+" done by other nodes");
+	}
+	
+	/**
+	 * Opens the journal of a batch folder: a single journal, or one journal per node in a distributed batch
+	 * @param folder the batch folder
+	 * @param parameters the analysis parameters
+	 * @return the journal
+	 */
+	private KymoButlerBatchJournal openJournal(File folder, JSONObject parameters) {
+		String fingerprint=KymoButlerBatchJournal.fingerprint(parameters);
+		if(!batchDistributed) return new KymoButlerBatchJournal(folder, fingerprint);
+		return new KymoButlerBatchJournal(folder, KymoButlerBatchJournal.JOURNAL_NAME.replace(".jsonl", "_"+KymoButlerLeaseManager.NODE_ID+".jsonl"), fingerprint);
+	}
+	
+	/**
+	 * Opens the batch tables of a folder: shared tables, or one set of tables per node in a distributed batch
+	 * @param folder the batch folder
+	 * @param resumed the output folders of the images done by previous runs, whose rows are kept, or null to start new tables
+	 * @return the tables
+	 */
+	private KymoButlerBatchTables openTables(File folder, java.util.Map<String, String> resumed) {
+		if(!batchDistributed) return new KymoButlerBatchTables(folder, resumed);
+		return new KymoButlerBatchTables(folder, "_"+KymoButlerLeaseManager.NODE_ID, null);
 	}
 
 	private long elapsedMs(long startMs) {
@@ -442,7 +1109,10 @@ public class KymoButler_Analyze implements PlugIn{
 				if(i==8) attachHoverHint(c, "Process all images in a selected folder.");
 				if(i==9) attachHoverHint(c, "Include subfolders during batch mode.");
 				if(i==10) attachHoverHint(c, "Display image outputs during batch runs.");
-				if(i==11) attachHoverHint(c, "Apply Improve Kymo preprocessing before analysis.");
+				if(i==11) attachHoverHint(c, "Skip images already completed with the same parameters, retry failed ones.");
+				if(i==12) attachHoverHint(c, "Keep watching the folder and analyse images as they are written.");
+				if(i==13) attachHoverHint(c, "Share the folder with other ImageJ instances or machines, each analysing the images it claims.");
+				if(i==14) attachHoverHint(c, "Apply Improve Kymo preprocessing before analysis.");
 			}
 		}
 	}
@@ -487,10 +1157,15 @@ public class KymoButler_Analyze implements PlugIn{
 		if(hoverHintDialog!=null) hoverHintDialog.setVisible(false);
 	}
 
-	private void loadParametersFromJson(String path) {
+	/**
+	 * Loads the parameters saved in a JSON file, keys missing from the file keeping their current value
+	 * @param path path to the JSON file
+	 * @return true if the file was loaded
+	 */
+	boolean loadParametersFromJson(String path) {
 		if(path==null || path.trim().isEmpty()) {
 			IJ.log("[KymoButler] Parameter JSON path is empty; skipping load.");
-			return;
+			return false;
 		}
 		try {
 			String txt=FileUtils.readFileToString(new java.io.File(path), "UTF-8");
@@ -509,17 +1184,52 @@ public class KymoButler_Analyze implements PlugIn{
 			if(j.has("batchMode")) batchMode=j.getBoolean("batchMode");
 			if(j.has("batchRecursive")) batchRecursive=j.getBoolean("batchRecursive");
 			if(j.has("batchShowOutputs")) batchShowOutputs=j.getBoolean("batchShowOutputs");
+			if(j.has("batchResume")) batchResume=j.getBoolean("batchResume");
+			if(j.has("batchWatch")) batchWatch=j.getBoolean("batchWatch");
+			if(j.has("batchDistributed")) batchDistributed=j.getBoolean("batchDistributed");
+			if(j.has("batchExtensions")) batchExtensions=j.getString("batchExtensions");
+			if(j.has("batchPattern")) batchPattern=j.getString("batchPattern");
 			if(j.has("improveBeforeAnalysis")) improveBeforeAnalysis=j.getBoolean("improveBeforeAnalysis");
 			if(j.has("improveStart")) improveStart=j.getInt("improveStart");
 			if(j.has("improveStop")) improveStop=j.getInt("improveStop");
 			IJ.log("[KymoButler] Parameters loaded from: "+path);
+			return true;
 		} catch (Exception e) {
 			IJ.log("[KymoButler] Unable to load parameters JSON: "+path);
-			IJ.showMessage("KymoButler", "Could not load parameters JSON.\nUsing dialog values instead.");
+			if(!headless) IJ.showMessage("KymoButler", "Could not load parameters JSON.\nUsing dialog values instead.");
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the parameters that determine the analysis results, used to tell whether a batch item may be reused:
+	 * detection parameters, the Options changing the outputs (as in the results cache key) and the KymoButler model.
+	 * The calibration is read from each image, whose file is checked separately
+	 * @return the parameters, as a JSONObject
+	 */
+	private JSONObject getAnalysisParameters() {
+		JSONObject j=new JSONObject();
+		j.put("threshold", p);
+		j.put("minimumSize", minimumSize);
+		j.put("minimumFrames", minimumFrames);
+		j.put("useBidirectional", useBidirectional);
+		j.put("decisionThreshold", decisionThreshold);
+		j.put("improveBeforeAnalysis", improveBeforeAnalysis);
+		if(improveBeforeAnalysis) j.put("improve", KymoButler_ImproveKymo.describe(improveStart, improveStop));
+		j.put("outputs", KymoButlerAnalysisRequest.fromPreferences().parameters(p, minimumSize, minimumFrames)
+				.bidirectional(useBidirectional, decisionThreshold).getOutputParameters());
+		
+		String kbPath=Prefs.get("KymoButler_localPath.string", "");
+		if(kbPath.trim().isEmpty()) kbPath=KymoButlerIO.guessLocalKymoPath();
+		try {
+			j.put("model", kbPath==null?"":KymoButlerResultCache.modelFingerprint(new File(kbPath)));
+		} catch (IOException e) {
+			j.put("model", "");
 		}
+		return j;
 	}
 
-	private void saveParameterLog(String outputDir, long startMs, long endMs) {
+	private void saveParameterLog(String outputDir, long startMs, long endMs, String imageTitle) {
 		try {
 			JSONObject j=new JSONObject();
 			j.put("timestamp", new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date()));
@@ -538,10 +1248,15 @@ public class KymoButler_Analyze implements PlugIn{
 			j.put("batchMode", batchMode);
 			j.put("batchRecursive", batchRecursive);
 			j.put("batchShowOutputs", batchShowOutputs);
+			j.put("batchResume", batchResume);
+			j.put("batchWatch", batchWatch);
+			j.put("batchDistributed", batchDistributed);
+			j.put("batchExtensions", batchExtensions);
+			j.put("batchPattern", batchPattern);
 			j.put("improveBeforeAnalysis", improveBeforeAnalysis);
 			j.put("improveStart", improveStart);
 			j.put("improveStop", improveStop);
-			j.put("imageTitle", ip!=null?ip.getTitle():"");
+			j.put("imageTitle", imageTitle!=null?imageTitle:"");
 			java.io.File out=new java.io.File(outputDir, "kymobutler_parameters_log.json");
 			FileUtils.writeStringToFile(out, j.toString(2), "UTF-8");
 			IJ.log("[KymoButler] Parameters log saved: "+out.getAbsolutePath());
@@ -550,16 +1265,15 @@ public class KymoButler_Analyze implements PlugIn{
 		}
 	}
 	
-	private void collectFiles(java.io.File dir, boolean recursive, java.util.List<java.io.File> out) {
-		if(dir==null || !dir.exists()) return;
-		java.io.File[] entries=dir.listFiles();
-		if(entries==null) return;
-		for(java.io.File entry : entries) {
-			if(entry.isDirectory()) {
-				if(recursive) collectFiles(entry, true, out);
-			}else {
-				out.add(entry);
-			}
-		}
+	/**
+	 * Returns the folder where preprocessed images are persisted: next to the local session folders,
+	 * i.e. next to the image if it was opened from a file, in the local output directory otherwise
+	 * @param image the image whose preprocessed versions are cached
+	 * @return the cache folder
+	 */
+	private File getCacheDir(ImagePlus image) {
+		FileInfo info=image.getOriginalFileInfo();
+		String dir=info!=null && info.directory!=null && !info.directory.trim().isEmpty()?info.directory:Prefs.get("KymoButler_outputDir.string", System.getProperty("java.io.tmpdir"));
+		return new File(dir, KymoButlerImageCache.CACHE_FOLDER);
 	}
 }
@@ -0,0 +1,230 @@
+/**
+*
+*  KymoButler_Evaluate.java, 18 oct. 2026
+*
+*  Scores KymoButler outputs against reference tracks, for a whole folder.
+*
+*/
+
+/*
+ * This file is part of KymoButler for ImageJ and is distributed
+ * under the terms of the GNU General Public License v3.0 or later.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import KymoButler.KymoButlerEvaluator;
+import KymoButler.KymoButlerTracks;
+import ij.IJ;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.io.DirectoryChooser;
+import ij.measure.ResultsTable;
+import ij.plugin.PlugIn;
+
+/**
+ * This class is aimed at evaluating KymoButler against annotated kymographs: for each image of a folder,
+ * the tracks of its latest local run are matched against reference tracks stored next to it
+ * (&lt;image&gt;_RoiSet.zip, &lt;image&gt;.zip, &lt;image&gt;_reference.csv or &lt;image&gt;.roi).
+ * Images are evaluated in parallel.
+ *
+ */
+public class KymoButler_Evaluate implements PlugIn{
+	/** Extensions of the files considered as kymographs **/
+	static final String[] IMAGE_EXTENSIONS=new String[] {".tif", ".tiff", ".png", ".jpg", ".jpeg", ".bmp", ".gif"};
+
+	/** Suffixes of the reference files, appended to the image name without extension **/
+	static final String[] REFERENCE_SUFFIXES=new String[] {"_RoiSet.zip", ".zip", "_reference.csv", ".roi"};
+
+	/** Preferences: maximum matching distance, in pixels **/
+	double maxDistance=Prefs.get("KymoButler_evalMaxDistance.double", 3.0);
+
+	/** Preferences: minimum fraction of reference points matching the same detected track **/
+	double minCoverage=Prefs.get("KymoButler_evalMinCoverage.double", 0.5);
+
+	/** Preferences: save the evaluation tables in the folder **/
+	boolean saveTables=Prefs.get("KymoButler_evalSaveTables.boolean", true);
+
+	@Override
+	public void run(String arg) {
+		GenericDialog gd=new GenericDialog("KymoButler evaluation");
+		gd.addMessage("Matches the latest KymoButler tracks of each image against its reference tracks");
+		gd.addNumericField("Maximum_matching_distance (pixels)", maxDistance, 1);
+		gd.addNumericField("Minimum_track_coverage (0-1)", minCoverage, 2);
+		gd.addCheckbox("Save_evaluation_tables", saveTables);
+		gd.showDialog();
+
+		if(gd.wasCanceled()) return;
+
+		maxDistance=gd.getNextNumber();
+		minCoverage=gd.getNextNumber();
+		saveTables=gd.getNextBoolean();
+		storePreferences();
+
+		String folder=new DirectoryChooser("Select folder with annotated images").getDirectory();
+		if(folder==null) return;
+
+		evaluateFolder(new File(folder));
+	}
+
+	/**
+	 * Stores preferences, based on the user input
+	 */
+	public void storePreferences() {
+		Prefs.set("KymoButler_evalMaxDistance.double", maxDistance);
+		Prefs.set("KymoButler_evalMinCoverage.double", minCoverage);
+		Prefs.set("KymoButler_evalSaveTables.boolean", saveTables);
+	}
+
+	/**
+	 * Evaluates all the annotated images of a folder, in parallel, and displays the summary and per-track tables
+	 * @param folder the folder containing the images, their references and their KymoButler outputs
+	 */
+	public void evaluateFolder(final File folder) {
+		long start=System.currentTimeMillis();
+		File[] files=folder.listFiles();
+		if(files==null) return;
+
+		List<File> images=new ArrayList<File>();
+		for(File file : files) if(file.isFile() && isImage(file.getName()) && findReference(file)!=null) images.add(file);
+
+		if(images.isEmpty()) {
+			IJ.showMessage("KymoButler evaluation", "No image with reference tracks found in:\n"+folder);
+			return;
+		}
+
+		ExecutorService pool=Executors.newFixedThreadPool(Math.max(1, Math.min(Prefs.getThreads(), images.size())));
+		List<Future<Object[]>> futures=new ArrayList<Future<Object[]>>();
+		for(final File image : images) {
+			futures.add(pool.submit(new Callable<Object[]>() {
+				@Override
+				public Object[] call() throws Exception {
+					return evaluateImage(image);
+				}
+			}));
+		}
+		pool.shutdown();
+
+		ResultsTable summary=new ResultsTable();
+		ResultsTable perTrack=new ResultsTable();
+		int totRef=0;
+		int totDet=0;
+		int totMatched=0;
+
+		for(int i=0; i<images.size(); i++) {
+			String name=images.get(i).getName();
+			Object[] res;
+			try {
+				res=futures.get(i).get();
+			} catch (Exception e) {
+				IJ.log("[KymoButler] Evaluation failed for "+name+": "+e.getMessage());
+				continue;
+			}
+			if(res==null) {
+				IJ.log("[KymoButler] Evaluation skipped (no KymoButler tracks table found): "+name);
+				continue;
+			}
+
+			KymoButlerEvaluator.Evaluation ev=(KymoButlerEvaluator.Evaluation) res[0];
+			totRef+=ev.nReference;
+			totDet+=ev.nDetected;
+			totMatched+=ev.nMatched;
+
+			summary.incrementCounter();
+			summary.addValue("Image", name);
+			summary.addValue("Reference_tracks", ev.nReference);
+			summary.addValue("Detected_tracks", ev.nDetected);
+			summary.addValue("Matched_tracks", ev.nMatched);
+			summary.addValue("Precision", ev.getPrecision());
+			summary.addValue("Recall", ev.getRecall());
+			summary.addValue("F1", ev.getF1());
+			summary.addValue("Mean_error_px", ev.getMeanError());
+			summary.addValue("Tracks_table", (String) res[1]);
+
+			for(int r=0; r<ev.nReference; r++) {
+				perTrack.incrementCounter();
+				perTrack.addValue("Image", name);
+				perTrack.addValue("Reference_track", r+1);
+				perTrack.addValue("Detected_track", ev.match[r]+1);
+				perTrack.addValue("Common_points", ev.commonPoints[r]);
+				perTrack.addValue("Mean_error_px", ev.meanError[r]);
+				perTrack.addValue("RMS_error_px", ev.rmsError[r]);
+			}
+		}
+
+		summary.incrementCounter();
+		summary.addValue("Image", "All");
+		summary.addValue("Reference_tracks", totRef);
+		summary.addValue("Detected_tracks", totDet);
+		summary.addValue("Matched_tracks", totMatched);
+		summary.addValue("Precision", totDet>0?(double) totMatched/totDet:Double.NaN);
+		summary.addValue("Recall", totRef>0?(double) totMatched/totRef:Double.NaN);
+		summary.addValue("F1", totRef+totDet>0?2.0*totMatched/(totRef+totDet):Double.NaN);
+
+		summary.show("KymoButler Evaluation");
+		perTrack.show("KymoButler Evaluation Tracks");
+
+		if(saveTables) {
+			try {
+				summary.saveAs(new File(folder, "kymobutler_evaluation_summary.csv").getAbsolutePath());
+				perTrack.saveAs(new File(folder, "kymobutler_evaluation_tracks.csv").getAbsolutePath());
+			} catch (Exception e) {
+				IJ.log("[KymoButler] Unable to save evaluation tables in "+folder);
+			}
+		}
+
+		IJ.log("[KymoButler] Evaluation of "+images.size()+" image(s) done ("+(System.currentTimeMillis()-start)+" ms)");
+	}
+
+	/**
+	 * Evaluates one image against its reference tracks
+	 * @param image the image file
+	 * @return the evaluation and the path to the evaluated tracks table, or null if no KymoButler output was found
+	 * @throws Exception if the reference or the tracks table could not be read
+	 */
+	Object[] evaluateImage(File image) throws Exception {
+		File detectedCSV=KymoButlerEvaluator.findLatestTracksCSV(image.getParentFile(), image.getName());
+		if(detectedCSV==null) return null;
+
+		File reference=findReference(image);
+		KymoButlerTracks ref=reference.getName().toLowerCase().endsWith(".csv")?
+				KymoButlerEvaluator.readTracksCSV(reference.getAbsolutePath()):
+				KymoButlerEvaluator.readRoiSet(reference.getAbsolutePath());
+		KymoButlerTracks det=KymoButlerEvaluator.readTracksCSV(detectedCSV.getAbsolutePath());
+
+		return new Object[] {new KymoButlerEvaluator(maxDistance, minCoverage).evaluate(ref, det), detectedCSV.getAbsolutePath()};
+	}
+
+	/**
+	 * Looks for the reference tracks of an image, next to it
+	 * @param image the image file
+	 * @return the reference file, or null if none was found
+	 */
+	static File findReference(File image) {
+		String name=image.getName();
+		int dot=name.lastIndexOf(".");
+		String base=dot>0?name.substring(0, dot):name;
+		for(String suffix : REFERENCE_SUFFIXES) {
+			File candidate=new File(image.getParentFile(), base+suffix);
+			if(candidate.isFile()) return candidate;
+		}
+		return null;
+	}
+
+	/**
+	 * Checks if a file name has one of the supported image extensions
+	 * @param name the file name
+	 * @return true if the file is considered as a kymograph
+	 */
+	static boolean isImage(String name) {
+		String lower=name.toLowerCase();
+		for(String ext : IMAGE_EXTENSIONS) if(lower.endsWith(ext)) return true;
+		return false;
+	}
+}
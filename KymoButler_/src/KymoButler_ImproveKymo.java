@@ -5,6 +5,26 @@
  *  Implements the Improve Kymo wavelet-like filtering using successive
  *  Gaussian blur differences, adapted from KymoToolBox.
  *
+ *  The sum of the differences G(i-1)-G(i) for i in [start, stop] telescopes
+ *  to G(start-1)-G(stop): by default, only those two blurs are computed.
+ *  The per-scale loop is kept for validation (exactLoop).
+ *
+ *  The individual bands G(i-1)-G(i) can also be output as a new stack
+ *  (outputBands): each level is obtained by blurring the previous one with
+ *  the incremental sigma sqrt(i^2-(i-1)^2), i.e. one blur per level.
+ *
+ *  Large images may be filtered by overlapping row bands (tiled): each band
+ *  is read with a 6 sigma halo, filtered and written straight back at the
+ *  original bit depth, so that memory use depends on the band size only.
+ *
+ *  The preview runs on ImageJ's preview thread, which is interrupted as soon
+ *  as a parameter changes: the filter then stops early. On large images, a
+ *  binned result is shown first, then replaced by the full one.
+ *
+ *  Blurs of sigma RECURSIVE_MIN_SIGMA and above may use a recursive Gaussian
+ *  (recursiveBlur), whose cost does not depend on sigma, instead of ImageJ's
+ *  convolution.
+ *
  */
 
 /*
@@ -18,14 +38,17 @@
  * under the terms of the GNU General Public License v3.0 or later.
  */
 
+import KymoButler.KymoButlerRecursiveGaussian;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.gui.DialogListener;
 import ij.gui.GenericDialog;
 import ij.plugin.filter.ExtendedPlugInFilter;
 import ij.plugin.filter.GaussianBlur;
 import ij.plugin.filter.PlugInFilterRunner;
 import ij.process.Blitter;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 
 import java.awt.AWTEvent;
@@ -33,9 +56,27 @@ import java.awt.AWTEvent;
 public class KymoButler_ImproveKymo implements ExtendedPlugInFilter, DialogListener {
 	public static int start = 1;
 	public static int stop = 15;
+	/** If true, computes and sums every difference of Gaussians instead of using the telescoped form **/
+	public static boolean exactLoop = false;
+	/** If true, outputs the per-scale bands as a new stack instead of filtering the image **/
+	public static boolean outputBands = false;
+	/** If true, filters the image by bands of tileRows rows instead of all at once **/
+	public static boolean tiled = false;
+	/** Number of rows of each band, in tiled mode **/
+	public static int tileRows = 1024;
+	/** If true, blurs of sigma RECURSIVE_MIN_SIGMA and above use the recursive Gaussian: faster, but the output is approximate **/
+	public static boolean recursiveBlur = false;
+	/** Smallest sigma blurred with the recursive Gaussian, when enabled: below, convolution is both faster and more accurate **/
+	static final double RECURSIVE_MIN_SIGMA = 3.0;
+	/** Halo read above and below each band, in multiples of the largest sigma: wide enough for bands to match the untiled filter to within one grey level **/
+	static final double HALO_SIGMAS = 6.0;
+	/** Number of pixels above which the preview first shows a result computed on a downsampled image **/
+	static final int PREVIEW_PIXELS = 1 << 20;
+	/** True while the dialog is displayed, i.e. while run() is called for the preview **/
+	private volatile boolean previewing = false;
 	@SuppressWarnings("unused")
 	private int nPasses = 1;
-	private int flags = DOES_8G | DOES_16 | DOES_32;
+	private int flags = DOES_8G | DOES_16 | DOES_32 | FINAL_PROCESSING;
 	private ImagePlus imp;
 	
 	public int setup(String arg, ImagePlus imp) {
@@ -43,6 +84,11 @@ public class KymoButler_ImproveKymo implements ExtendedPlugInFilter, DialogListe
 		
 		if (IJ.versionLessThan("1.42k")) return DONE;
 		
+		if ("final".equals(arg)) {
+			if (imp != null) imp.resetDisplayRange();
+			return DONE;
+		}
+		
 		return flags;
 	}
 	
@@ -51,18 +97,35 @@ public class KymoButler_ImproveKymo implements ExtendedPlugInFilter, DialogListe
 		GenericDialog gd = new GenericDialog(command);
 		gd.addNumericField("Start", start, 0);
 		gd.addNumericField("Stop", stop, 0);
+		gd.addCheckbox("Exact_per-scale_loop (slower, for validation)", exactLoop);
+		gd.addCheckbox("Output_scale_bands (new stack, current slice)", outputBands);
+		gd.addCheckbox("Recursive_blur for sigma >= 3 (faster, approximate)", recursiveBlur);
+		gd.addCheckbox("Tiled (bounded memory, for very large images)", tiled);
+		gd.addNumericField("Tile_rows", tileRows, 0);
 		gd.addPreviewCheckbox(pfr);
 		gd.addDialogListener(this);
+		previewing = true;
 		gd.showDialog();
+		previewing = false;
 		if (gd.wasCanceled()) return DONE;
 		IJ.register(this.getClass());
+		if (outputBands) {
+			ImagePlus bands = createBands(imp, start, stop);
+			if (bands != null) bands.show();
+			return DONE;
+		}
 		return IJ.setupDialog(imp, flags);
 	}
 	
 	public boolean dialogItemChanged(GenericDialog gd, AWTEvent e) {
 		start = (int) gd.getNextNumber();
 		stop = (int) gd.getNextNumber();
-		if (start > stop || start < 1 || gd.invalidNumber()) return false;
+		exactLoop = gd.getNextBoolean();
+		outputBands = gd.getNextBoolean();
+		recursiveBlur = gd.getNextBoolean();
+		tiled = gd.getNextBoolean();
+		tileRows = (int) gd.getNextNumber();
+		if (start > stop || start < 1 || tileRows < 1 || gd.invalidNumber()) return false;
 		return true;
 	}
 	
@@ -71,43 +134,439 @@ public class KymoButler_ImproveKymo implements ExtendedPlugInFilter, DialogListe
 	}
 	
 	public void run(ImageProcessor ip) {
-		applyToProcessor(this.imp, ip, start, stop);
+		if (previewing && ip.getPixelCount() > PREVIEW_PIXELS) {
+			preview(ip);
+			return;
+		}
+		// Slices of a stack are processed one at a time, each blur being multithreaded: the display range is reset once, at the final processing step
+		applyToProcessor(this.imp.getBitDepth(), ip, start, stop);
+		if (this.imp.getStackSize() == 1) this.imp.resetDisplayRange();
+	}
+	
+	/**
+	 * Shows a quick, downsampled result, then the full one. Both steps are abandoned as soon as the preview thread
+	 * is interrupted (parameters changed, preview unchecked or dialog closed): ImageJ then restores the snapshot
+	 * @param ip the previewed image, modified in place
+	 */
+	private void preview(ImageProcessor ip) {
+		int bitDepth = this.imp.getBitDepth();
+		ImageProcessor original = ip.duplicate();
+		
+		applyDownsampled(bitDepth, ip, start, stop);
+		if (Thread.currentThread().isInterrupted()) return;
+		this.imp.resetDisplayRange();
+		this.imp.updateAndDraw();
+		
+		applyToProcessor(bitDepth, original, start, stop);
+		if (Thread.currentThread().isInterrupted()) return;
+		ip.insert(original, 0, 0);
+		this.imp.resetDisplayRange();
 	}
 	
+	/**
+	 * Applies the filter to all slices of an image, one at a time: each blur spreads its lines over Prefs.getThreads()
+	 * threads, which ImageJ's GaussianBlur cannot be told to lower, so that slices filtered at once would multiply them
+	 * @param imp the image to filter, modified in place
+	 * @param start the first scale
+	 * @param stop the last scale
+	 */
 	public static void apply(ImagePlus imp, int start, int stop) {
 		if (imp == null) return;
-		ImageProcessor ip = imp.getProcessor();
-		if (ip == null) return;
-		applyToProcessor(imp, ip, start, stop);
+		ImageStack stack = imp.getStack();
+		int bitDepth = imp.getBitDepth();
+		int nSlices = stack.getSize();
+		
+		if (nSlices == 1) {
+			ImageProcessor ip = imp.getProcessor();
+			if (ip == null) return;
+			applyToProcessor(bitDepth, ip, start, stop);
+		} else {
+			for (int n = 1; n <= nSlices && !Thread.currentThread().isInterrupted(); n++) {
+				applyToProcessor(bitDepth, stack.getProcessor(n), start, stop);
+			}
+		}
+		imp.resetDisplayRange();
+	}
+	
+	/**
+	 * Describes the filter settings that change its output, for any image, e.g. to fingerprint a batch. Images are tiled
+	 * automatically above a size depending on the maximum memory, which is then part of the description
+	 * @param start the first scale
+	 * @param stop the last scale
+	 * @return the description, usable in a file name
+	 */
+	public static String describe(int start, int stop) {
+		return "improve_" + start + "-" + stop + (exactLoop ? "_exact" : "") + (recursiveBlur ? "_deriche" : "")
+				+ (tiled ? "_tiled" + tileRows + "_halo" + (int) HALO_SIGMAS : "_autotiled" + tileRows + "_halo" + (int) HALO_SIGMAS + "above" + (getAutoTileBytes() >> 20) + "MB");
+	}
+	
+	/**
+	 * Describes the filter settings that change its output for an image of the given size, including whether it is
+	 * filtered by bands, e.g. to key cached results
+	 * @param start the first scale
+	 * @param stop the last scale
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @return the description, usable in a file name
+	 */
+	public static String describe(int start, int stop, int width, int height) {
+		return "improve_" + start + "-" + stop + (exactLoop ? "_exact" : "") + (recursiveBlur ? "_deriche" : "")
+				+ (isTiled(width, height) ? "_tiled" + tileRows + "_halo" + (int) HALO_SIGMAS : "");
 	}
 	
-	private static void applyToProcessor(ImagePlus imp, ImageProcessor ip, int start, int stop) {
+	/**
+	 * Tells whether an image is filtered by bands of tileRows rows: always in tiled mode, and otherwise when its
+	 * full-size buffers would exceed getAutoTileBytes(). Tiled results differ slightly from untiled ones
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @return true if the image is filtered by bands
+	 */
+	public static boolean isTiled(int width, int height) {
+		if (tileRows >= height) return false;
+		// Working copy, result and coarse blur: three full-size float buffers, plus the blur line caches
+		return tiled || 3L * 4L * width * height > getAutoTileBytes();
+	}
+	
+	/**
+	 * Returns the size of the full-size buffers above which images are filtered by bands automatically: a quarter of
+	 * the maximum memory, so that the choice only depends on the image size for a given ImageJ setup
+	 * @return the size, in bytes
+	 */
+	static long getAutoTileBytes() {
+		return IJ.maxMemory() > 0 ? IJ.maxMemory() / 4 : Long.MAX_VALUE;
+	}
+	
+	/**
+	 * Computes the per-scale bands G(i-1)-G(i), i in [start, stop], of the current slice of an image
+	 * @param imp the input image, left unchanged
+	 * @param start the first scale
+	 * @param stop the last scale
+	 * @return a new 32-bit image holding one band per slice, or null if the image has no processor
+	 */
+	public static ImagePlus createBands(ImagePlus imp, int start, int stop) {
+		if (imp == null || imp.getProcessor() == null) return null;
+		ImagePlus out = new ImagePlus(imp.getShortTitle() + "_bands_" + start + "-" + stop, createBandStack(imp.getProcessor(), start, stop));
+		out.setCalibration(imp.getCalibration());
+		out.resetDisplayRange();
+		return out;
+	}
+	
+	/**
+	 * Computes the per-scale bands G(i-1)-G(i), i in [start, stop], by cascading incremental blurs:
+	 * G(i) is obtained by blurring G(i-1) with sigma sqrt(i^2-(i-1)^2) rather than blurring the input with sigma i.
+	 * The recursive Gaussian is never used here: bands are small differences, which would amplify its approximation
+	 * @param ip the input image, left unchanged
+	 * @param start the first scale
+	 * @param stop the last scale
+	 * @return a 32-bit stack holding one band per slice
+	 */
+	static ImageStack createBandStack(ImageProcessor ip, int start, int stop) {
+		ImageStack stack = new ImageStack(ip.getWidth(), ip.getHeight());
 		ImageProcessor ipFloat = ip.convertToFloatProcessor();
+		ImageProcessor previous = ipFloat != ip ? ipFloat : ipFloat.duplicate();
+		double previousSigma = start - 1;
+		blur(previous, previousSigma, false);
+		
+		for (int i = start; i <= stop; i++) {
+			ImageProcessor current = previous.duplicate();
+			blur(current, Math.sqrt(i * i - previousSigma * previousSigma), false);
+			// The previous level is no longer needed: it becomes the band
+			previous.copyBits(current, 0, 0, Blitter.SUBTRACT);
+			stack.addSlice("DoG_" + (i - 1) + "-" + i, previous);
+			previous = current;
+			previousSigma = i;
+		}
+		return stack;
+	}
+	
+	private static void applyToProcessor(int bitDepth, ImageProcessor ip, int start, int stop) {
+		if (isTiled(ip.getWidth(), ip.getHeight())) {
+			if (!tiled) IJ.log("Improve Kymo: " + ip.getWidth() + "x" + ip.getHeight() + " image filtered by bands of " + tileRows + " rows to fit in memory");
+			applyTiled(bitDepth, ip, start, stop, tileRows);
+			return;
+		}
+		
+		double[] range = bitDepth == 32 ? null : conversionRange(ip);
+		ImageProcessor ipFloat = ip.convertToFloatProcessor();
+		ImageProcessor result = exactLoop ? filterPerScale(ipFloat, start, stop) : filter(ipFloat, start, stop, ipFloat != ip);
+		if (Thread.currentThread().isInterrupted()) return;
+		float[] pixels = (float[]) result.getPixels();
+		int[] shortRange = new int[] {65535, 0};
+		if (bitDepth == 8) updateShortRange(pixels, 0, pixels.length, range, shortRange);
+		writeRows(bitDepth, ip, pixels, 0, 0, ip.getHeight(), range, shortRange);
+	}
+	
+	/**
+	 * Applies the filter by overlapping bands of rows: each band is read with a halo of HALO_SIGMAS*stop rows
+	 * on both sides, filtered, and its central rows are written back into the image at its original bit depth.
+	 * 8-bit images are scaled to the 16-bit range of the whole filtered image, which takes a first pass over the bands.
+	 * @param bitDepth the bit depth of the image
+	 * @param ip the image to filter, modified in place
+	 * @param start the first scale
+	 * @param stop the last scale
+	 * @param rows the number of rows of each band
+	 */
+	static void applyTiled(int bitDepth, ImageProcessor ip, int start, int stop, int rows) {
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		int halo = (int) Math.ceil(HALO_SIGMAS * stop);
+		// A band is written once the next one has been read: its halo may then only overlap the pending band
+		rows = Math.max(rows, halo);
+		
+		double[] range = bitDepth == 32 ? null : conversionRange(ip);
+		int[] shortRange = new int[] {65535, 0};
+		if (bitDepth == 8) {
+			for (int y0 = 0; y0 < height; y0 += rows) {
+				int y1 = Math.min(height, y0 + rows);
+				int top = Math.max(0, y0 - halo);
+				ImageProcessor band = filterBand(readBand(ip, top, Math.min(height, y1 + halo)), start, stop);
+				if (Thread.currentThread().isInterrupted()) return;
+				updateShortRange((float[]) band.getPixels(), (y0 - top) * width, (y1 - top) * width, range, shortRange);
+			}
+		}
+		
+		float[] pending = null;
+		int pendingOffset = 0;
+		int pendingY0 = 0;
+		for (int y0 = 0; y0 < height; y0 += rows) {
+			int y1 = Math.min(height, y0 + rows);
+			int top = Math.max(0, y0 - halo);
+			ImageProcessor input = readBand(ip, top, Math.min(height, y1 + halo));
+			if (pending != null) writeRows(bitDepth, ip, pending, pendingOffset, pendingY0, y0, range, shortRange);
+			pending = (float[]) filterBand(input, start, stop).getPixels();
+			if (Thread.currentThread().isInterrupted()) return;
+			pendingOffset = (y0 - top) * width;
+			pendingY0 = y0;
+		}
+		if (pending != null) writeRows(bitDepth, ip, pending, pendingOffset, pendingY0, height, range, shortRange);
+	}
+	
+	/**
+	 * Applies the telescoped filter to a binned copy of an image, with proportionally smaller sigmas,
+	 * and writes the result back, each binned pixel covering its block: a quick approximation used as a first preview
+	 * @param bitDepth the bit depth of the image
+	 * @param ip the image to filter, modified in place
+	 * @param start the first scale
+	 * @param stop the last scale
+	 */
+	static void applyDownsampled(int bitDepth, ImageProcessor ip, int start, int stop) {
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		int bin = (int) Math.ceil(Math.sqrt((double) ip.getPixelCount() / PREVIEW_PIXELS));
+		int smallWidth = (width + bin - 1) / bin;
+		int smallHeight = (height + bin - 1) / bin;
+		
+		double[] range = bitDepth == 32 ? null : conversionRange(ip);
+		float[] small = new float[smallWidth * smallHeight];
+		float[] counts = new float[small.length];
+		for (int y = 0, i = 0; y < height; y++) {
+			int row = (y / bin) * smallWidth;
+			for (int x = 0; x < width; x++, i++) {
+				small[row + x / bin] += ip.getf(i);
+				counts[row + x / bin]++;
+			}
+		}
+		for (int i = 0; i < small.length; i++) small[i] /= counts[i];
+		
+		ImageProcessor filtered = filter(new FloatProcessor(smallWidth, smallHeight, small), (start - 1) / (double) bin, stop / (double) bin, true);
+		if (Thread.currentThread().isInterrupted()) return;
+		
+		float[] pixels = (float[]) filtered.getPixels();
+		int[] shortRange = new int[] {65535, 0};
+		if (bitDepth == 8) updateShortRange(pixels, 0, pixels.length, range, shortRange);
+		float[] line = new float[width];
+		for (int y = 0; y < height; y++) {
+			int row = (y / bin) * smallWidth;
+			for (int x = 0; x < width; x++) line[x] = pixels[row + x / bin];
+			writeRows(bitDepth, ip, line, 0, y, y + 1, range, shortRange);
+		}
+	}
+	
+	/**
+	 * Copies a band of rows of an image into a new FloatProcessor
+	 * @param ip the image
+	 * @param top the first row (included)
+	 * @param bottom the last row (excluded)
+	 * @return the band, as a FloatProcessor
+	 */
+	static ImageProcessor readBand(ImageProcessor ip, int top, int bottom) {
+		int width = ip.getWidth();
+		float[] pixels = new float[width * (bottom - top)];
+		int offset = top * width;
+		for (int i = 0; i < pixels.length; i++) pixels[i] = ip.getf(offset + i);
+		return new FloatProcessor(width, bottom - top, pixels);
+	}
+	
+	/**
+	 * Filters a band, overwriting it
+	 * @param band the band, as a FloatProcessor
+	 * @param start the first scale
+	 * @param stop the last scale
+	 * @return the filtered band, as a FloatProcessor
+	 */
+	private static ImageProcessor filterBand(ImageProcessor band, int start, int stop) {
+		return exactLoop ? filterPerScale(band, start, stop) : filter(band, start, stop, true);
+	}
+	
+	/**
+	 * Returns the range from which filtered values are scaled to 16 bits. The original conversion, convertToShort(true),
+	 * used the min and max of the float result, which are inherited from the input and never updated by the blurs:
+	 * this is the range of the input image
+	 * @param ip the input image, before filtering
+	 * @return the range, as {min, max}
+	 */
+	static double[] conversionRange(ImageProcessor ip) {
+		double[] range = new double[] {Double.MAX_VALUE, -Double.MAX_VALUE};
+		int n = ip.getPixelCount();
+		for (int i = 0; i < n; i++) {
+			float value = ip.getf(i);
+			if (value < range[0]) range[0] = value;
+			if (value > range[1]) range[1] = value;
+		}
+		return range;
+	}
+	
+	/**
+	 * Scales a filtered value to 16 bits, as ImageJ's convertToShort(true) does
+	 * @param value the filtered value
+	 * @param min the minimum of the conversion range
+	 * @param scale the conversion scale
+	 * @return the 16-bit value
+	 */
+	private static int toShort(float value, double min, double scale) {
+		double scaled = (value - min) * scale;
+		if (scaled < 0) scaled = 0;
+		if (scaled > 65535) scaled = 65535;
+		return (int) (scaled + 0.5);
+	}
+	
+	/**
+	 * Extends the range of the 16-bit values of part of a filtered image, needed for the final 8-bit scaling
+	 * @param pixels the filtered pixels
+	 * @param from the first index (included)
+	 * @param to the last index (excluded)
+	 * @param range the 16-bit conversion range, as {min, max}
+	 * @param shortRange the range to update, as {min, max}
+	 */
+	static void updateShortRange(float[] pixels, int from, int to, double[] range, int[] shortRange) {
+		double min = range[0];
+		double scale = range[1] - min == 0 ? 1.0 : 65535.0 / (range[1] - min);
+		for (int i = from; i < to; i++) {
+			int value = toShort(pixels[i], min, scale);
+			if (value < shortRange[0]) shortRange[0] = value;
+			if (value > shortRange[1]) shortRange[1] = value;
+		}
+	}
+	
+	/**
+	 * Writes filtered rows back into an image at its bit depth, without intermediate full-size images.
+	 * 8 and 16-bit values are scaled as by ImageJ's convertToShort(true), then convertToByte(true) for 8-bit images
+	 * @param bitDepth the bit depth of the image
+	 * @param ip the image, modified in place
+	 * @param pixels the filtered pixels
+	 * @param offset the index, in pixels, of the filtered value of the first written row
+	 * @param y0 the first row to write (included)
+	 * @param y1 the last row to write (excluded)
+	 * @param range the 16-bit conversion range, as {min, max} (unused for 32-bit images)
+	 * @param shortRange the range of the 16-bit values of the whole image, as {min, max} (used for 8-bit images only)
+	 */
+	static void writeRows(int bitDepth, ImageProcessor ip, float[] pixels, int offset, int y0, int y1, double[] range, int[] shortRange) {
+		int width = ip.getWidth();
+		int from = y0 * width;
+		int length = (y1 - y0) * width;
+		
+		if (bitDepth == 32) {
+			System.arraycopy(pixels, offset, (float[]) ip.getPixels(), from, length);
+			return;
+		}
+		
+		double min = range[0];
+		double scale = range[1] - min == 0 ? 1.0 : 65535.0 / (range[1] - min);
+		double byteScale = 256.0 / (shortRange[1] - shortRange[0] + 1);
+		for (int i = 0; i < length; i++) {
+			int value = toShort(pixels[offset + i], min, scale);
+			if (bitDepth == 8) {
+				value = (int) ((value - shortRange[0]) * byteScale + 0.5);
+				if (value > 255) value = 255;
+			}
+			ip.set(from + i, value);
+		}
+	}
+	
+	/**
+	 * Computes the sum of the differences of Gaussians G(i-1)-G(i) for i in [start, stop], as G(start-1)-G(stop)
+	 * @param ipFloat the input image, as a FloatProcessor
+	 * @param start the first scale
+	 * @param stop the last scale
+	 * @param canOverwrite true if ipFloat is a working copy that may be modified
+	 * @return the filtered image, as a FloatProcessor
+	 */
+	static ImageProcessor filter(ImageProcessor ipFloat, int start, int stop, boolean canOverwrite) {
+		return filter(ipFloat, (double) (start - 1), (double) stop, canOverwrite);
+	}
+	
+	/**
+	 * Computes the difference of Gaussians G(fineSigma)-G(coarseSigma)
+	 * @param ipFloat the input image, as a FloatProcessor
+	 * @param fineSigma the sigma of the finest blur (0 for none)
+	 * @param coarseSigma the sigma of the coarsest blur
+	 * @param canOverwrite true if ipFloat is a working copy that may be modified
+	 * @return the filtered image, as a FloatProcessor
+	 */
+	static ImageProcessor filter(ImageProcessor ipFloat, double fineSigma, double coarseSigma, boolean canOverwrite) {
+		ImageProcessor result = ipFloat.duplicate();
+		ImageProcessor coarse = canOverwrite ? ipFloat : ipFloat.duplicate();
+		blur(result, fineSigma);
+		blur(coarse, coarseSigma);
+		result.copyBits(coarse, 0, 0, Blitter.SUBTRACT);
+		return result;
+	}
+	
+	/**
+	 * Computes the sum of the differences of Gaussians G(i-1)-G(i) for i in [start, stop], one scale at a time
+	 * @param ipFloat the input image, as a FloatProcessor
+	 * @param start the first scale
+	 * @param stop the last scale
+	 * @return the filtered image, as a FloatProcessor
+	 */
+	static ImageProcessor filterPerScale(ImageProcessor ipFloat, int start, int stop) {
 		ImageProcessor result = ipFloat.createProcessor(ipFloat.getWidth(), ipFloat.getHeight());
 		result.setValue(0);
 		result.fill();
 		
-		GaussianBlur gb = new GaussianBlur();
-		for (int i = start; i <= stop; i++) {
+		for (int i = start; i <= stop && !Thread.currentThread().isInterrupted(); i++) {
 			ImageProcessor plane1 = ipFloat.duplicate();
 			ImageProcessor plane2 = ipFloat.duplicate();
-			gb.blurGaussian(plane1, i - 1, i - 1, 0.00001);
-			gb.blurGaussian(plane2, i, i, 0.00001);
+			blur(plane1, i - 1);
+			blur(plane2, i);
 			plane1.copyBits(plane2, 0, 0, Blitter.SUBTRACT);
 			result.copyBits(plane1, 0, 0, Blitter.ADD);
 		}
-		
-		switch (imp.getBitDepth()) {
-			case 8:
-				ip.setIntArray(result.convertToShort(true).convertToByte(true).getIntArray());
-				break;
-			case 16:
-				ip.setIntArray(result.convertToShort(true).getIntArray());
-				break;
-			case 32:
-				ip.setFloatArray(result.getFloatArray());
-				break;
+		return result;
+	}
+	
+	/**
+	 * Blurs a FloatProcessor in place (a null sigma leaves it unchanged), with the recursive Gaussian
+	 * for large sigmas if recursiveBlur is set, with ImageJ's GaussianBlur otherwise
+	 * @param ip the image to blur
+	 * @param sigma the Gaussian standard deviation, in pixels
+	 */
+	static void blur(ImageProcessor ip, double sigma) {
+		blur(ip, sigma, recursiveBlur);
+	}
+	
+	/**
+	 * Blurs a FloatProcessor in place (a null sigma leaves it unchanged)
+	 * @param ip the image to blur
+	 * @param sigma the Gaussian standard deviation, in pixels
+	 * @param allowRecursive true to use the recursive Gaussian for sigmas of RECURSIVE_MIN_SIGMA and above
+	 */
+	static void blur(ImageProcessor ip, double sigma, boolean allowRecursive) {
+		if (sigma <= 0) return;
+		if (allowRecursive && sigma >= RECURSIVE_MIN_SIGMA) {
+			KymoButlerRecursiveGaussian.blur((FloatProcessor) ip, sigma);
+		} else {
+			new GaussianBlur().blurGaussian(ip, sigma, sigma, 0.00001);
 		}
-		imp.resetDisplayRange();
 	}
 }
@@ -51,9 +51,69 @@ public class KymoButler_Options implements PlugIn{
 	/** Use physical units in postprocessing **/
 	boolean pprocUsePhysical=Prefs.get("KymoButler_pprocUsePhysical.boolean", true);
 	
+	/** Split tracks into run/pause/reversal segments in postprocessing **/
+	boolean segmentTracks=Prefs.get("KymoButler_segmentTracks.boolean", true);
+	
+	/** Segments: velocity below which the particle is considered as paused **/
+	double segPauseVelocity=Prefs.get("KymoButler_segPauseVelocity.double", 0.1);
+	
+	/** Segments: minimum duration of a segment, in frames **/
+	double segMinFrames=Prefs.get("KymoButler_segMinFrames.double", 3);
+	
 	/** Debug tag: true to save JSON in IJ installation folder **/
 	boolean debug=Prefs.get("KymoButler_debug.boolean", false);
 	
+	/** Preferences: size of the Improve Kymo cache, in MB (0 to disable) **/
+	double improveCacheMB=Prefs.get("KymoButler_improveCacheMB.double", 512);
+	
+	/** Preferences: persist Improve Kymo results in a cache folder next to the outputs **/
+	boolean improveCacheOnDisk=Prefs.get("KymoButler_improveCacheOnDisk.boolean", false);
+	
+	/** Preferences: size of the analysis results cache, in MB (0 to disable) **/
+	double resultCacheMB=Prefs.get("KymoButler_resultCacheMB.double", 1024);
+	
+	/** Preferences: kymographs taller than this number of rows are analysed as time windows (0 to disable) **/
+	double tileRows=Prefs.get("KymoButler_tileRows.double", 0);
+	
+	/** Preferences: number of rows shared by consecutive time windows **/
+	double tileOverlap=Prefs.get("KymoButler_tileOverlap.double", 64);
+	
+	/** Preferences: number of time windows analysed at once **/
+	double tileWorkers=Prefs.get("KymoButler_tileWorkers.double", 2);
+	
+	/** Preferences: pre-scan kymographs and analyse only the regions holding signal **/
+	boolean prescan=Prefs.get("KymoButler_prescan.boolean", false);
+	
+	/** Preferences: pre-scan, number of times the noise by which a region should stand out from the background **/
+	double prescanSnr=Prefs.get("KymoButler_prescanSnr.double", 3);
+	
+	/** Preferences: export the probability maps, to extract tracks again without running the network **/
+	boolean probabilityMaps=Prefs.get("KymoButler_probabilityMaps.boolean", false);
+	
+	/** Preferences: batch images narrower than this number of pixels are skipped (0 for no minimum) **/
+	double batchMinWidth=Prefs.get("KymoButler_batchMinWidth.double", 0);
+	
+	/** Preferences: batch images with fewer time points are skipped (0 for no minimum) **/
+	double batchMinHeight=Prefs.get("KymoButler_batchMinHeight.double", 0);
+	
+	/** Preferences: batch images larger than this number of megapixels are skipped (0 for no maximum) **/
+	double batchMaxMegapixels=Prefs.get("KymoButler_batchMaxMegapixels.double", 0);
+	
+	/** Preferences: batch stacks are skipped **/
+	boolean batchOnly2D=Prefs.get("KymoButler_batchOnly2D.boolean", false);
+	
+	/** Preferences: order in which the batch images are analysed **/
+	String batchOrder=Prefs.get("KymoButler_batchOrder.string", "Longest first");
+	
+	/** Preferences: in watch mode, time during which a new file should not change before being analysed, in seconds **/
+	double watchStableSeconds=Prefs.get("KymoButler_watchStableSeconds.double", 2);
+	
+	/** Preferences: in distributed batches, time after which the lease of a node that stopped responding expires, in seconds **/
+	double leaseExpirySeconds=Prefs.get("KymoButler_leaseExpirySeconds.double", 300);
+	
+	/** Preferences: share of the maximum heap the batch images in flight may use, in % **/
+	double batchMemoryShare=Prefs.get("KymoButler_batchMemoryShare.double", 50);
+	
 	/**
 	 * Displays the GUI and stores the parameters
 	 */
@@ -69,6 +129,27 @@ public class KymoButler_Options implements PlugIn{
 		gd.addStringField("Local_output_directory", localOutputDir, 30);
 		gd.addChoice("Target_device", new String[] {"GPU","CPU"}, targetDevice);
 		gd.addCheckbox("PProc_use_physical_units", pprocUsePhysical);
+		gd.addCheckbox("PProc_segment_tracks", segmentTracks);
+		gd.addNumericField("Segments_pause_velocity", segPauseVelocity, 3);
+		gd.addNumericField("Segments_minimum_frames", segMinFrames, 0);
+		gd.addNumericField("Improve_cache_size (MB, 0 to disable)", improveCacheMB, 0);
+		gd.addCheckbox("Improve_cache_on_disk", improveCacheOnDisk);
+		gd.addNumericField("Result_cache_size (MB, 0 to disable)", resultCacheMB, 0);
+		gd.addNumericField("Tile_height (rows, 0 to disable)", tileRows, 0);
+		gd.addNumericField("Tile_overlap (rows)", tileOverlap, 0);
+		gd.addNumericField("Tile_workers", tileWorkers, 0);
+		gd.addCheckbox("Prescan_skip_empty_regions", prescan);
+		gd.addNumericField("Prescan_SNR", prescanSnr, 1);
+		gd.addCheckbox("Probability_maps (needs the result cache)", probabilityMaps);
+		gd.addMessage("Batch inputs (read from file headers, before opening)");
+		gd.addNumericField("Batch_minimum_width (pixels, 0 for none)", batchMinWidth, 0);
+		gd.addNumericField("Batch_minimum_time_points (0 for none)", batchMinHeight, 0);
+		gd.addNumericField("Batch_maximum_size (megapixels, 0 for none)", batchMaxMegapixels, 1);
+		gd.addCheckbox("Batch_2D_images_only", batchOnly2D);
+		gd.addChoice("Batch_order", new String[] {"Longest first", "Shortest first", "Name"}, batchOrder);
+		gd.addNumericField("Watch_stability_delay (s)", watchStableSeconds, 1);
+		gd.addNumericField("Distributed_lease_expiry (s)", leaseExpirySeconds, 0);
+		gd.addNumericField("Batch_memory_share (% of max heap)", batchMemoryShare, 0);
 		gd.addCheckbox("Debug_mode (default: false)", debug);
 		gd.showDialog();
 		
@@ -79,6 +160,26 @@ public class KymoButler_Options implements PlugIn{
 			localOutputDir=gd.getNextString();
 			targetDevice=gd.getNextChoice();
 			pprocUsePhysical=gd.getNextBoolean();
+			segmentTracks=gd.getNextBoolean();
+			segPauseVelocity=gd.getNextNumber();
+			segMinFrames=gd.getNextNumber();
+			improveCacheMB=gd.getNextNumber();
+			improveCacheOnDisk=gd.getNextBoolean();
+			resultCacheMB=gd.getNextNumber();
+			tileRows=gd.getNextNumber();
+			tileOverlap=gd.getNextNumber();
+			tileWorkers=gd.getNextNumber();
+			prescan=gd.getNextBoolean();
+			prescanSnr=gd.getNextNumber();
+			probabilityMaps=gd.getNextBoolean();
+			batchMinWidth=gd.getNextNumber();
+			batchMinHeight=gd.getNextNumber();
+			batchMaxMegapixels=gd.getNextNumber();
+			batchOnly2D=gd.getNextBoolean();
+			batchOrder=gd.getNextChoice();
+			watchStableSeconds=gd.getNextNumber();
+			leaseExpirySeconds=gd.getNextNumber();
+			batchMemoryShare=gd.getNextNumber();
 			debug=gd.getNextBoolean();
 			
 			storePreferences();
@@ -102,6 +203,26 @@ public class KymoButler_Options implements PlugIn{
 		Prefs.set("KymoButler_outputDir.string", localOutputDir);
 		Prefs.set("KymoButler_targetDevice.string", targetDevice);
 		Prefs.set("KymoButler_pprocUsePhysical.boolean", pprocUsePhysical);
+		Prefs.set("KymoButler_segmentTracks.boolean", segmentTracks);
+		Prefs.set("KymoButler_segPauseVelocity.double", segPauseVelocity);
+		Prefs.set("KymoButler_segMinFrames.double", segMinFrames);
+		Prefs.set("KymoButler_improveCacheMB.double", improveCacheMB);
+		Prefs.set("KymoButler_improveCacheOnDisk.boolean", improveCacheOnDisk);
+		Prefs.set("KymoButler_resultCacheMB.double", resultCacheMB);
+		Prefs.set("KymoButler_tileRows.double", tileRows);
+		Prefs.set("KymoButler_tileOverlap.double", tileOverlap);
+		Prefs.set("KymoButler_tileWorkers.double", tileWorkers);
+		Prefs.set("KymoButler_prescan.boolean", prescan);
+		Prefs.set("KymoButler_prescanSnr.double", prescanSnr);
+		Prefs.set("KymoButler_probabilityMaps.boolean", probabilityMaps);
+		Prefs.set("KymoButler_batchMinWidth.double", batchMinWidth);
+		Prefs.set("KymoButler_batchMinHeight.double", batchMinHeight);
+		Prefs.set("KymoButler_batchMaxMegapixels.double", batchMaxMegapixels);
+		Prefs.set("KymoButler_batchOnly2D.boolean", batchOnly2D);
+		Prefs.set("KymoButler_batchOrder.string", batchOrder);
+		Prefs.set("KymoButler_watchStableSeconds.double", watchStableSeconds);
+		Prefs.set("KymoButler_leaseExpirySeconds.double", leaseExpirySeconds);
+		Prefs.set("KymoButler_batchMemoryShare.double", batchMemoryShare);
 		Prefs.set("KymoButler_debug.boolean", debug);
 	}
 }
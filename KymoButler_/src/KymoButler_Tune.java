@@ -0,0 +1,151 @@
+/**
+*
+*  KymoButler_Tune.java, 18 oct. 2026
+*
+*  Live tuning of the detection parameters from cached probability maps.
+*
+*/
+
+/*
+ * This file is part of KymoButler for ImageJ and is distributed
+ * under the terms of the GNU General Public License v3.0 or later.
+ */
+
+import java.awt.AWTEvent;
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.List;
+
+import KymoButler.KymoButlerAnalysisRequest;
+import KymoButler.KymoButlerAnalysisResult;
+import KymoButler.KymoButlerIO;
+import KymoButler.KymoButlerProbabilityMap;
+import KymoButler.KymoButlerTracks;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.gui.DialogListener;
+import ij.gui.GenericDialog;
+import ij.gui.NonBlockingGenericDialog;
+import ij.gui.Overlay;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.plugin.PlugIn;
+
+/**
+ * This class is aimed at tuning the detection threshold, minimum size and minimum frames on the active kymograph:
+ * the network's probability maps are computed once (or read from the cache), then the tracks are extracted again
+ * in Java and drawn over the image each time a parameter changes. The chosen values are stored as the defaults
+ * of KymoButler Analyze.
+ *
+ */
+public class KymoButler_Tune implements PlugIn, DialogListener{
+	/** Preferences: detection threshold **/
+	float p=(float) Prefs.get("KymoButler_p.double", 0.2);
+
+	/** Preferences: minimum size of the tracks, in pixels **/
+	float minimumSize=(float) Prefs.get("KymoButler_minimumSize.double", 3);
+
+	/** Preferences: minimum number of frames of the tracks **/
+	float minimumFrames=(float) Prefs.get("KymoButler_minimumFrames.double", 3);
+
+	/** The kymograph being tuned **/
+	ImagePlus imp=null;
+
+	/** Its probability maps **/
+	KymoButlerProbabilityMap map=null;
+
+	@Override
+	public void run(String arg) {
+		imp=IJ.getImage();
+
+		if(Prefs.get("KymoButler_resultCacheMB.double", 1024)<=0) {
+			IJ.showMessage("KymoButler tuning", "Probability maps are kept in the result cache:\nset a result cache size in KymoButler Options.");
+			return;
+		}
+
+		KymoButlerAnalysisRequest request=KymoButlerAnalysisRequest.fromPreferences().image(imp).parameters(p, minimumSize, minimumFrames)
+				.tiling(0, 0, 1).prescan(false, 3).probabilityMaps(true).build();
+
+		String kbPath=request.getKymoButlerPath();
+		if(kbPath==null || kbPath.trim().isEmpty()) kbPath=KymoButlerIO.guessLocalKymoPath();
+		map=kbPath==null?null:KymoButlerProbabilityMap.find(request, kbPath);
+		if(map==null) {
+			IJ.showStatus("KymoButler: computing the probability maps...");
+			KymoButlerAnalysisResult result=KymoButlerIO.analyze(request);
+			for(String message : result.getMessages()) IJ.log(message);
+			if(kbPath!=null) map=KymoButlerProbabilityMap.find(request, kbPath);
+			IJ.showStatus("");
+		}
+		if(map==null) {
+			IJ.showMessage("KymoButler tuning", "The probability maps of "+imp.getTitle()+" could not be computed:\nsee the Log window for details.");
+			return;
+		}
+
+		Overlay previous=imp.getOverlay();
+		NonBlockingGenericDialog gd=new NonBlockingGenericDialog("KymoButler tuning");
+		gd.addSlider("Threshold", 0.01, 0.99, p, 0.01);
+		gd.addNumericField("Minimum_size (pixels)", minimumSize, 0);
+		gd.addNumericField("Minimum_frames", minimumFrames, 0);
+		gd.addMessage("                                                            ");
+		gd.addDialogListener(this);
+		dialogItemChanged(gd, null);
+		gd.showDialog();
+
+		if(gd.wasCanceled()) {
+			imp.setOverlay(previous);
+			return;
+		}
+
+		storePreferences();
+	}
+
+	@Override
+	public boolean dialogItemChanged(GenericDialog gd, AWTEvent e) {
+		p=(float) gd.getNextNumber();
+		minimumSize=(float) gd.getNextNumber();
+		minimumFrames=(float) gd.getNextNumber();
+		if(gd.invalidNumber() || p<=0 || p>=1) return false;
+
+		long start=System.currentTimeMillis();
+		List<String> directions=new ArrayList<String>();
+		KymoButlerTracks tracks=map.extractTracks(p, minimumSize, minimumFrames, directions);
+		imp.setOverlay(toOverlay(tracks));
+
+		if(gd.getMessage()!=null) {
+			((java.awt.Label) gd.getMessage()).setText(tracks.getNTracks()+" tracks ("+(System.currentTimeMillis()-start)+" ms)");
+		}
+		return true;
+	}
+
+	/**
+	 * Converts tracks to an overlay of polylines, one colour per track
+	 * @param tracks the tracks
+	 * @return the overlay
+	 */
+	Overlay toOverlay(KymoButlerTracks tracks) {
+		Overlay overlay=new Overlay();
+		for(int i=0; i<tracks.getNTracks(); i++) {
+			int n=tracks.getEnd(i)-tracks.getStart(i);
+			float[] x=new float[n];
+			float[] y=new float[n];
+			for(int k=0; k<n; k++) {
+				x[k]=(float) tracks.getX(tracks.getStart(i)+k)+0.5f;
+				y[k]=(float) tracks.getT(tracks.getStart(i)+k)+0.5f;
+			}
+			PolygonRoi roi=new PolygonRoi(x, y, n, Roi.POLYLINE);
+			roi.setStrokeColor(Color.getHSBColor((float) ((i*0.618033988749895)%1), 1, 1));
+			overlay.add(roi);
+		}
+		return overlay;
+	}
+
+	/**
+	 * Stores preferences, based on the user input
+	 */
+	public void storePreferences() {
+		Prefs.set("KymoButler_p.double", p);
+		Prefs.set("KymoButler_minimumSize.double", minimumSize);
+		Prefs.set("KymoButler_minimumFrames.double", minimumFrames);
+	}
+}